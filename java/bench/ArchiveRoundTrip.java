@@ -0,0 +1,111 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Checks that OrderArchive files read back exactly what was written: a
+ * generated batch of orders is written to a file in a temporary directory,
+ * decoded column by column and compared row by row, and the per-product
+ * and per-customer counts of the archive scan are compared with counts
+ * taken from the batch itself.
+ *
+ * The batch spans several blocks and ends in a partial one, repeats order
+ * times, numbers orders out of time order so their deltas go negative,
+ * and includes times before 1970, extreme IDs and non-ASCII product names.
+ * Empty and single-order files are checked as well. No database is needed.
+ *
+ *    java -cp <classes> [-Damazon.archive.blockRows=<n>] ArchiveRoundTrip [orders] [seed]
+ *
+ */
+public class ArchiveRoundTrip {
+
+   public static void main(String[] args) throws Exception {
+      int orders = args.length > 0 ? Integer.parseInt(args[0]) : 2 * OrderArchive.BLOCK_ROWS + 123;
+      long seed = args.length > 1 ? Long.parseLong(args[1]) : 42;
+
+      Path dir = Files.createTempDirectory("archive-roundtrip");
+      try {
+         check(dir.resolve("empty" + OrderArchive.SUFFIX), new ArrayList<OrderArchive.Row>(), seed);
+         check(dir.resolve("single" + OrderArchive.SUFFIX), orders(1, seed), seed);
+         check(dir.resolve("batch" + OrderArchive.SUFFIX), orders(orders, seed), seed);
+      }finally {
+         try (Stream<Path> files = Files.list(dir)) {
+            for (Path p : (Iterable<Path>) files::iterator) { Files.deleteIfExists(p); }
+         }//end try
+         Files.deleteIfExists(dir);
+      }//end try
+      System.out.println("OK");
+   }//end main
+
+   // writes the orders, reads them back and compares rows and scan counts
+   private static void check(Path file, List<OrderArchive.Row> written, long seed) throws Exception {
+      OrderArchive.write(file, written);
+      List<OrderArchive.Row> read = OrderArchive.read(file);
+      if (read.size() != written.size()) { fail(file, "wrote " + written.size() + " orders, read " + read.size()); }
+      for (int i = 0; i < written.size(); ++i) {
+         if (!written.get(i).equals(read.get(i))) {
+            fail(file, "order " + i + " (block " + i / OrderArchive.BLOCK_ROWS + ") wrote " + written.get(i) + ", read " + read.get(i));
+         }//end if
+      }//end for
+
+      // every store, then a random half of them, so blocks are both read and skipped
+      List<Integer> all = new ArrayList<Integer>();
+      for (OrderArchive.Row r : written) { if (!all.contains(r.storeID())) { all.add(r.storeID()); } }
+      Random random = new Random(seed);
+      List<Integer> half = new ArrayList<Integer>();
+      for (int storeID : all) { if (random.nextBoolean()) { half.add(storeID); } }
+      for (List<Integer> stores : List.of(all, half)) {
+         int[] storeIDs = stores.stream().mapToInt(Integer::intValue).toArray();
+         compare(file, "products", expected(written, stores, true), OrderArchive.counts(file, storeIDs, OrderArchive.PRODUCT));
+         compare(file, "customers", expected(written, stores, false), OrderArchive.counts(file, storeIDs, OrderArchive.CUSTOMER));
+      }//end for
+      System.out.printf("%-16s %8d orders, %10d bytes%n", file.getFileName(), written.size(), Files.size(file));
+   }//end check
+
+   private static Map<Object, Long> expected(List<OrderArchive.Row> rows, List<Integer> stores, boolean products) {
+      Map<Object, Long> counts = new HashMap<Object, Long>();
+      for (OrderArchive.Row r : rows) {
+         if (stores.contains(r.storeID())) { counts.merge(products ? r.productName() : r.customerID(), 1L, Long::sum); }
+      }//end for
+      return counts;
+   }//end expected
+
+   private static void compare(Path file, String what, Map<Object, Long> expected, Map<Object, long[]> scanned) {
+      if (expected.size() != scanned.size()) { fail(file, what + ": expected " + expected.size() + " keys, scanned " + scanned.size()); }
+      for (Map.Entry<Object, Long> e : expected.entrySet()) {
+         long[] count = scanned.get(e.getKey());
+         if (count == null || count[0] != e.getValue()) {
+            fail(file, what + ": " + e.getKey() + " expected " + e.getValue() + ", scanned " + (count == null ? "none" : count[0]));
+         }//end if
+      }//end for
+   }//end compare
+
+   private static void fail(Path file, String problem) {
+      throw new AssertionError(file.getFileName() + ": " + problem);
+   }//end fail
+
+   // orders sorted by time, as an export writes them
+   private static List<OrderArchive.Row> orders(int n, long seed) {
+      Random random = new Random(seed);
+      String[] names = { "Pen", "Notebook", "Caf\u00e9 cr\u00e8me", "\u00dcn\u00efcode \u6f22\u5b57", "123456789012345678901234567890", "" };
+      int[] stores = { 1, 2, 3, 17, 1000, Integer.MAX_VALUE };
+      int[] customers = { 0, 1, 42, -7, Integer.MIN_VALUE, Integer.MAX_VALUE };
+      List<OrderArchive.Row> rows = new ArrayList<OrderArchive.Row>(n);
+      // start before 1970 so early times are negative, then step forward in time order, often not at all
+      long time = -86400L * 1000000L * 365;
+      for (int i = 0; i < n; ++i) {
+         time += random.nextInt(4) == 0 ? 0 : random.nextInt(5000000);
+         int number = random.nextInt(10) == 0 ? (random.nextBoolean() ? Integer.MAX_VALUE - i : 1 + random.nextInt(1000)) : 1000 + i;
+         String name = random.nextInt(20) == 0 ? names[random.nextInt(names.length)] : "Product" + random.nextInt(500);
+         rows.add(new OrderArchive.Row(number, customers[random.nextInt(customers.length)] ^ random.nextInt(8),
+                                       stores[random.nextInt(stores.length)], name, 1 + random.nextInt(100), time));
+      }//end for
+      return rows;
+   }//end orders
+
+}//end ArchiveRoundTrip
@@ -0,0 +1,195 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * This class holds a scaled-up copy of data/users.csv, stores.csv and
+ * products.csv in primitive arrays, for the benchmarks to run against in
+ * memory or to load into a scratch database.
+ *
+ * Copy 0 is the CSV data unchanged. Every further copy gets new user and
+ * store IDs, unique user names and locations jittered by up to 5 in each
+ * direction, so nearest-store answers differ between copies.
+ *
+ */
+public class BenchData {
+
+   public final int scale;
+
+   public final int[] userID;
+   public final String[] userName;
+   public final String[] password;
+   public final double[] userLat;
+   public final double[] userLon;
+   public final String[] userType;
+
+   public final int[] storeID;
+   public final double[] storeLat;
+   public final double[] storeLon;
+   public final int[] managerID;
+
+   // products refer to their store by position in the store arrays
+   public final int[] productStore;
+   public final String[] productName;
+   public final int[] productUnits;
+   public final double[] productPrice;
+
+   private BenchData(int scale, int users, int stores, int products) {
+      this.scale = scale;
+      this.userID = new int[users];
+      this.userName = new String[users];
+      this.password = new String[users];
+      this.userLat = new double[users];
+      this.userLon = new double[users];
+      this.userType = new String[users];
+      this.storeID = new int[stores];
+      this.storeLat = new double[stores];
+      this.storeLon = new double[stores];
+      this.managerID = new int[stores];
+      this.productStore = new int[products];
+      this.productName = new String[products];
+      this.productUnits = new int[products];
+      this.productPrice = new double[products];
+   }//end BenchData
+
+   /**
+    * Reads the CSV files and repeats them scale times
+    *
+    * @param dataDir directory holding the CSV files
+    * @param scale number of copies, at least 1
+    * @return the scaled data
+    * @throws java.io.IOException when a CSV file cannot be read
+    */
+   public static BenchData scaled(String dataDir, int scale) throws IOException {
+      List<String[]> users = readCsv(dataDir + "/users.csv");
+      List<String[]> stores = readCsv(dataDir + "/stores.csv");
+      List<String[]> products = readCsv(dataDir + "/products.csv");
+      int userStride = 0, storeStride = 0;
+      for (String[] u : users) { userStride = Math.max(userStride, Integer.parseInt(u[0])); }
+      for (String[] s : stores) { storeStride = Math.max(storeStride, Integer.parseInt(s[0])); }
+
+      BenchData d = new BenchData(scale, users.size() * scale, stores.size() * scale, products.size() * scale);
+      Random jitter = new Random(7);
+      int u = 0, s = 0, p = 0;
+      for (int copy = 0; copy < scale; ++copy) {
+         int firstStore = s;
+         for (String[] row : users) {
+            d.userID[u] = copy * userStride + Integer.parseInt(row[0]);
+            d.userName[u] = copy == 0 ? row[1] : row[1] + "_" + copy;
+            d.password[u] = row[2];
+            d.userLat[u] = Double.parseDouble(row[3]) + offset(jitter, copy);
+            d.userLon[u] = Double.parseDouble(row[4]) + offset(jitter, copy);
+            d.userType[u] = row[5];
+            ++u;
+         }//end for
+         for (String[] row : stores) {
+            d.storeID[s] = copy * storeStride + Integer.parseInt(row[0]);
+            d.storeLat[s] = Double.parseDouble(row[1]) + offset(jitter, copy);
+            d.storeLon[s] = Double.parseDouble(row[2]) + offset(jitter, copy);
+            d.managerID[s] = copy * userStride + Integer.parseInt(row[3]);
+            ++s;
+         }//end for
+         for (String[] row : products) {
+            d.productStore[p] = firstStore + indexOf(stores, row[0]);
+            d.productName[p] = row[1].intern();
+            d.productUnits[p] = Integer.parseInt(row[2]);
+            d.productPrice[p] = Double.parseDouble(row[3]) + (copy == 0 ? 0 : jitter.nextInt(5));
+            ++p;
+         }//end for
+      }//end for
+      return d;
+   }//end scaled
+
+   private static double offset(Random jitter, int copy) {
+      return copy == 0 ? 0 : jitter.nextDouble() * 10 - 5;
+   }//end offset
+
+   private static int indexOf(List<String[]> rows, String id) {
+      for (int i = 0; i < rows.size(); ++i) {
+         if (rows.get(i)[0].equals(id)) { return i; }
+      }//end for
+      throw new IllegalArgumentException("products.csv refers to unknown store " + id);
+   }//end indexOf
+
+   static List<String[]> readCsv(String path) throws IOException {
+      List<String[]> rows = new ArrayList<String[]>();
+      try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+         String line = reader.readLine(); // header
+         while ((line = reader.readLine()) != null) {
+            if (!line.isEmpty()) { rows.add(line.split(",")); }
+         }//end while
+      }//end try
+      return rows;
+   }//end readCsv
+
+   /**
+    * @return the distinct product names, in the order first seen
+    */
+   public List<String> productNames() {
+      List<String> names = new ArrayList<String>();
+      for (String name : this.productName) {
+         if (!names.contains(name)) { names.add(name); }
+      }//end for
+      return names;
+   }//end productNames
+
+   /**
+    * Replaces Users, Store and Product (and everything that references
+    * them) with this data. Only point it at a scratch database.
+    *
+    * @param esql the database to load
+    * @throws java.sql.SQLException when the load fails
+    */
+   public void load(Amazon esql) throws java.sql.SQLException {
+      esql.inTransaction(c -> {
+         try (Statement stmt = c.createStatement()) { stmt.execute("TRUNCATE Users CASCADE"); }
+         try (PreparedStatement user = c.prepareStatement("INSERT INTO Users (userID, name, password, latitude, longitude, type) VALUES (?, ?, ?, ?, ?, ?)");
+              PreparedStatement store = c.prepareStatement("INSERT INTO Store (storeID, latitude, longitude, managerID) VALUES (?, ?, ?, ?)");
+              PreparedStatement product = c.prepareStatement("INSERT INTO Product VALUES (?, ?, ?, ?)")) {
+            for (int i = 0; i < this.userID.length; ++i) {
+               user.setInt(1, this.userID[i]);
+               user.setString(2, this.userName[i]);
+               user.setString(3, this.password[i]);
+               user.setDouble(4, this.userLat[i]);
+               user.setDouble(5, this.userLon[i]);
+               user.setString(6, this.userType[i]);
+               user.addBatch();
+               if ((i + 1) % 10000 == 0) { user.executeBatch(); }
+            }//end for
+            user.executeBatch();
+            for (int i = 0; i < this.storeID.length; ++i) {
+               store.setInt(1, this.storeID[i]);
+               store.setDouble(2, this.storeLat[i]);
+               store.setDouble(3, this.storeLon[i]);
+               store.setInt(4, this.managerID[i]);
+               store.addBatch();
+               if ((i + 1) % 10000 == 0) { store.executeBatch(); }
+            }//end for
+            store.executeBatch();
+            for (int i = 0; i < this.productName.length; ++i) {
+               product.setInt(1, this.storeID[this.productStore[i]]);
+               product.setString(2, this.productName[i]);
+               product.setInt(3, this.productUnits[i]);
+               product.setDouble(4, this.productPrice[i]);
+               product.addBatch();
+               if ((i + 1) % 10000 == 0) { product.executeBatch(); }
+            }//end for
+            product.executeBatch();
+         }//end try
+         try (Statement stmt = c.createStatement()) {
+            stmt.execute("SELECT setval('users_userid_seq', (SELECT max(userID) FROM Users))");
+         }//end try
+         return null;
+      });
+      esql.withConnection(c -> {
+         try (Statement stmt = c.createStatement()) { stmt.execute("ANALYZE Users; ANALYZE Store; ANALYZE Product"); }
+         return null;
+      });
+   }//end load
+
+}//end BenchData
@@ -0,0 +1,107 @@
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.postgresql.PGConnection;
+
+/**
+ * Fills a scratch database with DataGenerator rows. Each table is split
+ * into chunks that worker threads generate and stream through the
+ * driver's COPY support on their own pooled connection; tables are loaded
+ * one after another in foreign key order. The serial sequences are moved
+ * past the loaded keys afterwards, as load_data.sql does. In the
+ * partitioned schema mode every month of the generated orders gets its
+ * partition before the COPY, so no rows go through the DEFAULT partition.
+ *
+ * Everything in Users and Warehouse, and all that references them, is
+ * replaced.
+ *
+ *    java -cp <classes>:<postgres jar> BulkLoader <dbname> <port> <user> [--threads N] [--chunk rows]
+ *         [--users N] [--stores N] [--orders N] [--products-per-store N] [--warehouses N] [--seed N]
+ *
+ */
+public class BulkLoader {
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java BulkLoader <dbname> <port> <user> [--threads N] [--chunk rows] "
+                            + "[--users N] [--stores N] [--orders N] [--products-per-store N] [--warehouses N] [--seed N]");
+         return;
+      }//end if
+      int threads = Runtime.getRuntime().availableProcessors();
+      int chunk = 50000;
+      for (int a = 3; a < args.length; ++a) {
+         if (args[a].equals("--threads")) { threads = Integer.parseInt(args[++a]); }
+         else if (args[a].equals("--chunk")) { chunk = Integer.parseInt(args[++a]); }
+      }//end for
+      DataGenerator generator = DataGenerator.fromArgs(args, 3);
+
+      Amazon esql = new Amazon(args[0], args[1], args[2], "");
+      ExecutorService workers = Executors.newFixedThreadPool(threads);
+      try {
+         esql.executeUpdate("TRUNCATE Users, Warehouse RESTART IDENTITY CASCADE");
+         if (esql.partitions().partitioned()) { createOrderPartitions(esql); }
+         long totalRows = 0, start = System.nanoTime();
+         for (DataGenerator.Table table : DataGenerator.Table.values()) {
+            totalRows += load(esql, workers, generator, table, chunk);
+         }//end for
+         double seconds = (System.nanoTime() - start) / 1e9;
+         System.out.printf("%-10s %,12d rows %8.1f s %,12.0f rows/s (%d threads, %,d rows per chunk)%n",
+                           "total", totalRows, seconds, totalRows / seconds, threads, chunk);
+
+         esql.executeQuery("SELECT setval(pg_get_serial_sequence('users', 'userid'), (SELECT max(userID) FROM Users))");
+         esql.executeQuery("SELECT setval(pg_get_serial_sequence('orders', 'ordernumber'), (SELECT max(orderNumber) FROM Orders))");
+         esql.withConnection(c -> {
+            try (Statement stmt = c.createStatement()) { stmt.execute("ANALYZE"); }
+            return null;
+         });
+      } finally {
+         workers.shutdown();
+         esql.cleanup();
+      }//end try
+   }//end main
+
+   // gives every month of DataGenerator's orderTime range its Orders partition
+   private static void createOrderPartitions(Amazon esql) throws SQLException {
+      LocalDate last = DataGenerator.ORDERS_FROM.plusDays(DataGenerator.ORDERS_SPAN_DAYS).toLocalDate();
+      for (LocalDate month = DataGenerator.ORDERS_FROM.toLocalDate().withDayOfMonth(1); !month.isAfter(last); month = month.plusMonths(1)) {
+         esql.queryFirst("SELECT create_month_partition('orders'::regclass, ?)", rs -> rs.getBoolean(1), month);
+      }//end for
+   }//end createOrderPartitions
+
+   // loads one table in parallel chunks and reports its rate
+   private static long load(Amazon esql, ExecutorService workers, DataGenerator generator,
+                            DataGenerator.Table table, int chunk) throws Exception {
+      long rows = generator.rows(table);
+      String copy = "COPY " + table.name + " (" + table.columns + ") FROM STDIN WITH (FORMAT csv)";
+      long start = System.nanoTime();
+      List<Future<Long>> chunks = new ArrayList<Future<Long>>();
+      for (long from = 0; from < rows; from += chunk) {
+         long first = from, last = Math.min(from + chunk, rows);
+         chunks.add(workers.submit(() -> {
+            StringBuilder csv = new StringBuilder((int) Math.min(Integer.MAX_VALUE, (last - first) * 64));
+            generator.write(table, first, last, csv);
+            return esql.withConnection(c -> {
+               try {
+                  return c.unwrap(PGConnection.class).getCopyAPI().copyIn(copy, new StringReader(csv.toString()));
+               }catch (IOException e) {
+                  throw new SQLException("COPY into " + table.name + " failed", e);
+               }//end try
+            });
+         }));
+      }//end for
+      long copied = 0;
+      for (Future<Long> f : chunks) { copied += f.get(); }
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.printf("%-10s %,12d rows %8.1f s %,12.0f rows/s%n", table.name, copied, seconds, copied / seconds);
+      return copied;
+   }//end load
+
+}//end BulkLoader
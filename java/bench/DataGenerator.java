@@ -0,0 +1,289 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.SplittableRandom;
+
+/**
+ * This class generates synthetic Users, Store, Product, Warehouse and
+ * Orders rows at any size, in the CSV layout of data/ that COPY reads.
+ *
+ * Stores and users are clustered around city centres, product popularity
+ * and customer activity follow Zipf distributions, and orderTime grows
+ * with orderNumber. Every row is derived from the seed and its own
+ * position, so any range of rows can be generated on its own and in
+ * parallel with the same result as generating the whole table.
+ *
+ *    java -cp <classes> DataGenerator <outDir> [--users N] [--stores N] [--orders N]
+ *         [--products-per-store N] [--warehouses N] [--seed N]
+ *
+ */
+public class DataGenerator {
+
+   public enum Table {
+      USERS("Users", "users.csv", "userID, name, password, latitude, longitude, type"),
+      STORE("Store", "stores.csv", "storeID, latitude, longitude, managerID, dateEstablished"),
+      PRODUCT("Product", "products.csv", "storeID, productName, numberOfUnits, pricePerUnit"),
+      WAREHOUSE("Warehouse", "warehouse.csv", "warehouseID, area, latitude, longitude"),
+      ORDERS("Orders", "orders.csv", "orderNumber, customerID, storeID, productName, unitsOrdered, orderTime");
+
+      public final String name;
+      // file name used in data/
+      public final String file;
+      public final String columns;
+
+      Table(String name, String file, String columns) {
+         this.name = name;
+         this.file = file;
+         this.columns = columns;
+      }
+   }//end Table
+
+   // names of data/products.csv first, then numbered ones
+   private static final String[] KNOWN_PRODUCTS = {
+      "7up", "Pepsi", "Lemonade", "Hot and Sour Soup", "Pudding", "Donuts", "Egg Roll", "Brisket", "Salad", "Ice Cream", "Fried Rice"
+   };
+
+   // spread of stores and users around their city centre
+   static final double STORE_SPREAD = 3;
+   static final double USER_SPREAD = 5;
+
+   // orderTime runs from ORDERS_FROM for ORDERS_SPAN_DAYS
+   static final LocalDateTime ORDERS_FROM = LocalDateTime.of(2016, 1, 1, 0, 0);
+   static final long ORDERS_SPAN_DAYS = 3650;
+
+   public final long seed;
+   public final int users;
+   public final int stores;
+   public final int productsPerStore;
+   public final int warehouses;
+   public final long orders;
+
+   private final int _managers;
+   private final int _customers;
+   private final int _cities;
+   private final double[] _cityLat;
+   private final double[] _cityLon;
+   private final String[] _productNames;
+   private final double[] _basePrice;
+
+   // cumulative Zipf weights: product rank for order lines, customer rank for who orders
+   private final double[] _productCdf;
+   private final double[] _customerCdf;
+
+   public DataGenerator(long seed, int users, int stores, int productsPerStore, int warehouses, long orders) {
+      this.seed = seed;
+      this.users = users;
+      this.stores = stores;
+      this.productsPerStore = productsPerStore;
+      this.warehouses = warehouses;
+      this.orders = orders;
+      // user 1 is the admin, then one manager for every five stores, then customers
+      this._managers = Math.max(1, stores / 5);
+      this._customers = users - 1 - this._managers;
+      if (this._customers < 1) {
+         throw new IllegalArgumentException(users + " users leave no customers beside the admin and " + this._managers + " managers");
+      }//end if
+
+      Random random = new Random(seed);
+      this._cities = Math.max(1, stores / 200);
+      this._cityLat = new double[this._cities];
+      this._cityLon = new double[this._cities];
+      for (int c = 0; c < this._cities; ++c) {
+         this._cityLat[c] = 5 + random.nextDouble() * 90;
+         this._cityLon[c] = 5 + random.nextDouble() * 90;
+      }//end for
+      this._productNames = new String[productsPerStore];
+      this._basePrice = new double[productsPerStore];
+      for (int p = 0; p < productsPerStore; ++p) {
+         this._productNames[p] = p < KNOWN_PRODUCTS.length ? KNOWN_PRODUCTS[p] : "Product " + p;
+         this._basePrice[p] = 1 + random.nextInt(20);
+      }//end for
+      this._productCdf = zipf(productsPerStore, 1.0);
+      this._customerCdf = zipf(this._customers, 0.6);
+   }//end DataGenerator
+
+   private static double[] zipf(int n, double s) {
+      double[] cdf = new double[n];
+      double sum = 0;
+      for (int k = 0; k < n; ++k) { cdf[k] = sum += 1 / Math.pow(k + 1, s); }
+      for (int k = 0; k < n; ++k) { cdf[k] /= sum; }
+      return cdf;
+   }//end zipf
+
+   private static int sample(double[] cdf, double u) {
+      int k = Arrays.binarySearch(cdf, u);
+      return Math.min(cdf.length - 1, k >= 0 ? k : -k - 1);
+   }//end sample
+
+   /**
+    * @return the number of rows the table gets
+    */
+   public long rows(Table table) {
+      switch (table) {
+         case USERS: return this.users;
+         case STORE: return this.stores;
+         case PRODUCT: return (long) this.stores * this.productsPerStore;
+         case WAREHOUSE: return this.warehouses;
+         default: return this.orders;
+      }//end switch
+   }//end rows
+
+   // a generator for one row, independent of every other row
+   private SplittableRandom random(Table table, long row) {
+      return new SplittableRandom(this.seed * 0x9E3779B97F4A7C15L + table.ordinal() * 0xBF58476D1CE4E5B9L + row);
+   }//end random
+
+   /**
+    * Appends rows from (inclusive) to to (exclusive) of a table as CSV lines
+    *
+    * @param table the table
+    * @param from first row, counting from 0
+    * @param to row after the last
+    * @param out receives the lines
+    */
+   public void write(Table table, long from, long to, StringBuilder out) {
+      for (long row = from; row < to; ++row) {
+         SplittableRandom r = random(table, row);
+         switch (table) {
+            case USERS: user((int) row, r, out); break;
+            case STORE: store((int) row, r, out); break;
+            case PRODUCT: product(row, r, out); break;
+            case WAREHOUSE: warehouse((int) row, r, out); break;
+            case ORDERS: order(row, r, out); break;
+         }//end switch
+         out.append('\n');
+      }//end for
+   }//end write
+
+   private void user(int i, SplittableRandom r, StringBuilder out) {
+      String type = i == 0 ? "admin" : i <= this._managers ? "manager" : "customer";
+      int city = i % this._cities;
+      out.append(i + 1).append(",user").append(i + 1).append(",xyz,");
+      coordinate(this._cityLat[city] + gaussian(r) * USER_SPREAD, out);
+      out.append(',');
+      coordinate(this._cityLon[city] + gaussian(r) * USER_SPREAD, out);
+      out.append(',').append(type);
+   }//end user
+
+   private void store(int i, SplittableRandom r, StringBuilder out) {
+      int city = i % this._cities;
+      out.append(i + 1).append(',');
+      coordinate(this._cityLat[city] + gaussian(r) * STORE_SPREAD, out);
+      out.append(',');
+      coordinate(this._cityLon[city] + gaussian(r) * STORE_SPREAD, out);
+      out.append(',').append(2 + i % this._managers).append(',');
+      out.append(LocalDate.of(1950, 1, 1).plusDays(r.nextInt(365 * 70)));
+   }//end store
+
+   private void product(long row, SplittableRandom r, StringBuilder out) {
+      int p = (int) (row % this.productsPerStore);
+      out.append(row / this.productsPerStore + 1).append(',').append(this._productNames[p]).append(',');
+      out.append(r.nextInt(1000)).append(',').append(this._basePrice[p] + r.nextInt(5));
+   }//end product
+
+   private void warehouse(int i, SplittableRandom r, StringBuilder out) {
+      out.append(i + 1).append(',').append(5000 + r.nextInt(45000)).append(',');
+      coordinate(r.nextDouble() * 99, out);
+      out.append(',');
+      coordinate(r.nextDouble() * 99, out);
+   }//end warehouse
+
+   private void order(long row, SplittableRandom r, StringBuilder out) {
+      // popular customers are spread over the cities rather than sitting in the first ones
+      int rank = sample(this._customerCdf, r.nextDouble());
+      int customer = (int) ((rank * 2654435761L) % this._customers);
+      int userIndex = 1 + this._managers + customer;
+      // a store in the customer's city
+      int city = userIndex % this._cities;
+      int inCity = (this.stores - city + this._cities - 1) / this._cities;
+      int store = city + r.nextInt(inCity) * this._cities;
+      int product = sample(this._productCdf, r.nextDouble());
+
+      // orders are spaced evenly over the span, each jittered within its own slot
+      double slot = ORDERS_SPAN_DAYS * 86400.0 / Math.max(1, this.orders);
+      long seconds = (long) (row * slot + r.nextDouble() * slot);
+      out.append(row + 1).append(',').append(userIndex + 1).append(',').append(store + 1).append(',');
+      out.append(this._productNames[product]).append(',').append(1 + r.nextInt(5)).append(',');
+      timestamp(ORDERS_FROM.plusSeconds(seconds), out);
+   }//end order
+
+   // yyyy-mm-dd hh:mm:ss
+   private static void timestamp(LocalDateTime t, StringBuilder out) {
+      out.append(t.toLocalDate()).append(' ');
+      twoDigits(t.getHour(), out);
+      twoDigits(t.getMinute(), out.append(':'));
+      twoDigits(t.getSecond(), out.append(':'));
+   }//end timestamp
+
+   private static void twoDigits(int value, StringBuilder out) {
+      out.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+   }//end twoDigits
+
+   // a normal deviate; SplittableRandom has no nextGaussian in Java 17
+   private static double gaussian(SplittableRandom r) {
+      double u = 1 - r.nextDouble(), v = r.nextDouble();
+      return Math.sqrt(-2 * Math.log(u)) * Math.cos(2 * Math.PI * v);
+   }//end gaussian
+
+   // six decimals, clamped to the range of decimal(8,6)
+   private static void coordinate(double value, StringBuilder out) {
+      long micros = Math.round(Math.max(0, Math.min(99.999999, value)) * 1e6);
+      out.append(micros / 1000000).append('.');
+      String fraction = Long.toString(micros % 1000000);
+      for (int i = fraction.length(); i < 6; ++i) { out.append('0'); }
+      out.append(fraction);
+   }//end coordinate
+
+   /**
+    * Reads the generator options shared with BulkLoader
+    *
+    * @param args command line arguments
+    * @param first position of the first option
+    * @return the generator
+    */
+   static DataGenerator fromArgs(String[] args, int first) {
+      long seed = 42, orders = 10000000;
+      int users = 1000000, stores = 100000, productsPerStore = 10, warehouses = 50;
+      for (int a = first; a < args.length; ++a) {
+         switch (args[a]) {
+            case "--users": users = Integer.parseInt(args[++a]); break;
+            case "--stores": stores = Integer.parseInt(args[++a]); break;
+            case "--orders": orders = Long.parseLong(args[++a]); break;
+            case "--products-per-store": productsPerStore = Integer.parseInt(args[++a]); break;
+            case "--warehouses": warehouses = Integer.parseInt(args[++a]); break;
+            case "--seed": seed = Long.parseLong(args[++a]); break;
+            default: break; // left for the caller
+         }//end switch
+      }//end for
+      return new DataGenerator(seed, users, stores, productsPerStore, warehouses, orders);
+   }//end fromArgs
+
+   public static void main(String[] args) throws IOException {
+      if (args.length < 1) {
+         System.err.println("Usage: java DataGenerator <outDir> [--users N] [--stores N] [--orders N] [--products-per-store N] [--warehouses N] [--seed N]");
+         return;
+      }//end if
+      DataGenerator generator = fromArgs(args, 1);
+      StringBuilder chunk = new StringBuilder(1 << 20);
+      for (Table table : Table.values()) {
+         long start = System.nanoTime();
+         String file = args[0] + "/" + table.file;
+         try (Writer out = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+            out.write(table.columns.replace(" ", "") + "\n");
+            for (long from = 0; from < generator.rows(table); from += 10000) {
+               chunk.setLength(0);
+               generator.write(table, from, Math.min(from + 10000, generator.rows(table)), chunk);
+               out.append(chunk);
+            }//end for
+         }//end try
+         double seconds = (System.nanoTime() - start) / 1e9;
+         System.out.printf("%-10s %,12d rows %8.1f s %,12.0f rows/s%n", table.name, generator.rows(table), seconds, generator.rows(table) / seconds);
+      }//end for
+   }//end main
+
+}//end DataGenerator
@@ -0,0 +1,91 @@
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the old two-query nearest-price lookup with the single-query
+ * and cached versions in SupplyService on a scaled-up copy of
+ * data/stores.csv and data/products.csv.
+ *
+ * Point it at a scratch database created with create_db.sh: it replaces
+ * the contents of Users, Store and Product (and everything that references
+ * them) with BenchData.
+ *
+ *    java -cp <classes>:<postgres jar> NearestPriceBench <dbname> <port> <user> <scale> [lookups]
+ *
+ */
+public class NearestPriceBench {
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 4) {
+         System.err.println("Usage: java NearestPriceBench <dbname> <port> <user> <scale> [lookups] [dataDir]");
+         return;
+      }//end if
+      int scale = Integer.parseInt(args[3]);
+      int lookups = args.length > 4 ? Integer.parseInt(args[4]) : 2000;
+      String dataDir = args.length > 5 ? args[5] : "data";
+
+      Amazon esql = new Amazon(args[0], args[1], args[2], "");
+      try {
+         BenchData data = BenchData.scaled(dataDir, scale);
+         data.load(esql);
+         int[] storeIDs = data.storeID;
+         List<String> names = data.productNames();
+         System.out.println("Loaded " + storeIDs.length + " stores x " + names.size() + " product names (scale " + scale + ")");
+
+         Random random = new Random(42);
+         int[] stores = new int[lookups];
+         String[] products = new String[lookups];
+         for (int i = 0; i < lookups; ++i) {
+            stores[i] = storeIDs[random.nextInt(storeIDs.length)];
+            products[i] = names.get(random.nextInt(names.size()));
+         }//end for
+
+         SupplyService supply = esql.supply();
+         supply.invalidatePrices();
+         report("two queries + Java scan", lookups, time(lookups, i -> legacyNearestPrice(esql, stores[i], products[i])));
+         report("single query", lookups, time(lookups, i -> supply.lookupNearestPrice(stores[i], products[i])));
+         report("single query, cached", lookups, time(lookups, i -> supply.nearestPrice(stores[i], products[i])));
+         System.out.println("price cache hits: " + supply.priceCacheHits() + ", misses: " + supply.priceCacheMisses());
+      } finally {
+         esql.cleanup();
+      }//end try
+   }//end main
+
+   interface Lookup {
+      float run(int i) throws SQLException;
+   }
+
+   // runs every lookup once to warm up, then once more timed
+   private static long time(int lookups, Lookup lookup) throws SQLException {
+      for (int i = 0; i < lookups; ++i) { lookup.run(i); }
+      long start = System.nanoTime();
+      for (int i = 0; i < lookups; ++i) { lookup.run(i); }
+      return System.nanoTime() - start;
+   }//end time
+
+   private static void report(String name, int lookups, long nanos) {
+      System.out.println(String.format("%-28s %10.1f us/lookup %10.0f lookups/s", name, nanos / 1e3 / lookups, lookups / (nanos / 1e9)));
+   }//end report
+
+   // the getNearestPrice implementation before it became a single query
+   static float legacyNearestPrice(Amazon esql, int storeID, String productName) throws SQLException {
+      List<List<String>> givenStore = esql.executeQueryAndReturnResult("SELECT latitude, longitude FROM Store WHERE storeID = ?", storeID);
+      double storeLat = Double.parseDouble(givenStore.get(0).get(0));
+      double storeLon = Double.parseDouble(givenStore.get(0).get(1));
+      List<List<String>> otherStores = esql.executeQueryAndReturnResult(
+         "SELECT s.latitude, s.longitude, p.pricePerUnit FROM Store s JOIN Product p ON s.storeID = p.storeID WHERE s.storeID != ? AND p.productName = ?",
+         storeID, productName);
+      double minDistance = Integer.MAX_VALUE;
+      float nearestPrice = 0;
+      for (List<String> other : otherStores) {
+         double currDistance = esql.calculateDistance(storeLat, storeLon, Double.parseDouble(other.get(0)), Double.parseDouble(other.get(1)));
+         if (currDistance < minDistance) {
+            minDistance = currDistance;
+            nearestPrice = Float.parseFloat(other.get(2));
+         }//end if
+      }//end for
+      return nearestPrice;
+   }//end legacyNearestPrice
+
+}//end NearestPriceBench
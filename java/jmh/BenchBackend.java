@@ -0,0 +1,121 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Runs the operations timed by the benchmarks in benchmarks/ on a scaled
+ * copy of data/*.csv. Inputs are drawn once in open(), so each call is the
+ * application's own code on the next input.
+ *
+ * The one piece not in the application is the linear scan viewStores used
+ * to do, kept as the baseline for StoreIndex.
+ *
+ */
+public class BenchBackend implements benchmarks.Backend {
+
+   // how many random inputs each benchmark cycles through
+   static final int INPUTS = 4096;
+
+   private BenchData _data;
+   private StoreIndex _index;
+   private final StoreIndex.Hits _hits = new StoreIndex.Hits();
+   private int[] _users;
+   private int[] _stores;
+   private int[] _products;
+   // (user, product) pairs where the product's store is in the user's range
+   private int[][] _orders;
+   private Amazon _esql;
+
+   public void open(String dataDir, int scale, String[] db) throws Exception {
+      this._data = BenchData.scaled(dataDir, scale);
+      this._index = StoreIndex.build(this._data.storeID, this._data.storeLat, this._data.storeLon, StoreLocatorService.DEFAULT_RADIUS);
+      Random random = new Random(42);
+      this._users = random.ints(INPUTS, 0, this._data.userID.length).toArray();
+      this._stores = random.ints(INPUTS, 0, this._data.storeID.length).toArray();
+      this._products = random.ints(INPUTS, 0, this._data.productName.length).toArray();
+      this._orders = feasibleOrders(this._data, this._index, random);
+      if (db == null) { return; }
+
+      this._esql = new Amazon(db[0], db[1], db[2], "");
+      this._data.load(this._esql);
+      this._esql.locator().invalidate();
+      this._esql.supply().invalidatePrices();
+      // keep the timed orders from running out of stock
+      this._esql.executeUpdate("UPDATE Product SET numberOfUnits = numberOfUnits + 1000000");
+   }//end open
+
+   public void close() throws Exception {
+      if (this._esql != null) { this._esql.cleanup(); }
+   }//end close
+
+   public double calculateDistance(int i) {
+      BenchData d = this._data;
+      int u = this._users[i & (INPUTS - 1)], s = this._stores[i & (INPUTS - 1)];
+      return Amazon.distance(d.userLat[u], d.userLon[u], d.storeLat[s], d.storeLon[s]);
+   }//end calculateDistance
+
+   public int storesWithinLinearScan(int i) {
+      BenchData d = this._data;
+      int u = this._users[i & (INPUTS - 1)];
+      this._hits.clear();
+      for (int s = 0; s < d.storeID.length; ++s) {
+         double distance = Amazon.distance(d.userLat[u], d.userLon[u], d.storeLat[s], d.storeLon[s]);
+         if (distance <= StoreLocatorService.DEFAULT_RADIUS) { this._hits.add(d.storeID[s], distance); }
+      }//end for
+      return this._hits.size;
+   }//end storesWithinLinearScan
+
+   public int storesWithinGridIndex(int i) {
+      int u = this._users[i & (INPUTS - 1)];
+      return this._index.withinRadius(this._data.userLat[u], this._data.userLon[u], StoreLocatorService.DEFAULT_RADIUS, this._hits);
+   }//end storesWithinGridIndex
+
+   public int storesWithin(int i) throws Exception {
+      return this._esql.locator().storesWithin(this._data.userID[this._users[i & (INPUTS - 1)]], StoreLocatorService.DEFAULT_RADIUS).size();
+   }//end storesWithin
+
+   public float lookupNearestPrice(int i) throws Exception {
+      int p = this._products[i & (INPUTS - 1)];
+      return this._esql.supply().lookupNearestPrice(this._data.storeID[this._data.productStore[p]], this._data.productName[p]);
+   }//end lookupNearestPrice
+
+   public float nearestPrice(int i) throws Exception {
+      int p = this._products[i & (INPUTS - 1)];
+      return this._esql.supply().nearestPrice(this._data.storeID[this._data.productStore[p]], this._data.productName[p]);
+   }//end nearestPrice
+
+   public int placeOrder(int i) throws Exception {
+      BenchData d = this._data;
+      int[] o = this._orders[i % this._orders.length];
+      return this._esql.orders().placeOrder(new OrderService.OrderRequest(d.userID[o[0]], d.storeID[d.productStore[o[1]]], d.productName[o[1]], 1)).orderNumber();
+   }//end placeOrder
+
+   public int logIn(int i) throws Exception {
+      int u = this._users[i & (INPUTS - 1)];
+      SessionCache.Session session = this._esql.sessions().authenticate(this._data.userName[u], this._data.password[u]);
+      return session == null ? -1 : session.userID();
+   }//end logIn
+
+   private static int[][] feasibleOrders(BenchData d, StoreIndex index, Random random) {
+      Map<Integer, Integer> storeByID = new HashMap<Integer, Integer>();
+      for (int s = 0; s < d.storeID.length; ++s) { storeByID.put(d.storeID[s], s); }
+      List<List<Integer>> productsOf = new ArrayList<List<Integer>>();
+      for (int s = 0; s < d.storeID.length; ++s) { productsOf.add(new ArrayList<Integer>()); }
+      for (int p = 0; p < d.productName.length; ++p) { productsOf.get(d.productStore[p]).add(p); }
+
+      List<int[]> orders = new ArrayList<int[]>();
+      StoreIndex.Hits hits = new StoreIndex.Hits();
+      for (int attempt = 0; attempt < 16 * INPUTS && orders.size() < INPUTS; ++attempt) {
+         int u = random.nextInt(d.userID.length);
+         int n = index.withinRadius(d.userLat[u], d.userLon[u], StoreLocatorService.DEFAULT_RADIUS, hits);
+         if (n == 0) { continue; }
+         List<Integer> carried = productsOf.get(storeByID.get(hits.ids[random.nextInt(n)]));
+         if (!carried.isEmpty()) { orders.add(new int[] { u, carried.get(random.nextInt(carried.size())) }); }
+      }//end for
+      if (orders.isEmpty()) { throw new IllegalStateException("no user has a store with products in range"); }
+      return orders.toArray(new int[0][]);
+   }//end feasibleOrders
+
+}//end BenchBackend
@@ -0,0 +1,95 @@
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Reads Product rows for benchmarks.RowMappingBenchmarks, either through
+ * executeQueryAndReturnResult's List<List<String>> plus parsing, as the
+ * services used to, or by mapping them through a RowMapper into
+ * ProductInfo records.
+ *
+ * No database is needed: both paths read the same in-memory result that
+ * keeps each value as text bytes, the way the driver receives them, so
+ * only the mapping differs.
+ *
+ */
+public class RowMappingBackend implements benchmarks.RowMapping {
+
+   private byte[][][] _data;
+
+   public void open(int rows) {
+      this._data = products(rows);
+   }//end open
+
+   public int strings() throws SQLException {
+      List<List<String>> result = Amazon.returnResult(resultSet(this._data));
+      List<CatalogService.ProductInfo> products = new ArrayList<CatalogService.ProductInfo>(result.size());
+      for (List<String> row : result) {
+         products.add(new CatalogService.ProductInfo(Integer.parseInt(row.get(0)), row.get(1).trim(),
+                                                     Integer.parseInt(row.get(2)), Double.parseDouble(row.get(3))));
+      }//end for
+      return products.size();
+   }//end strings
+
+   public int mapped() throws SQLException {
+      return Amazon.mapRows(resultSet(this._data), CatalogService.ProductInfo::map, Integer.MAX_VALUE).size();
+   }//end mapped
+
+   public long standIn() throws SQLException {
+      ResultSet rs = resultSet(this._data);
+      long sum = 0;
+      while (rs.next()) { sum += rs.getInt(1) + rs.getString(2).length() + rs.getInt(3) + (long) rs.getDouble(4); }
+      return sum;
+   }//end standIn
+
+   // storeID, productName (char(30), blank padded), numberOfUnits, pricePerUnit as text
+   private static byte[][][] products(int rows) {
+      Random random = new Random(42);
+      byte[][][] data = new byte[rows][][];
+      for (int i = 0; i < rows; ++i) {
+         String name = String.format("%-30s", "Product" + random.nextInt(1000));
+         data[i] = new byte[][] {
+            Integer.toString(1 + i / 10).getBytes(StandardCharsets.UTF_8),
+            name.getBytes(StandardCharsets.UTF_8),
+            Integer.toString(random.nextInt(500)).getBytes(StandardCharsets.UTF_8),
+            Double.toString(random.nextInt(10000) / 100.0).getBytes(StandardCharsets.UTF_8)
+         };
+      }//end for
+      return data;
+   }//end products
+
+   // a forward-only ResultSet over the rows, decoding text on each getter call like the driver does
+   private static ResultSet resultSet(byte[][][] data) {
+      ResultSetMetaData meta = (ResultSetMetaData) Proxy.newProxyInstance(RowMappingBackend.class.getClassLoader(),
+         new Class<?>[] { ResultSetMetaData.class }, (proxy, method, args) -> {
+            if (method.getName().equals("getColumnCount")) { return data.length == 0 ? 0 : data[0].length; }
+            throw new UnsupportedOperationException(method.getName());
+         });
+      int[] row = { -1 };
+      return (ResultSet) Proxy.newProxyInstance(RowMappingBackend.class.getClassLoader(),
+         new Class<?>[] { ResultSet.class }, (proxy, method, args) -> {
+            switch (method.getName()) {
+               case "next": return ++row[0] < data.length;
+               case "close": return null;
+               case "getMetaData": return meta;
+               case "getString": return new String(data[row[0]][(Integer) args[0] - 1], StandardCharsets.UTF_8);
+               case "getInt": return parseInt(data[row[0]][(Integer) args[0] - 1]);
+               case "getDouble": return Double.parseDouble(new String(data[row[0]][(Integer) args[0] - 1], StandardCharsets.US_ASCII));
+               default: throw new UnsupportedOperationException(method.getName());
+            }//end switch
+         });
+   }//end resultSet
+
+   // parses digits without building a String, as the driver's fast path does
+   private static int parseInt(byte[] text) {
+      int value = 0;
+      for (byte b : text) { value = value * 10 + (b - '0'); }
+      return value;
+   }//end parseInt
+
+}//end RowMappingBackend
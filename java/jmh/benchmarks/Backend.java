@@ -0,0 +1,62 @@
+package benchmarks;
+
+/**
+ * The operations the benchmarks time, each run on the i-th of a fixed set
+ * of random inputs drawn from BenchData.
+ *
+ * JMH only accepts benchmark classes in a named package, and classes there
+ * cannot name the application's classes, which are in the default package.
+ * BenchBackend, next to the application, implements this interface by
+ * calling the application directly, so a benchmark times the application's
+ * code plus an array read.
+ *
+ */
+public interface Backend extends AutoCloseable {
+
+   /**
+    * @return the default-package implementation
+    * @throws ReflectiveOperationException when BenchBackend is not on the class path
+    */
+   static Backend create() throws ReflectiveOperationException {
+      return (Backend) Class.forName("BenchBackend").getDeclaredConstructor().newInstance();
+   }//end create
+
+   /**
+    * @return the directory holding data/*.csv (-Dbench.data)
+    */
+   static String dataDir() {
+      return System.getProperty("bench.data", "../data");
+   }//end dataDir
+
+   /**
+    * Scales data/*.csv and draws the inputs; with a database, also loads
+    * the data into it, replacing what was there
+    *
+    * @param dataDir directory holding the CSV files
+    * @param scale number of copies of the CSV data
+    * @param db dbname, port and user of a scratch database, or null
+    * @throws Exception when the data cannot be read or loaded
+    */
+   void open(String dataDir, int scale, String[] db) throws Exception;
+
+   // without a database
+
+   double calculateDistance(int i);
+
+   int storesWithinLinearScan(int i);
+
+   int storesWithinGridIndex(int i);
+
+   // against the database given to open
+
+   int storesWithin(int i) throws Exception;
+
+   float lookupNearestPrice(int i) throws Exception;
+
+   float nearestPrice(int i) throws Exception;
+
+   int placeOrder(int i) throws Exception;
+
+   int logIn(int i) throws Exception;
+
+}//end Backend
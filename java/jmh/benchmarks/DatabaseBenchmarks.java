@@ -0,0 +1,79 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times the service calls behind viewStores, getNearestPrice, placeOrder
+ * and LogIn against a scratch database created with create_db.sh, given
+ * as -Dbench.db=<dbname>:<port>:<user>. Each trial replaces the contents
+ * of Users, Store and Product (and everything that references them) with
+ * BenchData at its scale.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class DatabaseBenchmarks {
+
+   @Param({ "1", "100", "10000" })
+   public int scale;
+
+   private Backend _backend;
+   private int _i;
+
+   @Setup(Level.Trial)
+   public void setUp() throws Exception {
+      String db = System.getProperty("bench.db");
+      if (db == null) { throw new IllegalStateException("DatabaseBenchmarks needs -Dbench.db=<dbname>:<port>:<user>"); }
+      this._backend = Backend.create();
+      this._backend.open(Backend.dataDir(), this.scale, db.split(":", 3));
+   }//end setUp
+
+   @TearDown(Level.Trial)
+   public void tearDown() throws Exception {
+      this._backend.close();
+   }//end tearDown
+
+   @Benchmark
+   public int storesWithin() throws Exception {
+      return this._backend.storesWithin(this._i++);
+   }//end storesWithin
+
+   @Benchmark
+   public float lookupNearestPrice() throws Exception {
+      return this._backend.lookupNearestPrice(this._i++);
+   }//end lookupNearestPrice
+
+   @Benchmark
+   public float nearestPriceCached() throws Exception {
+      return this._backend.nearestPrice(this._i++);
+   }//end nearestPriceCached
+
+   @Benchmark
+   public int placeOrder() throws Exception {
+      return this._backend.placeOrder(this._i++);
+   }//end placeOrder
+
+   @Benchmark
+   public int logIn() throws Exception {
+      return this._backend.logIn(this._i++);
+   }//end logIn
+
+}//end DatabaseBenchmarks
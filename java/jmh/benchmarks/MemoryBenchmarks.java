@@ -0,0 +1,65 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times the hot operations that need no database: calculateDistance, and
+ * the store radius search of viewStores both as the linear scan it used to
+ * be and through StoreIndex.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class MemoryBenchmarks {
+
+   @Param({ "1", "100", "10000" })
+   public int scale;
+
+   private Backend _backend;
+   private int _i;
+
+   @Setup(Level.Trial)
+   public void setUp() throws Exception {
+      this._backend = Backend.create();
+      this._backend.open(Backend.dataDir(), this.scale, null);
+   }//end setUp
+
+   @TearDown(Level.Trial)
+   public void tearDown() throws Exception {
+      this._backend.close();
+   }//end tearDown
+
+   @Benchmark
+   public double calculateDistance() {
+      return this._backend.calculateDistance(this._i++);
+   }//end calculateDistance
+
+   @Benchmark
+   public int storesWithinLinearScan() {
+      return this._backend.storesWithinLinearScan(this._i++);
+   }//end storesWithinLinearScan
+
+   @Benchmark
+   public int storesWithinGridIndex() {
+      return this._backend.storesWithinGridIndex(this._i++);
+   }//end storesWithinGridIndex
+
+}//end MemoryBenchmarks
@@ -0,0 +1,33 @@
+package benchmarks;
+
+/**
+ * The two ways of reading Product rows that RowMappingBenchmarks compares,
+ * implemented by RowMappingBackend next to the application (see Backend
+ * for why). Each call reads all rows given to open.
+ *
+ */
+public interface RowMapping {
+
+   /**
+    * @return the default-package implementation
+    * @throws ReflectiveOperationException when RowMappingBackend is not on the class path
+    */
+   static RowMapping create() throws ReflectiveOperationException {
+      return (RowMapping) Class.forName("RowMappingBackend").getDeclaredConstructor().newInstance();
+   }//end create
+
+   /**
+    * @param rows number of Product rows in the in-memory result
+    */
+   void open(int rows);
+
+   // List<List<String>> from executeQueryAndReturnResult, then parsed into ProductInfo
+   int strings() throws Exception;
+
+   // RowMapper straight into ProductInfo
+   int mapped() throws Exception;
+
+   // reads every column once and keeps nothing: the cost of the in-memory result itself
+   long standIn() throws Exception;
+
+}//end RowMapping
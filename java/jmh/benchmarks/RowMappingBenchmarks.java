@@ -0,0 +1,60 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares reading Product rows as List<List<String>> plus parsing with
+ * mapping them through a RowMapper into records. Scores are per row; run
+ * with the gc profiler to get allocation per row as gc.alloc.rate.norm:
+ *
+ *    gradle jmh -PjmhArgs='RowMappingBenchmarks -prof gc'
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(RowMappingBenchmarks.ROWS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RowMappingBenchmarks {
+
+   static final int ROWS = 10000;
+
+   private RowMapping _rows;
+
+   @Setup(Level.Trial)
+   public void setUp() throws Exception {
+      this._rows = RowMapping.create();
+      this._rows.open(ROWS);
+   }//end setUp
+
+   @Benchmark
+   public int stringsThenParse() throws Exception {
+      return this._rows.strings();
+   }//end stringsThenParse
+
+   @Benchmark
+   public int rowMapper() throws Exception {
+      return this._rows.mapped();
+   }//end rowMapper
+
+   @Benchmark
+   public long resultStandInOnly() throws Exception {
+      return this._rows.standIn();
+   }//end resultStandInOnly
+
+}//end RowMappingBenchmarks
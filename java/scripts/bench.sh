@@ -0,0 +1,12 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# runs the JMH benchmarks through gradle and copies the JSON results to $OUT (default bench-<date>.json)
+#    bench.sh                         benchmarks that need no database, at scales 1, 100 and 10000
+#    DB=1 bench.sh                    also against the scratch database (it is overwritten)
+#    SCALES=1,100 bench.sh            fewer scales
+OUT=${OUT:-bench-$(date +%Y%m%d-%H%M%S).json}
+INCLUDE=${DB:+.}
+(cd $DIR/.. && gradle -q jmh -PjmhArgs="-p scale=${SCALES:-1,100,10000} ${INCLUDE:-MemoryBenchmarks}" \
+     ${DB:+-PbenchDb=$USER"_project_phase_3_DB":$PGPORT:$USER}) || exit 1
+cp $DIR/../build/results/jmh/results.json $OUT
+echo "wrote $OUT"
@@ -0,0 +1,8 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# compiles the application and the tools in bench/ into java/classes; PGJDBC
+# points at the PostgreSQL driver jar, which the COPY-based loaders compile against.
+# The JMH benchmarks build with gradle (see build.gradle and bench.sh)
+PGJDBC=${PGJDBC:-$DIR/../lib/postgresql.jar}
+mkdir -p $DIR/../classes
+javac -cp $PGJDBC -d $DIR/../classes $DIR/../src/*.java $DIR/../bench/*.java
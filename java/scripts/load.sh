@@ -0,0 +1,7 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# replaces the project database's data with generated rows, e.g.
+#    load.sh --stores 100000 --users 1000000 --orders 10000000 --threads 8
+PGJDBC=${PGJDBC:-$DIR/../lib/postgresql.jar}
+$DIR/compile.sh || exit 1
+java -cp $DIR/../classes:$PGJDBC BulkLoader $USER"_project_phase_3_DB" $PGPORT $USER "$@"
@@ -13,16 +13,29 @@
 
 import java.sql.DriverManager;
 import java.sql.Connection;
-import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 import java.lang.Math;
 
 /**
@@ -32,8 +45,138 @@ import java.lang.Math;
  */
 public class Amazon {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // maximum number of prepared statements kept open per connection (-Damazon.statementCacheSize)
+   static final int STATEMENT_CACHE_SIZE = Integer.getInteger("amazon.statementCacheSize", 64);
+
+   // executions of one prepared statement before the driver switches it to a
+   // named server-side statement (-Damazon.prepareThreshold)
+   static final int PREPARE_THRESHOLD = Integer.getInteger("amazon.prepareThreshold", 3);
+
+   // bounds of the connection pool (-Damazon.pool.min, -Damazon.pool.max)
+   static final int POOL_MIN_SIZE = Integer.getInteger("amazon.pool.min", 1);
+   static final int POOL_MAX_SIZE = Integer.getInteger("amazon.pool.max", 2 * Runtime.getRuntime().availableProcessors());
+
+   // seconds an extra connection may sit idle before it is closed (-Damazon.pool.idleSeconds)
+   static final int POOL_IDLE_SECONDS = Integer.getInteger("amazon.pool.idleSeconds", 60);
+
+   // how long a session waits for a free connection (-Damazon.pool.maxWaitMillis)
+   static final long POOL_MAX_WAIT_MILLIS = Long.getLong("amazon.pool.maxWaitMillis", 5000L);
+
+   // pool of physical database connections shared by all sessions.
+   private ConnectionPool _pool = null;
+
+   // connection the current thread holds inside withConnection, if any
+   private final ThreadLocal<ConnectionPool.Pooled> _pinned = new ThreadLocal<ConnectionPool.Pooled>();
+
+   // logs the plan of each distinct statement when -Damazon.explain names a file, else null
+   private final PlanCapture _plans = PlanCapture.fromProperties();
+
+   // latency, row, byte and error counters per statement text
+   private final QueryMetrics _metrics = new QueryMetrics();
+
+   // attempts a transaction gets when it hits serialization failures or deadlocks (-Damazon.tx.maxAttempts)
+   static final int TX_MAX_ATTEMPTS = Integer.getInteger("amazon.tx.maxAttempts", 5);
+
+   // first and largest backoff between transaction attempts (-Damazon.tx.backoffMillis, -Damazon.tx.maxBackoffMillis)
+   static final long TX_BACKOFF_MILLIS = Long.getLong("amazon.tx.backoffMillis", 5L);
+   static final long TX_MAX_BACKOFF_MILLIS = Long.getLong("amazon.tx.maxBackoffMillis", 200L);
+
+   private final AtomicLong _txCommits = new AtomicLong();
+   private final AtomicLong _txSerializationFailures = new AtomicLong();
+   private final AtomicLong _txDeadlocks = new AtomicLong();
+   private final AtomicLong _txRetries = new AtomicLong();
+   private final AtomicLong _txGaveUp = new AtomicLong();
+
+   // how often table change counters are re-read (-Damazon.tableVersions.checkMillis)
+   static final long TABLE_VERSION_CHECK_MILLIS = Long.getLong("amazon.tableVersions.checkMillis", 1000L);
+
+   // rows fetched per round trip when a result is streamed through a cursor (-Damazon.fetchSize)
+   static final int FETCH_SIZE = Integer.getInteger("amazon.fetchSize", 500);
+
+   // rows per page of paged listings, 0 prints them in one go (-Damazon.pageSize),
+   // and how many earlier pages are kept for going back (-Damazon.pageHistory)
+   static final int PAGE_SIZE = Integer.getInteger("amazon.pageSize", 20);
+   static final int PAGE_HISTORY = Integer.getInteger("amazon.pageHistory", 10);
+
+   // orders on the first page of a customer's recent orders (-Damazon.recentOrders.pageSize)
+   static final int RECENT_ORDERS_PAGE_SIZE = Integer.getInteger("amazon.recentOrders.pageSize", 5);
+
+   // change counters of the tables kept in memory
+   private final TableVersions _versions = new TableVersions(this, TABLE_VERSION_CHECK_MILLIS);
+
+   // non-interactive operations the menus delegate to
+   private final StoreLocatorService _locator = new StoreLocatorService(this);
+   private final AuditWriter _audit = new AuditWriter(this);
+   private final CatalogService _catalog = new CatalogService(this, _audit);
+   private final PopularityTracker _popularity = new PopularityTracker(this);
+   private final OrderService _orders = new OrderService(this, _locator, _catalog, _popularity);
+   private final SupplyService _supply = new SupplyService(this);
+   private final SupplyRouter _router = new SupplyRouter(this);
+
+   // month partitions of Orders and ProductUpdates, in the partitioned schema mode
+   private final PartitionMaintenance _partitions = new PartitionMaintenance(this);
+
+   // old orders moved out to columnar files, counted by the popularity screens
+   private final OrderArchive _archive = new OrderArchive(this);
+
+   // row existence checks behind the menus' input validation
+   private final Existence _existence = new Existence(this);
+
+   // role and location of logged-in users, so menus do not re-read Users
+   private final SessionCache _sessionCache = new SessionCache(this);
+
+   // whether Store and Users carry the optional indexed location columns
+   private boolean _geometry = false;
+
+   // threads that asynchronous service calls run on, one per session
+   private final ExecutorService _sessions = SessionExecutor.create();
+
+   /**
+    * Work that runs against one borrowed connection.
+    */
+   public interface SqlWork<T> {
+      T run(Connection connection) throws SQLException;
+   }
+
+   /**
+    * Builds one value from the current row of a result, reading columns
+    * with the typed ResultSet getters.
+    */
+   public interface RowMapper<T> {
+      T map(ResultSet row) throws SQLException;
+   }
+
+   /**
+    * Receives the rows of a streamed query one at a time.
+    */
+   public interface RowHandler {
+      // returns false to stop reading further rows
+      boolean handle(ResultSet row) throws SQLException;
+   }
+
+   /**
+    * One user as the admin listing shows it.
+    */
+   public record UserLine(int userID, String name, String type, double latitude, double longitude) {
+      // columns map() reads, in order
+      static final String COLUMNS = "userID, name, type, latitude, longitude";
+
+      static UserLine map(ResultSet rs) throws SQLException {
+         return new UserLine(rs.getInt(1), rs.getString(2).trim(), rs.getString(3).trim(), rs.getDouble(4), rs.getDouble(5));
+      }
+   }
+
+   /**
+    * One store as the product update screen lists it.
+    */
+   public record StoreLine(int storeID, double latitude, double longitude) {
+      // columns map() reads, in order
+      static final String COLUMNS = "storeID, latitude, longitude";
+
+      static StoreLine map(ResultSet rs) throws SQLException {
+         return new StoreLine(rs.getInt(1), rs.getDouble(2), rs.getDouble(3));
+      }
+   }
 
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
@@ -57,8 +200,28 @@ public class Amazon {
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         Properties props = new Properties();
+         props.setProperty("user", user);
+         props.setProperty("password", passwd);
+         // String parameters are sent untyped, the same way the quoted literals
+         // of the old format strings were, so '5' still compares to an integer column
+         props.setProperty("stringtype", "unspecified");
+         props.setProperty("prepareThreshold", String.valueOf(PREPARE_THRESHOLD));
+         // let the driver send a batch of single-row INSERTs as multi-row INSERTs
+         props.setProperty("reWriteBatchedInserts", "true");
+
+         // open the pool of physical connections
+         this._pool = new ConnectionPool(url, props, POOL_MIN_SIZE, POOL_MAX_SIZE,
+                                         POOL_IDLE_SECONDS, POOL_MAX_WAIT_MILLIS, STATEMENT_CACHE_SIZE);
+         this._geometry = detectGeometry ();
+         this._partitions.start ();
+         if (PopularityTracker.FROM_MEMORY) {
+            // the popularity screens read the rollups until this finishes
+            submit (() -> { this._popularity.warm (); return null; }).exceptionally (e -> {
+               System.err.println ("Popularity warm-up failed, reading the rollups instead: " + e.getCause ().getMessage ());
+               return null;
+            });
+         }//end if
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -69,89 +232,414 @@ public class Amazon {
 
    // Method to calculate euclidean distance between two latitude, longitude pairs. 
    public double calculateDistance (double lat1, double long1, double lat2, double long2){
+      return distance(lat1, long1, lat2, long2);
+   }
+
+   // calculateDistance without an instance, for code that has no connection
+   static double distance (double lat1, double long1, double lat2, double long2){
       double t1 = (lat1 - lat2) * (lat1 - lat2);
       double t2 = (long1 - long2) * (long1 - long2);
       return Math.sqrt(t1 + t2); 
    }
+
+   /**
+    * Method to run some work on a single pooled connection. The connection
+    * stays pinned to the calling thread until the work returns, so every
+    * execute method called from inside the work uses the same connection.
+    * Nested calls reuse the connection that is already pinned.
+    *
+    * @param work the statements to run
+    * @return whatever the work returns
+    * @throws java.sql.SQLException when no connection is free or the work fails
+    */
+   public <T> T withConnection (SqlWork<T> work) throws SQLException {
+      ConnectionPool.Pooled pinned = this._pinned.get ();
+      if (pinned != null)
+         return work.run (pinned.connection);
+
+      pinned = this._pool.borrow ();
+      this._pinned.set (pinned);
+      try {
+         return work.run (pinned.connection);
+      } finally {
+         this._pinned.remove ();
+         this._pool.release (pinned);
+      }
+   }//end withConnection
+
+   /**
+    * Method to run some work as one transaction on a single pooled
+    * connection. The transaction commits when the work returns and rolls
+    * back when it throws. Serialization failures and deadlocks are retried
+    * with exponential backoff, up to TX_MAX_ATTEMPTS attempts, so the work
+    * must be safe to run again. Called inside another transaction, the work
+    * simply joins it.
+    *
+    * @param isolation a java.sql.Connection TRANSACTION_* level
+    * @param work the statements to run
+    * @return whatever the work returns
+    * @throws java.sql.SQLException when the work fails or keeps conflicting
+    */
+   public <T> T inTransaction (int isolation, SqlWork<T> work) throws SQLException {
+      ConnectionPool.Pooled pinned = this._pinned.get ();
+      if (pinned != null && !pinned.connection.getAutoCommit ())
+         return work.run (pinned.connection);
+
+      for (int attempt = 1; ; ++attempt) {
+         try {
+            T result = withConnection (c -> {
+               int previous = c.getTransactionIsolation ();
+               c.setAutoCommit (false);
+               if (previous != isolation) c.setTransactionIsolation (isolation);
+               try {
+                  T value = work.run (c);
+                  c.commit ();
+                  return value;
+               } catch (SQLException | RuntimeException e) {
+                  c.rollback ();
+                  throw e;
+               } finally {
+                  c.setAutoCommit (true);
+                  if (previous != isolation) c.setTransactionIsolation (previous);
+               }
+            });
+            this._txCommits.incrementAndGet ();
+            return result;
+         } catch (SQLException e) {
+            if ("40001".equals (e.getSQLState ())) this._txSerializationFailures.incrementAndGet ();
+            else if ("40P01".equals (e.getSQLState ())) this._txDeadlocks.incrementAndGet ();
+            else throw e;
+
+            if (attempt >= TX_MAX_ATTEMPTS) {
+               this._txGaveUp.incrementAndGet ();
+               throw e;
+            }
+            this._txRetries.incrementAndGet ();
+            backoff (attempt);
+         }
+      }
+   }//end inTransaction
+
+   /**
+    * Method to run some work as one READ COMMITTED transaction.
+    *
+    * @see #inTransaction(int, SqlWork)
+    */
+   public <T> T inTransaction (SqlWork<T> work) throws SQLException {
+      return inTransaction (Connection.TRANSACTION_READ_COMMITTED, work);
+   }//end inTransaction
+
+   // sleeps a random time up to an exponentially growing, capped bound
+   private static void backoff (int attempt) throws SQLException {
+      long bound = Math.min (TX_MAX_BACKOFF_MILLIS, TX_BACKOFF_MILLIS << Math.min (attempt - 1, 20));
+      try {
+         Thread.sleep (ThreadLocalRandom.current ().nextLong (bound + 1));
+      } catch (InterruptedException e) {
+         Thread.currentThread ().interrupt ();
+         throw new SQLException ("Interrupted while retrying a transaction");
+      }
+   }//end backoff
+
+   /**
+    * Method to check whether the database was created with the optional
+    * geometry columns of create_tables.sql (psql -v geo=1).
+    *
+    * @return true when Store has a location column
+    * @throws java.sql.SQLException when the catalog cannot be read
+    */
+   private boolean detectGeometry () throws SQLException {
+      return executeQuery ("SELECT 1 FROM information_schema.columns WHERE table_schema = current_schema() AND table_name = 'store' AND column_name = 'location'") > 0;
+   }//end detectGeometry
+
+   // true when store searches can run in the database on the GiST-indexed location column
+   public boolean hasGeometry() { return this._geometry; }
+
+   TableVersions versions() { return this._versions; }
+   QueryMetrics metrics() { return this._metrics; }
+   public StoreLocatorService locator() { return this._locator; }
+   public CatalogService catalog() { return this._catalog; }
+   public OrderService orders() { return this._orders; }
+   public SupplyService supply() { return this._supply; }
+   public SupplyRouter router() { return this._router; }
+   public SessionCache sessions() { return this._sessionCache; }
+   public PopularityTracker popularity() { return this._popularity; }
+   public Existence existence() { return this._existence; }
+   public PartitionMaintenance partitions() { return this._partitions; }
+   public OrderArchive archive() { return this._archive; }
+
+   /**
+    * Method to run a service call on its own session thread (a virtual
+    * thread where the JVM has them), so many simulated users can be driven
+    * at once.
+    *
+    * @param call the service call
+    * @return a future completed with the call's result or its exception
+    */
+   public <T> CompletableFuture<T> submit (Callable<T> call) {
+      return CompletableFuture.supplyAsync (() -> {
+         try {
+            return call.call ();
+         } catch (Exception e) {
+            throw new CompletionException (e);
+         }
+      }, this._sessions);
+   }//end submit
+
+   /**
+    * Method to look up the cached prepared statement for an SQL string on the
+    * connection pinned to this thread and bind its '?' placeholders in order.
+    * Must be called from inside withConnection.
+    *
+    * @param sql the input SQL string
+    * @param params values for the placeholders
+    * @return the bound statement
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   PreparedStatement prepare (String sql, Object... params) throws SQLException {
+      ConnectionPool.Pooled pinned = this._pinned.get ();
+      if (pinned == null)
+         throw new SQLException ("prepare called without a pinned connection");
+      if (this._plans != null)
+         this._plans.capture (pinned.connection, sql, params);
+      PreparedStatement stmt = pinned.statements.prepare (sql);
+      for (int i = 0; i < params.length; ++i)
+         stmt.setObject (i + 1, params[i]);
+      return stmt;
+   }//end prepare
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
     * @param sql the input SQL string
+    * @param params values for the '?' placeholders of sql
+    * @return the number of rows affected
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the update instruction
-      stmt.executeUpdate (sql);
-
-      // close the instruction
-      stmt.close ();
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      QueryMetrics.Template metrics = this._metrics.template (sql);
+      long start = System.nanoTime ();
+      try {
+         // issues the update instruction through the cached statement
+         int rowCount = withConnection (c -> prepare (sql, params).executeUpdate ());
+         metrics.record (System.nanoTime () - start, rowCount);
+         return rowCount;
+      } catch (SQLException e) {
+         metrics.error (System.nanoTime () - start);
+         throw e;
+      }
    }//end executeUpdate
 
+   /**
+    * Method to execute one update SQL statement for many rows, sent to the
+    * DBMS as a single batch.
+    *
+    * @param sql the input SQL string
+    * @param rows one array of '?' values per execution of sql
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public long executeBatch (String sql, List<Object[]> rows) throws SQLException {
+      QueryMetrics.Template metrics = this._metrics.template (sql);
+      long start = System.nanoTime ();
+      try {
+         long rowCount = withConnection (c -> {
+            PreparedStatement stmt = prepare (sql);
+            for (Object[] params : rows) {
+               for (int i = 0; i < params.length; ++i)
+                  stmt.setObject (i + 1, params[i]);
+               stmt.addBatch ();
+            }//end for
+            long affected = 0;
+            for (int n : stmt.executeBatch ())
+               affected += Math.max (n, 0);
+            return affected;
+         });
+         metrics.record (System.nanoTime () - start, rowCount);
+         return rowCount;
+      } catch (SQLException e) {
+         metrics.error (System.nanoTime () - start);
+         throw e;
+      }
+   }//end executeBatch
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and outputs the results to
-    * standard out.
+    * standard out. Rows are streamed through a cursor and written through
+    * a buffer, so memory use does not grow with the size of the result.
     *
     * @param query the input query string
+    * @param params values for the '?' placeholders of query
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+   public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+      PrintWriter out = new PrintWriter (new BufferedWriter (new OutputStreamWriter (System.out), 1 << 16));
+      boolean[] outputHeader = { true };
+      long[] bytes = { 0 };
+      out.println ();
+      try {
+         int rowCount = executeQueryAndStream (query, rs -> {
+            if (outputHeader[0]) {
+               out.println (formatHeader (rs.getMetaData ()));
+               outputHeader[0] = false;
+            }
+            String row = formatRow (rs);
+            bytes[0] += row.length ();
+            out.println (row);
+            return true;
+         }, params);
+         this._metrics.template (query).addBytes (bytes[0]);
+         return rowCount;
+      } finally {
+         out.println ();
+         out.flush ();
+      }
+   }//end executeQueryAndPrintResult
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+   /**
+    * Method to show a keyset-paged listing page by page, each page read by
+    * its own query (see KeysetPager). The user can change the page size at
+    * the page prompt.
+    *
+    * @param pageSize rows per page, 0 or less prints the listing in one go
+    * @param header column header line
+    * @param source reads the page after a key
+    * @param format turns a row into its line
+    * @return the number of rows shown
+    * @throws java.sql.SQLException when a page cannot be read
+    */
+   public <T, K> int browsePages (int pageSize, String header, KeysetPager.Source<T, K> source, Function<T, String> format) throws SQLException {
+      KeysetPager pager = new KeysetPager (in, new PrintWriter (new OutputStreamWriter (System.out)), pageSize, PAGE_HISTORY);
+      return pager.browse (header, source, format);
+   }//end browsePages
 
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
+   /**
+    * Method to read one page of Users in userID order, seeking past the
+    * last userID of the previous page on the primary key.
+    *
+    * @param afterUserID the last userID of the previous page, null for the first page
+    * @param pageSize users per page
+    * @return the page, whose next key is null when no users follow
+    * @throws java.sql.SQLException when the lookup fails
+    */
+   public KeysetPager.Page<UserLine, Integer> users (Integer afterUserID, int pageSize) throws SQLException {
+      int limit = Math.max (1, pageSize);
+      List<UserLine> rows = afterUserID == null
+         ? query ("SELECT " + UserLine.COLUMNS + " FROM Users ORDER BY userID LIMIT ?", UserLine::map, limit + 1)
+         : query ("SELECT " + UserLine.COLUMNS + " FROM Users WHERE userID > ? ORDER BY userID LIMIT ?", UserLine::map, afterUserID, limit + 1);
+      return KeysetPager.Page.of (rows, limit, UserLine::userID);
+   }//end users
 
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      System.out.println();
-      while (rs.next()){
-		 if(outputHeader){
-			for(int i = 1; i <= numCol; i++){
-			System.out.print(rsmd.getColumnName(i) + "\t");
-			}
-			System.out.println();
-			outputHeader = false;
-		 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      System.out.println();
-      stmt.close ();
-      return rowCount;
-   }//end executeQuery
+   /**
+    * Method to read one page of stores in storeID order, seeking past the
+    * last storeID of the previous page on the primary key.
+    *
+    * @param managerID only the stores of this manager, null for every store
+    * @param afterStoreID the last storeID of the previous page, null for the first page
+    * @param pageSize stores per page
+    * @return the page, whose next key is null when no stores follow
+    * @throws java.sql.SQLException when the lookup fails
+    */
+   public KeysetPager.Page<StoreLine, Integer> stores (Integer managerID, Integer afterStoreID, int pageSize) throws SQLException {
+      int limit = Math.max (1, pageSize);
+      int after = afterStoreID == null ? Integer.MIN_VALUE : afterStoreID;
+      List<StoreLine> rows = managerID == null
+         ? query ("SELECT " + StoreLine.COLUMNS + " FROM Store WHERE storeID > ? ORDER BY storeID LIMIT ?", StoreLine::map, after, limit + 1)
+         : query ("SELECT " + StoreLine.COLUMNS + " FROM Store WHERE managerID = ? AND storeID > ? ORDER BY storeID LIMIT ?", StoreLine::map, managerID, after, limit + 1);
+      return KeysetPager.Page.of (rows, limit, StoreLine::storeID);
+   }//end stores
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and hand
+    * its rows to a handler as they arrive. The query runs in a transaction
+    * so the driver reads it through a cursor FETCH_SIZE rows at a time
+    * instead of loading the whole result first. The time the handler
+    * spends on the rows is left out of the query's recorded latency.
+    * The transaction stays open until the handler is done, so handlers
+    * must not wait on the user; interactive listings use browsePages.
+    *
+    * @param query the input query string
+    * @param handler called once per row until it returns false
+    * @param params values for the '?' placeholders of query
+    * @return the number of rows handed to the handler
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndStream (String query, RowHandler handler, Object... params) throws SQLException {
+      return inTransaction (c -> {
+         QueryMetrics.Template metrics = this._metrics.template (query);
+         long start = System.nanoTime (), handling = 0;
+         PreparedStatement stmt = prepare (query, params);
+         stmt.setFetchSize (FETCH_SIZE);
+         int rowCount = 0;
+         try (ResultSet rs = stmt.executeQuery ()) {
+            while (rs.next ()) {
+               ++rowCount;
+               long handed = System.nanoTime ();
+               boolean more = handler.handle (rs);
+               handling += System.nanoTime () - handed;
+               if (!more) break;
+            }
+         } catch (SQLException e) {
+            metrics.error (System.nanoTime () - start - handling);
+            throw e;
+         } finally {
+            // the statement is cached, leave it as other callers expect it
+            stmt.setFetchSize (0);
+         }
+         metrics.record (System.nanoTime () - start - handling, rowCount);
+         return rowCount;
+      });
+   }//end executeQueryAndStream
+
+   // column names of a result, tab separated
+   static String formatHeader (ResultSetMetaData rsmd) throws SQLException {
+      StringBuilder line = new StringBuilder ();
+      for (int i = 1; i <= rsmd.getColumnCount (); ++i)
+         line.append (rsmd.getColumnName (i)).append ('\t');
+      return line.toString ();
+   }//end formatHeader
+
+   // values of the current row, tab separated
+   static String formatRow (ResultSet rs) throws SQLException {
+      StringBuilder line = new StringBuilder ();
+      int numCol = rs.getMetaData ().getColumnCount ();
+      for (int i = 1; i <= numCol; ++i)
+         line.append (rs.getString (i)).append ('\t');
+      return line.toString ();
+   }//end formatRow
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the results as
-    * a list of records. Each record in turn is a list of attribute values
+    * a list of records. Each record in turn is a list of attribute values.
+    * Callers that parse the values should use query with a RowMapper.
     *
     * @param query the input query string
+    * @param params values for the '?' placeholders of query
     * @return the query result as a list of records
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      QueryMetrics.Template metrics = this._metrics.template (query);
+      long start = System.nanoTime ();
+      try {
+         List<List<String>> result = withConnection (c -> returnResult (prepare (query, params).executeQuery ()));
+         metrics.record (System.nanoTime () - start, result.size ());
+         long bytes = 0;
+         for (List<String> record : result)
+            for (String value : record)
+               if (value != null) bytes += value.length ();
+         metrics.addBytes (bytes);
+         return result;
+      } catch (SQLException e) {
+         metrics.error (System.nanoTime () - start);
+         throw e;
+      }
+   }//end executeQueryAndReturnResult
 
+   static List<List<String>> returnResult (ResultSet rs) throws SQLException {
       /*
        ** obtains the metadata object for the returned result set.  The metadata
        ** contains row and column info.
@@ -169,64 +657,270 @@ public class Amazon {
 			record.add(rs.getString (i));
         result.add(record);
       }//end while
-      stmt.close ();
+      rs.close ();
       return result;
-   }//end executeQueryAndReturnResult
+   }//end returnResult
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
-    * method issues the query to the DBMS and returns the number of results
+    * method issues the query to the DBMS and returns one value per row,
+    * built by the mapper straight from the typed column getters.
     *
     * @param query the input query string
-    * @return the number of rows returned
+    * @param mapper builds a value from each row
+    * @param params values for the '?' placeholders of query
+    * @return the mapped rows, in result order
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+   public <T> List<T> query (String query, RowMapper<T> mapper, Object... params) throws SQLException {
+      return queryMapped (query, mapper, Integer.MAX_VALUE, params);
+   }//end query
 
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
-
-       int rowCount = 0;
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and map
+    * only its first row.
+    *
+    * @param query the input query string
+    * @param mapper builds a value from the row
+    * @param params values for the '?' placeholders of query
+    * @return the mapped first row, or null when the query returns no rows
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> T queryFirst (String query, RowMapper<T> mapper, Object... params) throws SQLException {
+      List<T> rows = queryMapped (query, mapper, 1, params);
+      return rows.isEmpty () ? null : rows.get (0);
+   }//end queryFirst
+
+   // runs a query, maps up to limit rows and records the call
+   private <T> List<T> queryMapped (String query, RowMapper<T> mapper, int limit, Object... params) throws SQLException {
+      QueryMetrics.Template metrics = this._metrics.template (query);
+      long start = System.nanoTime ();
+      try {
+         List<T> rows = withConnection (c -> mapRows (prepare (query, params).executeQuery (), mapper, limit));
+         metrics.record (System.nanoTime () - start, rows.size ());
+         return rows;
+      } catch (SQLException e) {
+         metrics.error (System.nanoTime () - start);
+         throw e;
+      }
+   }//end queryMapped
+
+   // maps up to limit rows of a result and closes it
+   static <T> List<T> mapRows (ResultSet rs, RowMapper<T> mapper, int limit) throws SQLException {
+      try {
+         List<T> result = new ArrayList<T> ();
+         while (result.size () < limit && rs.next ())
+            result.add (mapper.map (rs));
+         return result;
+      } finally {
+         rs.close ();
+      }
+   }//end mapRows
 
-       // iterates through the result set and count nuber of results.
-       while (rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and returns the number of results
+    *
+    * @param query the input query string
+    * @param params values for the '?' placeholders of query
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery (String query, Object... params) throws SQLException {
+       QueryMetrics.Template metrics = this._metrics.template (query);
+       long start = System.nanoTime ();
+       try {
+          int rowCount = withConnection (c -> {
+             // issues the query instruction
+             ResultSet rs = prepare (query, params).executeQuery ();
+
+             int count = 0;
+
+             // iterates through the result set and count nuber of results.
+             while (rs.next()){
+                count++;
+             }//end while
+             rs.close ();
+             return count;
+          });
+          metrics.record (System.nanoTime () - start, rowCount);
+          return rowCount;
+       } catch (SQLException e) {
+          metrics.error (System.nanoTime () - start);
+          throw e;
+       }
    }
 
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current
-    * value of sequence used for autogenerated keys
+    * value of sequence used for autogenerated keys. currval is tracked per
+    * connection, so call this inside the same withConnection as the insert.
     *
     * @param sequence name of the DB sequence
     * @return current value of a sequence
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
-
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+	return withConnection (c -> {
+		ResultSet rs = prepare ("Select currval(?)", sequence).executeQuery ();
+		try {
+			if (rs.next())
+				return rs.getInt(1);
+			return -1;
+		} finally {
+			rs.close ();
+		}
+	});
    }
 
    /**
-    * Method to close the physical connection if it is open.
+    * Method to report how well the prepared statement cache is doing.
+    *
+    * @return the cache hit and miss counters as one line of text
+    */
+   public String getStatementCacheStats() {
+      return String.format("statements cached: %d, hits: %d, misses: %d, evictions: %d",
+         this._pool.statementCacheTotal(StatementCache::size), this._pool.statementCacheTotal(StatementCache::hits),
+         this._pool.statementCacheTotal(StatementCache::misses), this._pool.statementCacheTotal(StatementCache::evictions));
+   }//end getStatementCacheStats
+
+   /**
+    * Method to report the size of the connection pool and how long sessions
+    * waited to borrow from it.
+    *
+    * @return the pool counters as one line of text
+    */
+   public String getPoolStats() {
+      long borrows = this._pool.borrows();
+      return String.format("connections: %d open, %d idle, %d max; borrows: %d, avg wait: %.3f ms, max wait: %.3f ms; created: %d, evicted: %d, invalid: %d",
+         this._pool.size(), this._pool.idle(), this._pool.maxSize(), borrows,
+         borrows == 0 ? 0.0 : this._pool.totalWaitNanos() / 1e6 / borrows, this._pool.maxWaitNanos() / 1e6,
+         this._pool.created(), this._pool.evicted(), this._pool.invalidated());
+   }//end getPoolStats
+
+   /**
+    * Method to report how transactions fared under contention, and how many
+    * orders found their stock already taken.
+    *
+    * @return the transaction counters as one line of text
+    */
+   public String getTransactionStats() {
+      return String.format("transactions committed: %d; serialization failures: %d, deadlocks: %d, retries: %d, gave up: %d; stock conflicts: %d",
+         this._txCommits.get(), this._txSerializationFailures.get(), this._txDeadlocks.get(), this._txRetries.get(), this._txGaveUp.get(),
+         this._orders.stockConflicts());
+   }//end getTransactionStats
+
+   /**
+    * Method to report how often menu refreshes were served from the session cache.
+    *
+    * @return the session cache counters as one line of text
+    */
+   public String getSessionStats() {
+      SessionCache sessions = this._sessionCache;
+      return String.format("sessions cached: %d; hits: %d, loads: %d, invalidations: %d",
+         sessions.size(), sessions.hits(), sessions.loads(), sessions.invalidations());
+   }//end getSessionStats
+
+   /**
+    * Method to report the in-memory store index. Build and search latencies
+    * appear in getQueryStats.
+    *
+    * @return the index counters as one line of text
+    */
+   public String getIndexStats() {
+      return this._locator.indexStats();
+   }//end getIndexStats
+
+   /**
+    * Method to report latency percentiles, rows, bytes and errors of every
+    * statement run through the execute and query methods.
+    *
+    * @return one line per statement, the most total time first
+    */
+   public String getQueryStats() {
+      return this._metrics.report ();
+   }//end getQueryStats
+
+   /**
+    * Method to report how the ProductUpdates audit rows are being written.
+    * Batch latencies appear in getQueryStats under the queued insert.
+    *
+    * @return the audit writer counters as one line of text
+    */
+   public String getAuditStats() {
+      AuditWriter audit = this._audit;
+      if (audit.durable()) { return "audit: durable, written with each change"; }
+      return String.format("audit: async; queued: %d, written: %d in %d batches, failed: %d, waiting: %d; blocked: %d, written by caller: %d",
+         audit.queued(), audit.written(), audit.batches(), audit.failed(), audit.queueDepth(), audit.blocked(), audit.overflows());
+   }//end getAuditStats
+
+   /**
+    * Method to report how supply requests were routed to warehouses.
+    * Routing and dispatch latencies appear in getQueryStats.
+    *
+    * @return the router counters as one line of text
+    */
+   public String getRoutingStats() {
+      return this._router.routingStats();
+   }//end getRoutingStats
+
+   /**
+    * Method to report how often product lists were served from the catalog cache.
+    *
+    * @return the catalog cache counters as one line of text
+    */
+   public String getCatalogStats() {
+      CatalogCache catalog = this._catalog.cache();
+      long hits = catalog.hits(), loads = catalog.loads();
+      return String.format("stores cached: %d; hits: %d, loads: %d, hit ratio: %.3f; invalidations: %d, evictions: %d",
+         catalog.size(), hits, loads, hits + loads == 0 ? 0.0 : (double) hits / (hits + loads), catalog.invalidations(), catalog.evictions());
+   }//end getCatalogStats
+
+   /**
+    * Method to report the month partitions kept by PartitionMaintenance.
+    * Maintenance run times appear in getQueryStats.
+    *
+    * @return the partition counters as one line of text
+    */
+   public String getPartitionStats() {
+      return this._partitions.partitionStats();
+   }//end getPartitionStats
+
+   /**
+    * Method to report the archived orders and the scans of them.
+    *
+    * @return the archive counters as one line of text
+    * @throws java.sql.SQLException when an archive file cannot be read
+    */
+   public String getArchiveStats() throws SQLException {
+      return this._archive.archiveStats();
+   }//end getArchiveStats
+
+   /**
+    * Method to close the physical connections if they are open. Supply
+    * requests still held by the router are dispatched first.
     */
    public void cleanup(){
-      try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
-      }catch (SQLException e){
-         // ignored.
-      }//end try
+      this._sessions.shutdown ();
+      // routed supply requests still held need the pool to be placed
+      if (this._pool != null && this._router.pending () > 0){
+         SupplyRouter.DispatchResult held = this._router.dispatch ();
+         for (String problem : held.problems ())
+            System.err.println ("Supply request not placed: " + problem);
+         if (held.held () > 0)
+            System.err.println (held.held () + " held supply requests kept conflicting and were not placed");
+      }//end if
+      this._partitions.close ();
+      // queued audit rows need the pool to be written
+      this._audit.close ();
+      if (this._pool != null){
+         this._pool.close ();
+      }//end if
+      if (this._plans != null){
+         this._plans.close ();
+      }//end if
+      this._metrics.close ();
    }//end cleanup
 
    /**
@@ -275,7 +969,8 @@ public class Amazon {
             if (authorisedUser != -1) {
               boolean usermenu = true;
               while(usermenu) {
-                // User Type checked on every refresh of the menu screen for partially realistic security
+                // User Type checked on every refresh of the menu screen for partially realistic security,
+                // served from the session cache until it expires or an admin changes the user
                 userType = verifyUserType(esql, authorisedUser);
                 
                 System.out.println("\nMAIN MENU");
@@ -287,6 +982,7 @@ public class Amazon {
                         System.out.println("2. View Product List");
                         System.out.println("3. Place an Order");
                         System.out.println("4. View 5 Most Recent Orders");
+                        System.out.println("5. Place a Multi-Item Order");
                         System.out.println(".........................");
                         System.out.println("20. Log Out");
                         
@@ -295,6 +991,7 @@ public class Amazon {
                             case 2: viewProducts(esql); break;
                             case 3: placeOrder(esql, authorisedUser); break;
                             case 4: viewRecentOrders(esql, authorisedUser); break;
+                            case 5: placeCartOrder(esql, authorisedUser); break;
 
                             case 20: usermenu = false; break;
                             default: System.out.println("Unrecognized choice."); break;
@@ -309,6 +1006,8 @@ public class Amazon {
                         System.out.println("6. View 5 Most Popular Customers");
                         System.out.println("7. Place Product Supply Request to Warehouse");
                         System.out.println("8. View Orders");
+                        System.out.println("9. Place Supply Requests from a CSV File");
+                        System.out.println("10. Dispatch Held Supply Requests");
                         System.out.println(".........................");
                         System.out.println("20. Log Out");
 
@@ -321,6 +1020,8 @@ public class Amazon {
                             case 6: viewPopularCustomers(esql, authorisedUser); break;
                             case 7: placeProductSupplyRequests(esql, authorisedUser); break;
                             case 8: viewStoreOrders(esql, authorisedUser); break;
+                            case 9: placeBulkSupplyRequests(esql, authorisedUser); break;
+                            case 10: dispatchSupplyRequests(esql); break;
 
                             case 20: usermenu = false; break;
                             default: System.out.println("Unrecognized choice."); break;
@@ -330,6 +1031,8 @@ public class Amazon {
                     case "admin":
                         System.out.println("2. View/Update User Information");
                         System.out.println("3. View/Update Product");
+                        System.out.println("4. Archive Old Orders");
+                        System.out.println("5. View Statistics");
                         System.out.println(".........................");
                         System.out.println("20. Log Out");
 
@@ -337,6 +1040,8 @@ public class Amazon {
                             case 1: viewStores(esql, authorisedUser); break;
                             case 2: adminUpdateUser(esql); break;
                             case 3: updateProduct(esql, authorisedUser, 1); break;
+                            case 4: archiveOldOrders(esql); break;
+                            case 5: viewStatistics(esql); break;
 
                             case 20: usermenu = false; break;
                             default: System.out.println("Unrecognized choice."); break;
@@ -424,9 +1129,9 @@ public class Amazon {
 
          String type="customer";
 
-	 String query = String.format("INSERT INTO USERS (name, password, latitude, longitude, type) VALUES ('%s','%s', %s, %s,'%s')", name, password, latitude, longitude, type);
+	 String query = "INSERT INTO USERS (name, password, latitude, longitude, type) VALUES (?, ?, ?, ?, ?)";
 
-         esql.executeUpdate(query);
+         esql.executeUpdate(query, name, password, latitude, longitude, type);
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -445,10 +1150,9 @@ public class Amazon {
          System.out.print("\tEnter password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM USERS WHERE name = '%s' AND password = '%s'", name, password);
-         List<List<String>> userInfo = esql.executeQueryAndReturnResult(query);
-	 if (!userInfo.isEmpty()) { // Return userID if user exists
-	    return Integer.parseInt(userInfo.get(0).get(0));
+         SessionCache.Session session = esql.sessions().authenticate(name, password);
+	 if (session != null) { // Return userID if user exists
+	    return session.userID();
          }
          System.out.println("\nUnrecognized username or incorrect password entered.\n");
          return -1;
@@ -461,14 +1165,14 @@ public class Amazon {
 // Rest of the functions definition go in here
 
    /*
-    * Check user type (customer, manager, admin), based on userID from logged in user
+    * Check user type (customer, manager, admin), based on userID from logged in user.
+    * Read through the session cache, so most menu refreshes skip the database.
     * @return String representing user type
     **/
    public static String verifyUserType(Amazon esql, int userID) {
         try{
-            String query = String.format("SELECT type FROM USERS WHERE userID = '%s'", String.valueOf(userID));
-            String result = (esql.executeQueryAndReturnResult(query)).get(0).get(0).trim();
-            return result;
+            SessionCache.Session session = esql.sessions().get(userID);
+            return session == null ? null : session.role();
         }catch(Exception e){
             System.err.println(e.getMessage());
             return null;
@@ -482,8 +1186,7 @@ public class Amazon {
 
     public static boolean nameUnique(Amazon esql, String name) {
         try{
-            String query = String.format("SELECT * FROM USERS WHERE name = '%s'", name);
-            if (esql.executeQuery(query) == 0) {
+            if (!esql.existence().exists(new Existence.Check("Users", "name = ?", name))) {
                 return true;
             }
             else {
@@ -542,8 +1245,7 @@ public class Amazon {
 
     public static boolean verifyInput(Amazon esql, String table, String column, String input) {
         try{
-            String query = String.format("SELECT * FROM %s WHERE %s = '%s'", table, column, input);
-            if (esql.executeQuery(query) != 0) { return true; }
+            if (esql.existence().exists(new Existence.Check(table, column + " = ?", input))) { return true; }
             else { 
                 System.out.println("Invalid input. Entered value does not exist in database.");
                 return false; } // Shouldn't reach this one
@@ -560,8 +1262,7 @@ public class Amazon {
 
     public static boolean verifyManager(Amazon esql, int managerID, int storeID) {
         try{
-            String query = String.format("SELECT * FROM Store WHERE storeID = '%d' AND managerID = '%d'", storeID, managerID);
-            if (esql.executeQuery(query) != 0) { return true; }
+            if (esql.existence().exists(new Existence.Check("Store", "storeID = ? AND managerID = ?", storeID, managerID))) { return true; }
             else {
                 System.out.println("Invalid input. You do not manage this store");
                 return false; 
@@ -579,9 +1280,7 @@ public class Amazon {
 
     public static boolean checkStore(Amazon esql, int storeID, String productName) {
         try{
-            String query = String.format("SELECT * FROM Product WHERE storeID = '%d' AND productName = '%s'", storeID, productName);
-            if (esql.executeQuery(query) != 0) { return true; }
-            else { return false; }
+            return esql.catalog().carries(storeID, productName);
         }catch(SQLException e){
             System.err.println(e.getMessage());
             return false;
@@ -595,35 +1294,22 @@ public class Amazon {
     
     public static float getNearestPrice(Amazon esql, int storeID, String productName) {
         try{
-            // Get location of given store
-            String query = String.format("SELECT latitude, longitude FROM Store WHERE storeID = '%d'", storeID);
-            List<List<String>> givenStore = esql.executeQueryAndReturnResult(query);
-            double storeLat = Double.parseDouble(givenStore.get(0).get(0));
-            double storeLon = Double.parseDouble(givenStore.get(0).get(1));
-
-            // Find other stores selling product
-            query = String.format("SELECT s.latitude, s.longitude, p.pricePerUnit FROM Store s JOIN Product p ON s.storeID = p.storeID WHERE s.storeID != '%d' AND p.productName = '%s'", storeID, productName);
-            List<List<String>> otherStores = esql.executeQueryAndReturnResult(query);
-            double currDistance = 0;
-            double minDistance = Integer.MAX_VALUE;
-            float nearestPrice = 0;
-
-            // Check which store has the closest distance to the given store
-            for (int i = 0; i < otherStores.size(); ++i) {
-                currDistance = esql.calculateDistance(storeLat, storeLon, Double.parseDouble(otherStores.get(i).get(0)), Double.parseDouble(otherStores.get(i).get(1)));
-                if (currDistance < minDistance) {
-                    minDistance = currDistance;
-                    nearestPrice = Float.parseFloat(otherStores.get(i).get(2));
-                }
-            }
-
-            return nearestPrice;
+            return esql.supply().nearestPrice(storeID, productName);
         }catch(Exception e){
             System.err.println(e.getMessage());
             return -1;
         }
     }
 
+    /*
+     * Text form of a price for binding, so the float column receives the value as entered rather than its widened binary form
+     * @return String holding the price
+     **/
+
+    public static String priceText(float price) {
+        return Float.toString(price);
+    }
+
     public static boolean validateLocationInput(String location, boolean latitude) {
         String regex = "";
         
@@ -639,28 +1325,42 @@ public class Amazon {
         }
     }
 
+   /*
+    * Print stores with their distance, in the layout shared by the store and order screens
+    * @return boolean representing whether any store was printed
+    **/
+
+   public static boolean printStores(List<StoreLocatorService.NearbyStore> stores) {
+        System.out.print("storeID\tdistance (miles)");
+        System.out.println();
+        for (StoreLocatorService.NearbyStore store : stores) {
+            System.out.print(String.format("%d\t%.2f", store.storeID(), store.distance()));
+            System.out.println();
+        }
+        if (stores.isEmpty()) {
+            System.out.print("No stores found within 30 miles of your location.");
+            System.out.println();
+            return false;
+        }
+        return true;
+    }
+
+   /*
+    * Print a store's products in the same tab separated layout as executeQueryAndPrintResult
+    **/
+
+   public static void printProducts(List<CatalogService.ProductInfo> products) {
+        System.out.println();
+        if (!products.isEmpty()) { System.out.println("productname\tnumberofunits\tpriceperunit\t"); }
+        for (CatalogService.ProductInfo product : products) {
+            System.out.println(product.productName() + "\t" + product.numberOfUnits() + "\t" + product.pricePerUnit() + "\t");
+        }
+        System.out.println();
+    }
+
    public static void viewStores(Amazon esql, int authorisedUser) {
         try{         
-            List<List<String>> userLocation = esql.executeQueryAndReturnResult(String.format("SELECT latitude, longitude FROM Users WHERE userID = '%d'", authorisedUser));
-            double userLat = Double.parseDouble(userLocation.get(0).get(0));
-            double userLong = Double.parseDouble(userLocation.get(0).get(1));
-            List<List<String>> storeList = esql.executeQueryAndReturnResult("SELECT storeID, latitude, longitude FROM Store");
-            boolean storesFound = false;
-            System.out.print("storeID\tdistance (miles)");
-            System.out.println();
-            for (int i = 0; i < storeList.size(); ++i) {
-                double distance = esql.calculateDistance(userLat, userLong, Double.parseDouble(storeList.get(i).get(1)), Double.parseDouble(storeList.get(i).get(2))); 
-                if (distance <= 30) {
-                    System.out.print(String.format("%s\t%.2f", storeList.get(i).get(0), distance));
-                    System.out.println();
-                    storesFound = true;
-                }
-            }
-            
-            if (!storesFound) {
-                System.out.print("No stores found within 30 miles of your location.");
-                System.out.println();
-            }
+            printStores(esql.locator().storesWithin(authorisedUser, StoreLocatorService.DEFAULT_RADIUS));
         }catch(Exception e){
             System.err.println(e.getMessage());
         }
@@ -683,7 +1383,7 @@ public class Amazon {
             } while (!valid);
 
             if (storeID != -1) {
-                esql.executeQueryAndPrintResult(String.format("SELECT productName, numberOfUnits, pricePerUnit FROM Product WHERE storeID = '%d'", storeID));
+                printProducts(esql.catalog().productsAt(storeID));
             }
         }catch(Exception e){
             System.err.println(e.getMessage());   
@@ -692,32 +1392,14 @@ public class Amazon {
 
    public static void placeOrder(Amazon esql, int authorisedUser) {
         try {
-            List<List<String>> userLocation = esql.executeQueryAndReturnResult(String.format("SELECT latitude, longitude FROM Users WHERE userID = '%d'", authorisedUser));
-            double userLat = Double.parseDouble(userLocation.get(0).get(0));
-            double userLong = Double.parseDouble(userLocation.get(0).get(1));
-            List<List<String>> storeList = esql.executeQueryAndReturnResult("SELECT storeID, latitude, longitude FROM Store");
-            List<String> foundStores = new ArrayList<String>();
-            boolean storesFound = false;
+            List<StoreLocatorService.NearbyStore> foundStores = esql.locator().storesWithin(authorisedUser, StoreLocatorService.DEFAULT_RADIUS);
             boolean valid = false;
             String input = "";
             int storeID = -1;
-            String orderProduct = "";
-            int availableUnits = -1;
+            CatalogService.ProductInfo orderProduct = null;
             int orderCount = -1;
 
-            System.out.print("storeID\tdistance (miles)");
-            System.out.println();
-            for (int i = 0; i < storeList.size(); ++i) {
-                double distance = esql.calculateDistance(userLat, userLong, Double.parseDouble(storeList.get(i).get(1)), Double.parseDouble(storeList.get(i).get(2))); 
-                if (distance <= 30) {
-                    System.out.print(String.format("%s\t%.2f", storeList.get(i).get(0), distance));
-                    System.out.println();
-                    foundStores.add(storeList.get(i).get(0));
-                    storesFound = true;
-                }
-            }
-            
-            if (storesFound) {
+            if (printStores(foundStores)) {
                 do {
                     System.out.print("\nEnter the ID of the store within 30 miles you will order from (no entry to cancel): ");
                     input = in.readLine();
@@ -726,32 +1408,38 @@ public class Amazon {
                     else {
                         storeID = parseIntCheck(input);
                         if (storeID != -1) {
-                            valid = foundStores.contains(input);
+                            valid = false;
+                            for (StoreLocatorService.NearbyStore store : foundStores) { valid |= store.storeID() == storeID; }
                             if (!valid) { System.out.println("Please enter a store ID from the provided list of stores within 30 miles of your location."); }
                         }
                     }
                 } while (!valid);
 
                 if (storeID != -1) {
-                    esql.executeQueryAndPrintResult(String.format("SELECT productName, numberOfUnits, pricePerUnit FROM Product WHERE storeID = '%d'", storeID));
+                    List<CatalogService.ProductInfo> products = esql.catalog().productsAt(storeID);
+                    printProducts(products);
                     
                     do {
                         System.out.print("Enter the name of the product you are ordering from store " + storeID + " (no entry to cancel): ");
                         input = in.readLine();
-                        if (input.isEmpty()) { orderProduct = ""; valid = true; }
+                        orderProduct = null;
+                        if (input.isEmpty()) { valid = true; }
                         else {
-                            orderProduct = input;
-                            valid = verifyInput(esql, "Product", "productName", input) && checkStore(esql, storeID, input);
+                            for (CatalogService.ProductInfo product : products) {
+                                if (product.productName().equals(input.stripTrailing())) { orderProduct = product; }
+                            }
+                            valid = orderProduct != null;
+                            if (!valid) { System.out.println("Invalid input. Entered value does not exist in database."); }
                         }
                     } while (!valid);
 
-                    if (!orderProduct.isEmpty() && valid) {
-                        List<List<String>> productInfo = esql.executeQueryAndReturnResult(String.format("SELECT numberOfUnits, pricePerUnit FROM Product WHERE productName = '%s' AND storeID = '%d'", orderProduct, storeID));
-                        availableUnits = Integer.parseInt(productInfo.get(0).get(0));
+                    if (orderProduct != null) {
+                        String productName = orderProduct.productName();
+                        int availableUnits = orderProduct.numberOfUnits();
                         
                         do {
-                            System.out.println("\nStore " + storeID + " has " + availableUnits + " units of " + orderProduct + " available for order at $" + productInfo.get(0).get(1) + " per unit.");
-                            System.out.print("Enter the number of units of " + orderProduct + " you want to order (no entry to cancel): ");
+                            System.out.println("\nStore " + storeID + " has " + availableUnits + " units of " + productName + " available for order at $" + orderProduct.pricePerUnit() + " per unit.");
+                            System.out.print("Enter the number of units of " + productName + " you want to order (no entry to cancel): ");
                             input = in.readLine();
 
                             if (input.isEmpty()) { orderCount = -1; valid = true; }
@@ -766,25 +1454,99 @@ public class Amazon {
                         } while (!valid);
 
                         if (orderCount != -1) {
-                            esql.executeUpdate(String.format("INSERT INTO Orders VALUES (DEFAULT, '%d', '%d', '%s', '%d', localtimestamp)", authorisedUser, storeID, orderProduct, orderCount));
-                            esql.executeUpdate(String.format("UPDATE Product SET numberOfUnits = numberOfUnits - '%d' WHERE storeID = '%d' AND productName = '%s'", orderCount, storeID, orderProduct));
-                            System.out.println("Order placed for " + orderCount + " units of " + orderProduct + " from store " + storeID + ".");
+                            OrderService.OrderResult result = esql.orders().placeOrder(new OrderService.OrderRequest(authorisedUser, storeID, productName, orderCount));
+                            switch (result.status()) {
+                                case PLACED: System.out.println("Order placed for " + orderCount + " units of " + productName + " from store " + storeID + "."); break;
+                                case INSUFFICIENT_UNITS: System.out.println("Order not placed. Store " + storeID + " now has only " + result.unitsAvailable() + " units of " + productName + "."); break;
+                                case INVALID_UNITS: System.out.println("Order not placed. You must order at least 1 unit."); break;
+                                default: System.out.println("Order not placed. " + productName + " is no longer available at store " + storeID + "."); break;
+                            }
                         }
                     }
                 }
             }
+        }catch(Exception e){
+            System.err.print(e.getMessage());
+        }
+    }
+
+   public static void placeCartOrder(Amazon esql, int authorisedUser) {
+        try {
+            List<StoreLocatorService.NearbyStore> foundStores = esql.locator().storesWithin(authorisedUser, StoreLocatorService.DEFAULT_RADIUS);
+            boolean valid = false;
+            String input = "";
+            int storeID = -1;
+
+            if (!printStores(foundStores)) { return; }
+
+            do {
+                System.out.print("\nEnter the ID of the store within 30 miles you will order from (no entry to cancel): ");
+                input = in.readLine();
+
+                if (input.isEmpty()) { storeID = -1; valid = true; }
+                else {
+                    storeID = parseIntCheck(input);
+                    if (storeID != -1) {
+                        valid = false;
+                        for (StoreLocatorService.NearbyStore store : foundStores) { valid |= store.storeID() == storeID; }
+                        if (!valid) { System.out.println("Please enter a store ID from the provided list of stores within 30 miles of your location."); }
+                    }
+                }
+            } while (!valid);
+            if (storeID == -1) { return; }
+
+            List<CatalogService.ProductInfo> products = esql.catalog().productsAt(storeID);
+            printProducts(products);
+            List<OrderService.CartLine> cart = new ArrayList<OrderService.CartLine>();
+
+            while (true) { // Collect cart lines until an empty product name
+                System.out.print("Enter the name of a product to add to your order from store " + storeID + " (no entry to finish): ");
+                input = in.readLine();
+                if (input.isEmpty()) { break; }
+
+                CatalogService.ProductInfo product = null;
+                for (CatalogService.ProductInfo p : products) {
+                    if (p.productName().equals(input.stripTrailing())) { product = p; }
+                }
+                if (product == null) { System.out.println("Invalid input. Entered value does not exist in database."); continue; }
+
+                int inCart = 0;
+                for (OrderService.CartLine line : cart) {
+                    if (line.productName().equals(product.productName())) { inCart += line.units(); }
+                }
+
+                System.out.print("Enter the number of units of " + product.productName() + " (" + (product.numberOfUnits() - inCart) + " available at $" + product.pricePerUnit() + " per unit): ");
+                int units = parseIntCheck(in.readLine());
+                if (units <= 0) { System.out.println("You must order at least 1 unit."); continue; }
+                if (units + inCart > product.numberOfUnits()) { System.out.println("You cannot order more units than the store has available"); continue; }
+                cart.add(new OrderService.CartLine(product.productName(), units));
+            }
+
+            if (cart.isEmpty()) { return; }
+            System.out.println("\nYour order from store " + storeID + ":");
+            for (OrderService.CartLine line : cart) { System.out.println("\t" + line.units() + " x " + line.productName()); }
+            System.out.print("Place this order? [y/N]: ");
+            input = in.readLine().trim();
+            if (!input.equals("y") && !input.equals("Y")) { System.out.println("Order cancelled."); return; }
+
+            OrderService.CartResult result = esql.orders().placeCart(new OrderService.CartRequest(authorisedUser, storeID, cart));
+            if (result.status() == OrderService.OrderStatus.PLACED) {
+                System.out.println("Order placed for " + result.linesPlaced() + " product(s) from store " + storeID + ".");
+            }
             else {
-                System.out.print("No stores found within 30 miles of your location.");
-                System.out.println();
+                System.out.println("Order not placed. These products no longer have enough units at store " + storeID + ":");
+                for (OrderService.CartLine line : result.shortLines()) { System.out.println("\t" + line.productName() + " (" + line.units() + " available)"); }
             }
         }catch(Exception e){
-            System.err.print(e.getMessage());
+            System.err.println(e.getMessage());
         }
     }
 
    public static void viewRecentOrders(Amazon esql, int userID) {
         try {
-            esql.executeQueryAndPrintResult(String.format("SELECT storeID, productName, unitsOrdered, orderTime FROM Orders WHERE customerID = '%d' ORDER BY orderTime DESC LIMIT 5", userID));
+            esql.browsePages(RECENT_ORDERS_PAGE_SIZE, "storeid\tproductname\tunitsordered\tordertime\t",
+                             (OrderService.OrderKey after, int size) -> esql.orders().customerOrders(userID, after, size),
+                             (OrderService.OrderLine order) -> order.storeID() + "\t" + order.productName() + "\t" + order.unitsOrdered() + "\t" + order.orderTime() + "\t");
         }catch(Exception e){
             System.err.println(e.getMessage());
         }
@@ -793,7 +1555,6 @@ public class Amazon {
    public static void updateProduct(Amazon esql, int managerID, int admin) {
         try{
             String input = "";
-            String productQuery = "";
             boolean valid = false;
             int storeID = -1;
             String nameUpdate = "";
@@ -807,8 +1568,10 @@ public class Amazon {
                 numUnitsUpdate = 0;
                 priceUpdate = 0;
 
-                if (admin == 0) { esql.executeQueryAndPrintResult(String.format("SELECT storeID, latitude, longitude FROM Store WHERE managerID = '%d'", managerID)); }
-                else { esql.executeQueryAndPrintResult(String.format("SELECT storeID, latitude, longitude FROM Store")); }
+                Integer storesOf = admin == 0 ? managerID : null;
+                esql.browsePages(PAGE_SIZE, "storeid\tlatitude\tlongitude\t",
+                                 (Integer after, int size) -> esql.stores(storesOf, after, size),
+                                 (StoreLine store) -> store.storeID() + "\t" + store.latitude() + "\t" + store.longitude() + "\t");
 
                 do { // Collect Store ID, verify
                     System.out.print("\tEnter the ID of the store you are updating a product at: ");
@@ -822,12 +1585,13 @@ public class Amazon {
                 } while (!valid);
 
                 do { // Collect product name, ask if updating more products
-                    esql.executeQueryAndPrintResult(String.format("SELECT productName, numberOfUnits, pricePerUnit FROM Product WHERE storeID = '%d'", storeID));
+                    printProducts(esql.catalog().productsAt(storeID));
             
                     do { // Collect product name, verify
                         System.out.print("\tEnter the name of the product you are updating: ");
                         productName = in.readLine();
-                        valid = verifyInput(esql, "Product", "productName", productName) && checkStore(esql, storeID, productName);
+                        valid = checkStore(esql, storeID, productName);
+                        if (!valid) { System.out.println("Invalid input. Entered value does not exist in database."); }
                     } while (!valid);
              
                     if (admin == 1) { // Name change is admin only
@@ -865,32 +1629,7 @@ public class Amazon {
                         }
                     } while (!valid);
 
-                    if (admin == 1) {
-                        if (!nameUpdate.isEmpty()) {
-                            productQuery = String.format("UPDATE Product SET productName = '%s' WHERE storeID = '%d' AND productName = '%s'", nameUpdate, storeID, productName);
-                            esql.executeUpdate(productQuery);
-                            productName = nameUpdate;
-                            esql.executeUpdate(String.format("INSERT INTO ProductUpdates VALUES (DEFAULT, '%d', '%d', '%s', localtimestamp)", managerID, storeID, productName));
-                        }
-                    }
-
-                    // If at least one is not -1, actual update values have been provided, construct and execute update queries
-                    if (numUnitsUpdate != -1) {
-                        if (priceUpdate != -1) { // Update both
-                            productQuery = String.format("UPDATE Product SET (numberOfUnits, pricePerUnit) = ('%d', '%f') WHERE storeID = '%d' AND productName = '%s'", numUnitsUpdate, priceUpdate, storeID, productName);
-                        }
-                        else { // Update only number of units
-                            productQuery = String.format("UPDATE Product SET numberOfUnits = '%d' WHERE storeID = '%d' AND productName = '%s'", numUnitsUpdate, storeID, productName);
-                        }
-
-                        esql.executeUpdate(productQuery);
-                        esql.executeUpdate(String.format("INSERT INTO ProductUpdates VALUES (DEFAULT, '%d', '%d', '%s', localtimestamp)", managerID, storeID, productName));
-                    }
-                    else if (priceUpdate != -1) { // Update only price
-                        productQuery = String.format("UPDATE Product SET pricePerUnit = '%f' WHERE storeID = '%d' AND productName = '%s'", priceUpdate, storeID, productName); 
-                        esql.executeUpdate(productQuery);
-                        esql.executeUpdate(String.format("INSERT INTO ProductUpdates VALUES (DEFAULT, '%d', '%d', '%s', localtimestamp)", managerID, storeID, productName));
-                    }
+                    esql.catalog().updateProduct(new CatalogService.ProductUpdate(managerID, storeID, productName, admin == 1 ? nameUpdate : "", numUnitsUpdate, priceUpdate));
 
                     System.out.println();
 
@@ -935,8 +1674,13 @@ public class Amazon {
    
    public static void viewRecentUpdates(Amazon esql, int managerID) {
         try{
-            String query = String.format("SELECT * FROM ProductUpdates WHERE storeID in (SELECT storeID FROM Store WHERE managerID = '%d') ORDER BY updatedOn DESC LIMIT 5", managerID);        
-            esql.executeQueryAndPrintResult(query);
+            List<CatalogService.UpdateLine> updates = esql.catalog().recentUpdates(managerID, 5);
+            System.out.println();
+            if (!updates.isEmpty()) { System.out.println("updatenumber\tmanagerid\tstoreid\tproductname\tupdatedon\t"); }
+            for (CatalogService.UpdateLine update : updates) {
+                System.out.println(update.updateNumber() + "\t" + update.managerID() + "\t" + update.storeID() + "\t" + update.productName() + "\t" + update.updatedOn() + "\t");
+            }
+            System.out.println();
         }catch(Exception e){
             System.err.println(e.getMessage());
         }
@@ -944,8 +1688,19 @@ public class Amazon {
    
    public static void viewPopularProducts(Amazon esql, int managerID) {
         try{
-            String query = String.format("SELECT productName, COUNT(*) as order_count FROM Orders WHERE storeID IN (SELECT storeID FROM Store WHERE managerID = '%d') GROUP BY productName ORDER BY order_count DESC LIMIT 5", managerID);
-            esql.executeQueryAndPrintResult(query);
+            // live rollups plus the archived orders, or the in-memory summaries, with the same columns as the query
+            List<PopularityTracker.Popular<String>> top = esql.archive().merging() ? esql.archive().topProducts(managerID, 5)
+                                                         : esql.popularity().ready() ? esql.popularity().topProducts(managerID, 5) : null;
+            if (top != null) {
+                System.out.println("productname\torder_count\t");
+                for (PopularityTracker.Popular<String> p : top) {
+                    System.out.println(p.key() + "\t" + p.count() + "\t");
+                }
+                return;
+            }
+            // per-store counters kept by the orders_rollup triggers, summed over the manager's stores
+            String query = "SELECT p.productName, SUM(p.orderCount) as order_count FROM StoreProductPopularity p JOIN Store s ON s.storeID = p.storeID WHERE s.managerID = ? GROUP BY p.productName ORDER BY order_count DESC LIMIT 5";
+            esql.executeQueryAndPrintResult(query, managerID);
         }catch(Exception e){
             System.err.println(e.getMessage());
         }
@@ -953,8 +1708,67 @@ public class Amazon {
    
    public static void viewPopularCustomers(Amazon esql, int managerID) {
         try{
-            String query = String.format("SELECT o.customerID, u.name, u.latitude, u.longitude, COUNT(*) as order_count FROM Orders o JOIN Users u ON o.customerID = u.userID WHERE storeID IN (SELECT storeID FROM Store WHERE managerID = '%d') GROUP BY o.customerID, u.name, u.latitude, u.longitude ORDER BY order_count DESC LIMIT 5", managerID);
-            esql.executeQueryAndPrintResult(query);
+            List<PopularityTracker.Popular<Integer>> top = esql.archive().merging() ? esql.archive().topCustomers(managerID, 5)
+                                                          : esql.popularity().ready() ? esql.popularity().topCustomers(managerID, 5) : null;
+            if (top != null) {
+                Integer[] ids = new Integer[top.size()];
+                for (int i = 0; i < ids.length; ++i) { ids[i] = top.get(i).key(); }
+                // names and locations of the top customers in one query
+                Map<Integer, String> details = new HashMap<Integer, String>();
+                esql.withConnection(c -> esql.query("SELECT userID, name, latitude, longitude FROM Users WHERE userID = ANY(?)",
+                    row -> details.put(row.getInt(1), row.getString(2).trim() + "\t" + row.getString(3) + "\t" + row.getString(4)),
+                    c.createArrayOf("int4", ids)));
+                System.out.println("customerid\tname\tlatitude\tlongitude\torder_count\t");
+                for (PopularityTracker.Popular<Integer> p : top) {
+                    String user = details.get(p.key());
+                    if (user != null) { System.out.println(p.key() + "\t" + user + "\t" + p.count() + "\t"); }
+                }
+                return;
+            }
+            String query = "SELECT c.customerID, u.name, u.latitude, u.longitude, c.order_count FROM "
+                         + "(SELECT p.customerID, SUM(p.orderCount) as order_count FROM StoreCustomerPopularity p JOIN Store s ON s.storeID = p.storeID WHERE s.managerID = ? GROUP BY p.customerID ORDER BY order_count DESC LIMIT 5) c "
+                         + "JOIN Users u ON u.userID = c.customerID ORDER BY c.order_count DESC";
+            esql.executeQueryAndPrintResult(query, managerID);
+        }catch(Exception e){
+            System.err.println(e.getMessage());
+        }
+    }
+
+    public static void archiveOldOrders(Amazon esql) {
+        try{
+            if (!esql.archive().enabled()) {
+                System.out.println("Archiving is off. Start the program with -Damazon.archive.dir=<directory> to turn it on.");
+                return;
+            }
+            int months = -1;
+            while (months < 1) { // Collect the months to keep, verify
+                System.out.print("\tEnter how many past months of orders to keep in the database: ");
+                months = parseIntCheck(in.readLine());
+                if (months == 0) { System.out.println("Invalid input. At least one month must be kept."); }
+            }
+            long archived = esql.archive().archiveOlderThan(months);
+            System.out.println(archived + " orders archived.");
+            System.out.println(esql.getArchiveStats());
+        }catch(Exception e){
+            System.err.println(e.getMessage());
+        }
+    }
+
+   public static void viewStatistics(Amazon esql) {
+        try{
+            System.out.println();
+            System.out.println(esql.getPoolStats());
+            System.out.println(esql.getStatementCacheStats());
+            System.out.println(esql.getTransactionStats());
+            System.out.println(esql.getSessionStats());
+            System.out.println(esql.getCatalogStats());
+            System.out.println(esql.getIndexStats());
+            System.out.println(esql.getRoutingStats());
+            System.out.println(esql.getAuditStats());
+            System.out.println(esql.getPartitionStats());
+            System.out.println(esql.getArchiveStats());
+            System.out.println();
+            System.out.print(esql.getQueryStats());
         }catch(Exception e){
             System.err.println(e.getMessage());
         }
@@ -969,59 +1783,68 @@ public class Amazon {
             int unitsRequested = -1;
             int warehouseID = -1;
 
-            do { // Collect storeID, verify 
-                System.out.print("\tEnter Store ID: ");
-                input = in.readLine();
-                storeID = parseIntCheck(input);
-                if (storeID != -1) { valid = verifyInput(esql, "Store", "storeID", input); }
-                else { valid = false; }
-            } while (!valid);
-
-            do { // Collect productName, verify
-                System.out.print("\tEnter product name: ");
-                productName = in.readLine();
-                if (productName.length() > 30) {
-                    System.out.println("Invalid input. Entered product name is too long, must be less than 30 characters.");
-                    valid = false;
+            boolean storeFound = false, productFound = false, warehouseFound = false, routed = false;
+            while (true) {
+                if (!storeFound) {
+                    do { // Collect storeID
+                        System.out.print("\tEnter Store ID: ");
+                        input = in.readLine();
+                        storeID = parseIntCheck(input);
+                    } while (storeID == -1);
                 }
-                else { valid = verifyInput(esql, "Product", "productName", productName); }
-            } while (!valid);
 
-            do { // Collect requested number of units, verify
-                System.out.print("\tEnter requested number of units of " + productName + ": ");
-                input = in.readLine();
-                unitsRequested = parseIntCheck(input);
-                if (unitsRequested != -1) {
-                    if (unitsRequested == 0) {
-                        System.out.println("Invalid input. You must request at least 1 unit.");
-                        valid = false;
-                    } else { valid = true; }
-                } else { valid = false; }
-            } while (!valid);
+                if (!productFound) {
+                    do { // Collect productName
+                        System.out.print("\tEnter product name: ");
+                        productName = in.readLine();
+                        valid = productName.length() <= 30;
+                        if (!valid) { System.out.println("Invalid input. Entered product name is too long, must be less than 30 characters."); }
+                    } while (!valid);
+                }
 
-            do { // Collect warehouseID, verify
-                System.out.print("\tEnter the ID of the warehouse to request from: ");
-                input = in.readLine();
-                warehouseID = parseIntCheck(input);
-                if (warehouseID != -1) { valid = verifyInput(esql, "Warehouse", "WarehouseID", input); }
-                else { valid = false; }
-            } while (!valid);
+                while (unitsRequested < 1) { // Collect requested number of units, verify
+                    System.out.print("\tEnter requested number of units of " + productName + ": ");
+                    input = in.readLine();
+                    unitsRequested = parseIntCheck(input);
+                    if (unitsRequested == 0) { System.out.println("Invalid input. You must request at least 1 unit."); }
+                }
 
-            String insertQuery = String.format("INSERT INTO ProductSupplyRequests (managerID, warehouseID, storeID, productName, unitsRequested) VALUES ('%d', '%d', '%d', '%s', '%d')", managerID, warehouseID, storeID, productName, unitsRequested);
-            String productQuery = "";
+                if (!warehouseFound) {
+                    do { // Collect warehouseID, or route to the nearest warehouse
+                        System.out.print("\tEnter the ID of the warehouse to request from (no entry to hold for the nearest): ");
+                        input = in.readLine();
+                        routed = input.isEmpty();
+                        warehouseID = routed ? 0 : parseIntCheck(input);
+                    } while (warehouseID == -1);
+                }
 
-            if (checkStore(esql, storeID, productName)) { // Store has productName, update amount
-                productQuery = String.format("UPDATE Product SET numberOfUnits = numberOfUnits + %d WHERE storeID = '%d' AND productName = '%s'", unitsRequested, storeID, productName);
+                // verify the store, product and warehouse in one round trip, then ask again for the ones not found
+                Existence.Check store = new Existence.Check("Store", "storeID = ?", storeID);
+                Existence.Check product = new Existence.Check("Product", "productName = ?", productName);
+                boolean[] found = routed ? esql.existence().existsAll(store, product)
+                                         : esql.existence().existsAll(store, product, new Existence.Check("Warehouse", "warehouseID = ?", warehouseID));
+                storeFound = found[0];
+                productFound = found[1];
+                warehouseFound = routed || found[2];
+                if (storeFound && productFound && warehouseFound) { break; }
+                if (!storeFound) { System.out.println("Invalid input. Store " + storeID + " does not exist in database."); }
+                if (!productFound) { System.out.println("Invalid input. Product " + productName + " does not exist in database."); }
+                if (!warehouseFound) { System.out.println("Invalid input. Warehouse " + warehouseID + " does not exist in database."); }
             }
-            else { // Store does not have productName, insert into Products
-                float nearestPrice = getNearestPrice(esql, storeID, productName);
-                if (nearestPrice != -1) {
-                    productQuery = String.format("INSERT INTO Product (storeID, productName, numberOfUnits, pricePerUnit) VALUES ('%d', '%s', '%d', '%f')", storeID, productName, unitsRequested, nearestPrice);
-                } else { productQuery = ""; }
+
+            if (routed) { // Held for the nearest warehouse, placed with its other requests on the next dispatch
+                SupplyRouter.Route route = esql.router().enqueue(managerID, storeID, productName, unitsRequested);
+                if (route == null) {
+                    System.out.println("There is no warehouse to supply store " + storeID + " from.");
+                    return;
+                }
+                System.out.printf("Warehouse %d is the nearest to store %d (distance %.2f).%n", route.warehouseID(), storeID, route.distance());
+                System.out.println("Order for " + unitsRequested + " unit(s) of " + productName + " held for Warehouse " + route.warehouseID()
+                                   + " until the next dispatch (" + esql.router().pending() + " request(s) waiting).");
+                return;
             }
-            
-            esql.executeUpdate(insertQuery);
-            esql.executeUpdate(productQuery);
+
+            esql.supply().placeSupplyRequest(new SupplyService.SupplyRequest(managerID, storeID, productName, warehouseID, unitsRequested));
             
             System.out.println("Order for " + unitsRequested + " unit(s) of " + productName + " placed for Store " + storeID + " from Warehouse " + warehouseID + ".");
         }catch(Exception e){
@@ -1029,6 +1852,45 @@ public class Amazon {
         }
     }
 
+    public static void dispatchSupplyRequests(Amazon esql) {
+        try{
+            int waiting = esql.router().pending();
+            if (waiting == 0) { System.out.println("No supply requests are waiting for dispatch."); return; }
+            SupplyRouter.DispatchResult result = esql.router().dispatch();
+            System.out.println(result.placed() + " of " + waiting + " held supply request(s) placed.");
+            if (result.rejected() > 0) {
+                System.out.println(result.rejected() + " request(s) could not be placed and were dropped:");
+                for (String problem : result.problems()) { System.out.println("\t" + problem); }
+            }
+            if (result.held() > 0) { System.out.println(result.held() + " request(s) kept conflicting and are still waiting for dispatch."); }
+            System.out.println(esql.getRoutingStats());
+        }catch(Exception e){
+            System.err.println(e.getMessage());
+        }
+    }
+
+    public static void placeBulkSupplyRequests(Amazon esql, int managerID) {
+        try{
+            System.out.println("\tLines are storeID,productName,warehouseID,unitsRequested after a header line.");
+            System.out.print("\tEnter the path of the CSV file (no entry to cancel): ");
+            String path = in.readLine();
+            if (path.isEmpty()) { return; }
+
+            SupplyService.BulkResult result;
+            try (FileReader csv = new FileReader(path)) {
+                result = esql.supply().placeSupplyRequests(managerID, csv);
+            }
+            System.out.printf("Placed %d of %d supply request(s), %d new product(s), in %.2f s (%.0f lines/s).%n",
+                              result.applied(), result.lines(), result.newProducts(), result.seconds(), result.linesPerSecond());
+            if (result.rejected() > 0) {
+                System.out.println(result.rejected() + " line(s) were skipped:");
+                for (String problem : result.problems()) { System.out.println("\t" + problem); }
+            }
+        }catch(Exception e){
+            System.err.println(e.getMessage());
+        }
+    }
+
     public static void viewStoreOrders(Amazon esql, int managerID) {
         try{
             boolean viewingOrders = true;
@@ -1046,8 +1908,10 @@ public class Amazon {
                     else { valid = false; }
                 } while (!valid);
 
-                String query = String.format("SELECT * FROM Orders WHERE storeID = '%s'", storeID);
-                esql.executeQueryAndPrintResult(query);
+                int store = storeID;
+                esql.browsePages(PAGE_SIZE, "ordernumber\tcustomerid\tproductname\tunitsordered\tordertime\t",
+                                 (OrderService.OrderKey after, int size) -> esql.orders().storeOrders(store, after, size),
+                                 (OrderService.OrderLine order) -> order.orderNumber() + "\t" + order.customerID() + "\t" + order.productName() + "\t" + order.unitsOrdered() + "\t" + order.orderTime() + "\t");
 
                 do { // Ask if viewing orders for a different store
                     System.out.print("\tDo you want to view orders from another store? [y/N]: ");
@@ -1085,7 +1949,8 @@ public class Amazon {
 
             do {
                     
-                esql.executeQueryAndPrintResult("SELECT * FROM Users");
+                esql.browsePages(PAGE_SIZE, "userid\tname\ttype\tlatitude\tlongitude\t", esql::users,
+                                 (UserLine user) -> user.userID() + "\t" + user.name() + "\t" + user.type() + "\t" + user.latitude() + "\t" + user.longitude() + "\t");
 
                 do { // Choose ID
                     System.out.print("\tInput the user ID of the user you are editing (no entry to cancel): ");
@@ -1120,8 +1985,8 @@ public class Amazon {
 
                                 } while (!nameUnique(esql, input) || input.length() > 50);
                                 
-                                updateQuery = String.format("UPDATE Users SET name = '%s' WHERE userID = '%d'", input, targetID);
-                                esql.executeUpdate(updateQuery);
+                                updateQuery = "UPDATE Users SET name = ? WHERE userID = ?";
+                                esql.executeUpdate(updateQuery, input, targetID);
 
                                 break;
                             case 2:
@@ -1134,8 +1999,8 @@ public class Amazon {
 
                                 } while (input.length() < 3 || input.length() > 11);
 
-                                updateQuery = String.format("UPDATE Users SET password = '%s' WHERE userID = '%d'", input, targetID);
-                                esql.executeUpdate(updateQuery);
+                                updateQuery = "UPDATE Users SET password = ? WHERE userID = ?";
+                                esql.executeUpdate(updateQuery, input, targetID);
 
                                 break;
                             case 3:
@@ -1153,8 +2018,9 @@ public class Amazon {
 
                                 } while (!validateLocationInput(input, true) || !validateLocationInput(input, false));
 
-                                updateQuery = String.format("UPDATE Users SET latitude = '%s', longitude = '%s' WHERE userID = '%d'", input, secondInput, targetID);
-                                esql.executeUpdate(updateQuery);
+                                updateQuery = "UPDATE Users SET latitude = ?, longitude = ? WHERE userID = ?";
+                                esql.executeUpdate(updateQuery, input, secondInput, targetID);
+                                esql.sessions().invalidate(targetID);
 
                                 break;
                             case 4:
@@ -1190,8 +2056,9 @@ public class Amazon {
                                 } while (!valid); 
 
                                 if (!input.equals("cancel")) {
-                                    updateQuery = String.format("UPDATE Users SET type = '%s' WHERE userID = '%d'", input, targetID);
-                                    esql.executeUpdate(updateQuery);
+                                    updateQuery = "UPDATE Users SET type = ? WHERE userID = ?";
+                                    esql.executeUpdate(updateQuery, input, targetID);
+                                    esql.sessions().invalidate(targetID);
                                 }
 
                                 break;
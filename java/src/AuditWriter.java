@@ -0,0 +1,205 @@
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class writes the ProductUpdates audit rows of product changes.
+ *
+ * In the default durable mode a row is inserted at once, inside the
+ * transaction of the change it records. With -Damazon.audit.mode=async
+ * rows go into a bounded queue instead, and a background thread inserts
+ * them in JDBC batches once BATCH_SIZE rows are waiting or FLUSH_MILLIS
+ * after the first one arrived. A full queue makes the caller wait up to
+ * BLOCK_MILLIS, after which it writes its row itself.
+ *
+ * Queued rows carry the time they were queued. Rows of a failed batch are
+ * reported on stderr and counted, not retried; rows still queued when the
+ * process dies are lost, which is the price of the async mode.
+ *
+ */
+public class AuditWriter {
+
+   // durable or async (-Damazon.audit.mode)
+   static final boolean ASYNC = "async".equalsIgnoreCase(System.getProperty("amazon.audit.mode", "durable"));
+
+   // queue bound (-Damazon.audit.queueSize), rows per batch (-Damazon.audit.batchSize),
+   // longest a row waits for its batch (-Damazon.audit.flushMillis) and how long a
+   // caller waits for room in a full queue (-Damazon.audit.blockMillis)
+   static final int QUEUE_SIZE = Integer.getInteger("amazon.audit.queueSize", 10000);
+   static final int BATCH_SIZE = Integer.getInteger("amazon.audit.batchSize", 500);
+   static final long FLUSH_MILLIS = Long.getLong("amazon.audit.flushMillis", 200L);
+   static final long BLOCK_MILLIS = Long.getLong("amazon.audit.blockMillis", 1000L);
+
+   static final String INSERT_NOW = "INSERT INTO ProductUpdates VALUES (DEFAULT, ?, ?, ?, localtimestamp)";
+   static final String INSERT_QUEUED = "INSERT INTO ProductUpdates (managerID, storeID, productName, updatedOn) VALUES (?, ?, ?, ?)";
+
+   private record Entry(int managerID, int storeID, String productName, LocalDateTime updatedOn) {}
+
+   private final Amazon _esql;
+   private final ArrayBlockingQueue<Entry> _queue;
+   private final Thread _worker;
+   private volatile boolean _running = true;
+
+   // rows queued or being written; flush() waits for it to reach zero
+   private final AtomicLong _pending = new AtomicLong();
+   private final Object _drained = new Object();
+
+   private final AtomicLong _queued = new AtomicLong();
+   private final AtomicLong _written = new AtomicLong();
+   private final AtomicLong _failed = new AtomicLong();
+   private final AtomicLong _batches = new AtomicLong();
+   private final AtomicLong _blocked = new AtomicLong();
+   private final AtomicLong _overflows = new AtomicLong();
+
+   public AuditWriter(Amazon esql) {
+      this._esql = esql;
+      if (!ASYNC) {
+         this._queue = null;
+         this._worker = null;
+         return;
+      }//end if
+      this._queue = new ArrayBlockingQueue<Entry>(QUEUE_SIZE);
+      this._worker = new Thread(this::drain, "audit-writer");
+      this._worker.setDaemon(true);
+      this._worker.start();
+   }//end AuditWriter
+
+   /**
+    * @return true when audit rows are written in the transaction of their change
+    */
+   public boolean durable() { return !ASYNC; }
+
+   /**
+    * Records that a manager changed a product
+    *
+    * @param managerID the manager who made the change
+    * @param storeID the store of the product
+    * @param productName the product's name after the change
+    * @throws java.sql.SQLException when a row written at once fails
+    */
+   public void record(int managerID, int storeID, String productName) throws SQLException {
+      if (!ASYNC) {
+         this._esql.executeUpdate(INSERT_NOW, managerID, storeID, productName);
+         return;
+      }//end if
+
+      Entry entry = new Entry(managerID, storeID, productName, LocalDateTime.now());
+      this._pending.incrementAndGet();
+      this._queued.incrementAndGet();
+      if (this._queue.offer(entry)) { return; }
+
+      // backpressure: wait for the writer to make room, then write it ourselves
+      this._blocked.incrementAndGet();
+      try {
+         if (this._queue.offer(entry, BLOCK_MILLIS, TimeUnit.MILLISECONDS)) { return; }
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }//end try
+      this._overflows.incrementAndGet();
+      write(List.of(entry));
+   }//end record
+
+   // the background writer: one batch per BATCH_SIZE rows or FLUSH_MILLIS
+   private void drain() {
+      List<Entry> batch = new ArrayList<Entry>(BATCH_SIZE);
+      while (this._running || !this._queue.isEmpty()) {
+         try {
+            Entry first = this._queue.poll(FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+            if (first == null) { continue; }
+            batch.add(first);
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_MILLIS);
+            while (batch.size() < BATCH_SIZE) {
+               Entry next = this._queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+               if (next == null) { break; }
+               batch.add(next);
+            }//end while
+         }catch (InterruptedException e) {
+            // close() wants the rest written now
+            this._queue.drainTo(batch);
+         }//end try
+         write(batch);
+         batch.clear();
+      }//end while
+   }//end drain
+
+   // inserts a batch and settles its rows
+   private void write(List<Entry> batch) {
+      if (batch.isEmpty()) { return; }
+      QueryMetrics.Template metrics = this._esql.metrics().template(INSERT_QUEUED);
+      long start = System.nanoTime();
+      try {
+         this._esql.withConnection(c -> {
+            PreparedStatement insert = this._esql.prepare(INSERT_QUEUED);
+            for (Entry e : batch) {
+               insert.setInt(1, e.managerID());
+               insert.setInt(2, e.storeID());
+               insert.setString(3, e.productName());
+               insert.setObject(4, e.updatedOn());
+               insert.addBatch();
+            }//end for
+            return insert.executeBatch();
+         });
+         metrics.record(System.nanoTime() - start, batch.size());
+         this._written.addAndGet(batch.size());
+      }catch (SQLException e) {
+         metrics.error(System.nanoTime() - start);
+         this._failed.addAndGet(batch.size());
+         System.err.println("Lost " + batch.size() + " ProductUpdates audit rows: " + e.getMessage());
+      }finally {
+         this._batches.incrementAndGet();
+         if (this._pending.addAndGet(-batch.size()) == 0) {
+            synchronized (this._drained) { this._drained.notifyAll(); }
+         }//end if
+      }//end try
+   }//end write
+
+   /**
+    * Writes every queued row now and waits for rows the background writer
+    * is already inserting
+    */
+   public void flush() {
+      if (!ASYNC) { return; }
+      List<Entry> batch = new ArrayList<Entry>();
+      this._queue.drainTo(batch);
+      write(batch);
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+      synchronized (this._drained) {
+         while (this._pending.get() > 0 && System.nanoTime() < deadline) {
+            try {
+               this._drained.wait(FLUSH_MILLIS);
+            }catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               return;
+            }//end try
+         }//end while
+      }//end synchronized
+   }//end flush
+
+   /**
+    * Stops the background writer after it has written what is queued
+    */
+   void close() {
+      if (!ASYNC) { return; }
+      this._running = false;
+      this._worker.interrupt();
+      try {
+         this._worker.join(TimeUnit.SECONDS.toMillis(10));
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }//end try
+   }//end close
+
+   public int queueDepth() { return ASYNC ? this._queue.size() : 0; }
+   public long queued() { return this._queued.get(); }
+   public long written() { return this._written.get(); }
+   public long failed() { return this._failed.get(); }
+   public long batches() { return this._batches.get(); }
+   public long blocked() { return this._blocked.get(); }
+   public long overflows() { return this._overflows.get(); }
+
+}//end AuditWriter
@@ -0,0 +1,162 @@
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps the product list of recently used stores, so browsing,
+ * ordering and product checks do not read Product each time. A store's
+ * list is held in parallel arrays sorted by name, and the least recently
+ * used stores are dropped past a size limit.
+ *
+ * The write paths of this process invalidate the store they change;
+ * changes made by other processes are seen once the entry outlives its
+ * time to live.
+ *
+ */
+public class CatalogCache {
+
+   // stores kept (-Damazon.catalog.maxStores) and how long each is trusted (-Damazon.catalog.ttlSeconds)
+   static final int MAX_STORES = Integer.getInteger("amazon.catalog.maxStores", 1024);
+   static final long TTL_SECONDS = Long.getLong("amazon.catalog.ttlSeconds", 30L);
+
+   /**
+    * The products of one store, sorted by name.
+    */
+   static final class StoreCatalog {
+      final String[] names;
+      final int[] units;
+      final double[] prices;
+      final long loadedAt;
+
+      StoreCatalog(String[] names, int[] units, double[] prices, long loadedAt) {
+         this.names = names;
+         this.units = units;
+         this.prices = prices;
+         this.loadedAt = loadedAt;
+      }
+
+      int indexOf(String productName) {
+         int i = Arrays.binarySearch(this.names, productName);
+         return i < 0 ? -1 : i;
+      }
+   }//end StoreCatalog
+
+   private final Amazon _esql;
+   private final long _ttlNanos;
+
+   // storeID -> catalog, in access order; guarded by itself
+   private final LinkedHashMap<Integer, StoreCatalog> _stores;
+
+   // storeID -> count of invalidations and takes, so a load that raced one for its
+   // store is not kept; one entry per store ever changed; guarded by _stores
+   private final HashMap<Integer, Long> _generations = new HashMap<Integer, Long>();
+
+   private final AtomicLong _hits = new AtomicLong();
+   private final AtomicLong _loads = new AtomicLong();
+   private final AtomicLong _invalidations = new AtomicLong();
+   private final AtomicLong _evictions = new AtomicLong();
+
+   public CatalogCache(Amazon esql) {
+      this._esql = esql;
+      this._ttlNanos = TimeUnit.SECONDS.toNanos(TTL_SECONDS);
+      this._stores = new LinkedHashMap<Integer, StoreCatalog>(16, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<Integer, StoreCatalog> eldest) {
+            if (size() <= MAX_STORES) { return false; }
+            CatalogCache.this._evictions.incrementAndGet();
+            return true;
+         }
+      };
+   }//end CatalogCache
+
+   /**
+    * Returns a store's products, reading Product when the store is not
+    * cached or has outlived the TTL
+    *
+    * @param storeID the store
+    * @return the store's catalog, empty when it carries nothing
+    * @throws java.sql.SQLException when the lookup fails
+    */
+   StoreCatalog get(int storeID) throws SQLException {
+      long generation;
+      synchronized (this._stores) {
+         StoreCatalog cached = this._stores.get(storeID);
+         if (cached != null && System.nanoTime() - cached.loadedAt < this._ttlNanos) {
+            this._hits.incrementAndGet();
+            return cached;
+         }//end if
+         generation = this._generations.getOrDefault(storeID, 0L);
+      }//end synchronized
+
+      this._loads.incrementAndGet();
+      StoreCatalog loaded = load(storeID);
+      synchronized (this._stores) {
+         if (generation == this._generations.getOrDefault(storeID, 0L)) { this._stores.put(storeID, loaded); }
+      }//end synchronized
+      return loaded;
+   }//end get
+
+   private StoreCatalog load(int storeID) throws SQLException {
+      long loadedAt = System.nanoTime();
+      List<CatalogService.ProductInfo> products = this._esql.query(
+         "SELECT " + CatalogService.ProductInfo.COLUMNS + " FROM Product WHERE storeID = ?", CatalogService.ProductInfo::map, storeID);
+      products.sort((a, b) -> a.productName().compareTo(b.productName()));
+      int n = products.size();
+      String[] names = new String[n];
+      int[] units = new int[n];
+      double[] prices = new double[n];
+      for (int i = 0; i < n; ++i) {
+         CatalogService.ProductInfo p = products.get(i);
+         names[i] = p.productName();
+         units[i] = p.numberOfUnits();
+         prices[i] = p.pricePerUnit();
+      }//end for
+      return new StoreCatalog(names, units, prices, loadedAt);
+   }//end load
+
+   /**
+    * Drops a store's products after this process changed them
+    *
+    * @param storeID the store that changed
+    */
+   public void invalidate(int storeID) {
+      synchronized (this._stores) {
+         this._generations.merge(storeID, 1L, Long::sum);
+         if (this._stores.remove(storeID) != null) { this._invalidations.incrementAndGet(); }
+      }//end synchronized
+   }//end invalidate
+
+   /**
+    * Takes ordered units off a cached product after the order committed,
+    * keeping the store cached instead of reading it again
+    *
+    * @param storeID the store ordered from
+    * @param productName the product ordered
+    * @param units units ordered
+    */
+   public void take(int storeID, String productName, int units) {
+      synchronized (this._stores) {
+         this._generations.merge(storeID, 1L, Long::sum);
+         StoreCatalog cached = this._stores.get(storeID);
+         if (cached == null) { return; }
+         int i = cached.indexOf(productName.stripTrailing());
+         if (i < 0) { invalidate(storeID); return; }
+         // readers hold on to the arrays without the lock, so the units are copied
+         int[] left = cached.units.clone();
+         left[i] -= units;
+         this._stores.put(storeID, new StoreCatalog(cached.names, left, cached.prices, cached.loadedAt));
+      }//end synchronized
+   }//end take
+
+   public int size() { synchronized (this._stores) { return this._stores.size(); } }
+   public long hits() { return this._hits.get(); }
+   public long loads() { return this._loads.get(); }
+   public long invalidations() { return this._invalidations.get(); }
+   public long evictions() { return this._evictions.get(); }
+
+}//end CatalogCache
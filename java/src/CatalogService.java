@@ -0,0 +1,182 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class reads and changes the products each store carries, without
+ * any console input.
+ *
+ */
+public class CatalogService {
+
+   /**
+    * One product line of a store.
+    */
+   public record ProductInfo(int storeID, String productName, int numberOfUnits, double pricePerUnit) {
+      // columns map() reads, in order
+      static final String COLUMNS = "storeID, productName, numberOfUnits, pricePerUnit";
+
+      static ProductInfo map(ResultSet rs) throws SQLException {
+         return new ProductInfo(rs.getInt(1), rs.getString(2).trim(), rs.getInt(3), rs.getDouble(4));
+      }
+   }
+
+   /**
+    * Changes to one product. An empty newName, newUnits of -1 and newPrice
+    * of -1 each leave that field unchanged; renaming is admin only.
+    */
+   public record ProductUpdate(int managerID, int storeID, String productName, String newName, int newUnits, float newPrice) {}
+
+   public enum UpdateStatus { UPDATED, NO_CHANGE, NOT_FOUND }
+
+   /**
+    * One recorded product change.
+    */
+   public record UpdateLine(int updateNumber, int managerID, int storeID, String productName, Timestamp updatedOn) {
+      // columns map() reads, in order
+      static final String COLUMNS = "updateNumber, managerID, storeID, productName, updatedOn";
+
+      static UpdateLine map(ResultSet rs) throws SQLException {
+         return new UpdateLine(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getString(4).trim(), rs.getTimestamp(5));
+      }
+   }
+
+   private final Amazon _esql;
+   private final CatalogCache _cache;
+   private final AuditWriter _audit;
+
+   public CatalogService(Amazon esql, AuditWriter audit) {
+      this._esql = esql;
+      this._cache = new CatalogCache(esql);
+      this._audit = audit;
+   }
+
+   /**
+    * Lists the products of a store
+    *
+    * @param storeID the store to list
+    * @return the store's products, empty when the store has none
+    * @throws java.sql.SQLException when the lookup fails
+    */
+   public List<ProductInfo> productsAt(int storeID) throws SQLException {
+      CatalogCache.StoreCatalog catalog = this._cache.get(storeID);
+      List<ProductInfo> products = new ArrayList<ProductInfo>(catalog.names.length);
+      for (int i = 0; i < catalog.names.length; ++i) {
+         products.add(new ProductInfo(storeID, catalog.names[i], catalog.units[i], catalog.prices[i]));
+      }//end for
+      return products;
+   }//end productsAt
+
+   /**
+    * Looks up one product of a store
+    *
+    * @return the product, or null when the store does not carry it
+    * @throws java.sql.SQLException when the lookup fails
+    */
+   public ProductInfo product(int storeID, String productName) throws SQLException {
+      CatalogCache.StoreCatalog catalog = this._cache.get(storeID);
+      int i = catalog.indexOf(productName.stripTrailing());
+      return i < 0 ? null : new ProductInfo(storeID, catalog.names[i], catalog.units[i], catalog.prices[i]);
+   }//end product
+
+   /**
+    * @return true when the store carries the product
+    * @throws java.sql.SQLException when the lookup fails
+    */
+   public boolean carries(int storeID, String productName) throws SQLException {
+      return this._cache.get(storeID).indexOf(productName.stripTrailing()) >= 0;
+   }//end carries
+
+   /**
+    * @return the cache products are read through; write paths outside this
+    *         class invalidate the stores they change in it
+    */
+   public CatalogCache cache() { return this._cache; }
+
+   /**
+    * Lists the latest changes to the products of a manager's stores, newest
+    * first. With ProductUpdates partitioned the recent months are searched
+    * first, so older partitions are only read when they hold too few rows.
+    *
+    * @param managerID the manager
+    * @param limit how many changes to return
+    * @return up to limit changes
+    * @throws java.sql.SQLException when the lookup fails
+    */
+   public List<UpdateLine> recentUpdates(int managerID, int limit) throws SQLException {
+      List<UpdateLine> rows = new ArrayList<UpdateLine>();
+      for (Timestamp floor : this._esql.partitions().windows(null)) {
+         String sql = "SELECT " + UpdateLine.COLUMNS + " FROM ProductUpdates WHERE storeID IN (SELECT storeID FROM Store WHERE managerID = ?)"
+                    + (floor == null ? "" : " AND updatedOn >= ?") + " ORDER BY updatedOn DESC LIMIT ?";
+         rows = floor == null ? this._esql.query(sql, UpdateLine::map, managerID, limit)
+                              : this._esql.query(sql, UpdateLine::map, managerID, floor, limit);
+         if (rows.size() >= limit) { break; }
+      }//end for
+      return rows;
+   }//end recentUpdates
+
+   /**
+    * Applies a product update and records one ProductUpdates row for the
+    * rename and one for the unit/price change, as the manager menu always has.
+    * In durable audit mode the changes and their audit rows commit together;
+    * otherwise the audit rows are queued for the audit writer.
+    *
+    * @param u the update to apply
+    * @return whether anything was changed
+    * @throws java.sql.SQLException when an update fails, e.g. the new name is taken
+    */
+   public UpdateStatus updateProduct(ProductUpdate u) throws SQLException {
+      boolean rename = u.newName() != null && !u.newName().isEmpty();
+      // queued audit rows refer to the product by its old name, so they must land before it changes
+      if (rename) { this._audit.flush(); }
+      UpdateStatus status = this._audit.durable() ? this._esql.inTransaction(c -> apply(u)) : apply(u);
+
+      if (status != UpdateStatus.NO_CHANGE) { this._cache.invalidate(u.storeID()); }
+      if (u.newPrice() != -1 || rename) {
+         // a new price or name changes what nearest-price lookups should see
+         this._esql.supply().invalidatePrices();
+      }//end if
+      return status;
+   }//end updateProduct
+
+   private UpdateStatus apply(ProductUpdate u) throws SQLException {
+      String productName = u.productName();
+      boolean changed = false;
+
+      if (u.newName() != null && !u.newName().isEmpty()) {
+         if (this._esql.executeUpdate("UPDATE Product SET productName = ? WHERE storeID = ? AND productName = ?",
+                                      u.newName(), u.storeID(), productName) == 0) {
+            return UpdateStatus.NOT_FOUND;
+         }//end if
+         productName = u.newName();
+         this._audit.record(u.managerID(), u.storeID(), productName);
+         changed = true;
+      }//end if
+
+      int rows = -1;
+      if (u.newUnits() != -1) {
+         if (u.newPrice() != -1) { // Update both
+            rows = this._esql.executeUpdate("UPDATE Product SET (numberOfUnits, pricePerUnit) = (?, ?) WHERE storeID = ? AND productName = ?",
+                                            u.newUnits(), Amazon.priceText(u.newPrice()), u.storeID(), productName);
+         }
+         else { // Update only number of units
+            rows = this._esql.executeUpdate("UPDATE Product SET numberOfUnits = ? WHERE storeID = ? AND productName = ?",
+                                            u.newUnits(), u.storeID(), productName);
+         }
+      }
+      else if (u.newPrice() != -1) { // Update only price
+         rows = this._esql.executeUpdate("UPDATE Product SET pricePerUnit = ? WHERE storeID = ? AND productName = ?",
+                                         Amazon.priceText(u.newPrice()), u.storeID(), productName);
+      }//end if
+
+      if (rows == 0) { return UpdateStatus.NOT_FOUND; }
+      if (rows > 0) {
+         this._audit.record(u.managerID(), u.storeID(), productName);
+         changed = true;
+      }//end if
+      return changed ? UpdateStatus.UPDATED : UpdateStatus.NO_CHANGE;
+   }//end apply
+
+}//end CatalogService
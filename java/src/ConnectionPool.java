@@ -0,0 +1,291 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToLongFunction;
+
+/**
+ * This class keeps a bounded set of physical connections to the database
+ * that sessions borrow for the length of one operation and hand back
+ * afterwards. Each pooled connection carries its own prepared statement
+ * cache, so a statement prepared by one session is reused by the next.
+ *
+ */
+public class ConnectionPool {
+
+   /**
+    * A physical connection together with the statements prepared on it.
+    */
+   public static class Pooled {
+      public final Connection connection;
+      public final StatementCache statements;
+      long lastUsed;
+
+      Pooled(Connection connection, int cacheSize) {
+         this.connection = connection;
+         this.statements = new StatementCache(connection, cacheSize);
+         this.lastUsed = System.nanoTime();
+      }
+
+      void close() {
+         this.statements.close();
+         try {
+            this.connection.close();
+         }catch (SQLException e) {
+            // ignored.
+         }//end try
+      }
+   }//end Pooled
+
+   private final String _url;
+   private final Properties _props;
+   private final int _minSize;
+   private final int _maxSize;
+   private final long _idleTimeoutNanos;
+   private final long _maxWaitNanos;
+   private final long _validateAfterNanos;
+   private final int _statementCacheSize;
+
+   // idle connections, most recently returned last
+   private final ArrayDeque<Pooled> _idle = new ArrayDeque<Pooled>();
+   // every open connection, idle or borrowed
+   private final Set<Pooled> _all = ConcurrentHashMap.newKeySet();
+   private final ReentrantLock _lock = new ReentrantLock();
+   private final Condition _returned = _lock.newCondition();
+   private int _total = 0;
+   private boolean _closed = false;
+
+   private final ScheduledExecutorService _evictor;
+
+   private final AtomicLong _borrows = new AtomicLong();
+   private final AtomicLong _waitNanos = new AtomicLong();
+   private final AtomicLong _maxWaitSeen = new AtomicLong();
+   private final AtomicLong _created = new AtomicLong();
+   private final AtomicLong _evicted = new AtomicLong();
+   private final AtomicLong _invalid = new AtomicLong();
+
+   /**
+    * Creates a pool and opens its minimum number of connections
+    *
+    * @param url the JDBC connection URL
+    * @param props connection properties (user, password, driver options)
+    * @param minSize connections kept open even when idle
+    * @param maxSize upper bound on open connections
+    * @param idleSeconds idle time after which connections above minSize are closed
+    * @param maxWaitMillis how long borrow() waits for a free connection
+    * @param statementCacheSize prepared statements kept per connection
+    * @throws java.sql.SQLException when the initial connections cannot be opened
+    */
+   public ConnectionPool(String url, Properties props, int minSize, int maxSize,
+                         int idleSeconds, long maxWaitMillis, int statementCacheSize) throws SQLException {
+      this._url = url;
+      this._props = props;
+      this._maxSize = Math.max(1, maxSize);
+      this._minSize = Math.max(0, Math.min(minSize, this._maxSize));
+      this._idleTimeoutNanos = TimeUnit.SECONDS.toNanos(idleSeconds);
+      this._maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+      this._validateAfterNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("amazon.pool.validateAfterMillis", 1000L));
+      this._statementCacheSize = statementCacheSize;
+
+      for (int i = 0; i < this._minSize; ++i) {
+         this._idle.addLast(open());
+         ++this._total;
+      }//end for
+
+      this._evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "connection-pool-evictor");
+         t.setDaemon(true);
+         return t;
+      });
+      long period = Math.max(1, idleSeconds / 2);
+      this._evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.SECONDS);
+   }//end ConnectionPool
+
+   private void destroy(Pooled p) {
+      this._all.remove(p);
+      p.close();
+   }//end destroy
+
+   private Pooled open() throws SQLException {
+      Pooled p = new Pooled(DriverManager.getConnection(this._url, this._props), this._statementCacheSize);
+      this._created.incrementAndGet();
+      this._all.add(p);
+      return p;
+   }//end open
+
+   /**
+    * Takes a connection from the pool, opening a new one while below the
+    * maximum size and waiting for a returned one otherwise. Connections that
+    * sat idle for a while are validated before they are handed out.
+    *
+    * @return a connection in autocommit mode
+    * @throws java.sql.SQLException when no connection becomes free in time
+    */
+   public Pooled borrow() throws SQLException {
+      long start = System.nanoTime();
+      Pooled p = null;
+      boolean create = false;
+
+      this._lock.lock();
+      try {
+         long remaining = this._maxWaitNanos;
+         while (p == null && !create) {
+            if (this._closed) { throw new SQLException("Connection pool is closed"); }
+            if (!this._idle.isEmpty()) { p = this._idle.pollLast(); }
+            else if (this._total < this._maxSize) { ++this._total; create = true; }
+            else {
+               if (remaining <= 0) {
+                  throw new SQLException("Timed out waiting for a database connection (" + this._maxSize + " in use)");
+               }//end if
+               remaining = this._returned.awaitNanos(remaining);
+            }
+         }//end while
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for a database connection");
+      }finally {
+         this._lock.unlock();
+      }//end try
+
+      try {
+         if (create) { p = open(); }
+         else if (System.nanoTime() - p.lastUsed > this._validateAfterNanos && !p.connection.isValid(2)) {
+            this._invalid.incrementAndGet();
+            destroy(p);
+            p = open();
+         }//end if
+      }catch (SQLException e) {
+         discard();
+         throw e;
+      }//end try
+
+      long waited = System.nanoTime() - start;
+      this._borrows.incrementAndGet();
+      this._waitNanos.addAndGet(waited);
+      this._maxWaitSeen.accumulateAndGet(waited, Math::max);
+      return p;
+   }//end borrow
+
+   /**
+    * Hands a borrowed connection back. An unfinished transaction is rolled
+    * back; a connection that cannot be reset is closed instead.
+    *
+    * @param p the connection returned by borrow()
+    */
+   public void release(Pooled p) {
+      try {
+         if (!p.connection.getAutoCommit()) {
+            p.connection.rollback();
+            p.connection.setAutoCommit(true);
+         }//end if
+      }catch (SQLException e) {
+         destroy(p);
+         discard();
+         return;
+      }//end try
+
+      p.lastUsed = System.nanoTime();
+      this._lock.lock();
+      try {
+         if (this._closed) { destroy(p); --this._total; return; }
+         this._idle.addLast(p);
+         this._returned.signal();
+      }finally {
+         this._lock.unlock();
+      }//end try
+   }//end release
+
+   // gives up the slot of a connection that was closed rather than returned
+   private void discard() {
+      this._lock.lock();
+      try {
+         --this._total;
+         this._returned.signal();
+      }finally {
+         this._lock.unlock();
+      }//end try
+   }//end discard
+
+   // closes connections above the minimum size that have been idle too long
+   private void evictIdle() {
+      List<Pooled> expired = new ArrayList<Pooled>();
+      long now = System.nanoTime();
+      this._lock.lock();
+      try {
+         // the eldest returned connections sit at the head of the deque
+         while (this._total > this._minSize && !this._idle.isEmpty()
+                && now - this._idle.peekFirst().lastUsed > this._idleTimeoutNanos) {
+            expired.add(this._idle.pollFirst());
+            --this._total;
+         }//end while
+      }finally {
+         this._lock.unlock();
+      }//end try
+      for (Pooled p : expired) {
+         destroy(p);
+         this._evicted.incrementAndGet();
+      }//end for
+   }//end evictIdle
+
+   /**
+    * Closes all idle connections and stops handing out new ones. Borrowed
+    * connections are closed as they are released.
+    */
+   public void close() {
+      this._evictor.shutdownNow();
+      List<Pooled> idle;
+      this._lock.lock();
+      try {
+         this._closed = true;
+         idle = new ArrayList<Pooled>(this._idle);
+         this._total -= idle.size();
+         this._idle.clear();
+         this._returned.signalAll();
+      }finally {
+         this._lock.unlock();
+      }//end try
+      for (Pooled p : idle) { destroy(p); }
+   }//end close
+
+   /**
+    * Sums one counter over the statement caches of all open connections.
+    *
+    * @param counter the StatementCache getter to sum, e.g. StatementCache::hits
+    * @return the total over the pool
+    */
+   public long statementCacheTotal(ToLongFunction<StatementCache> counter) {
+      long total = 0;
+      for (Pooled p : this._all) { total += counter.applyAsLong(p.statements); }
+      return total;
+   }//end statementCacheTotal
+
+   public int size() {
+      this._lock.lock();
+      try { return this._total; } finally { this._lock.unlock(); }
+   }
+
+   public int idle() {
+      this._lock.lock();
+      try { return this._idle.size(); } finally { this._lock.unlock(); }
+   }
+
+   public int maxSize() { return this._maxSize; }
+   public long borrows() { return this._borrows.get(); }
+   public long totalWaitNanos() { return this._waitNanos.get(); }
+   public long maxWaitNanos() { return this._maxWaitSeen.get(); }
+   public long created() { return this._created.get(); }
+   public long evicted() { return this._evicted.get(); }
+   public long invalidated() { return this._invalid.get(); }
+
+}//end ConnectionPool
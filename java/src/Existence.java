@@ -0,0 +1,124 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class answers whether rows exist with SELECT EXISTS (...), which
+ * stops at the first matching row instead of reading every match back.
+ * Several checks can be asked in one round trip.
+ *
+ * Rows found in Store and Warehouse are remembered: the application never
+ * deletes them, and the remembered answers are dropped whenever the Store
+ * or Warehouse change counter moves. Answers are not remembered when
+ * either counter is not available.
+ *
+ */
+public class Existence {
+
+   /**
+    * A row to look for: the table, a condition with '?' placeholders and
+    * the values for them.
+    */
+   public record Check(String from, String where, Object... params) {
+      String sql() { return "EXISTS (SELECT 1 FROM " + from + " WHERE " + where + ")"; }
+
+      String key() { return from.toLowerCase(Locale.ROOT) + '|' + where + '|' + Arrays.toString(params); }
+
+      boolean cacheable() { return CACHED_TABLES.contains(from.toLowerCase(Locale.ROOT)); }
+   }
+
+   // tables whose found rows are remembered
+   static final Set<String> CACHED_TABLES = Set.of("store", "warehouse");
+
+   // remembered answers before they are all dropped (-Damazon.exists.maxCached)
+   static final int MAX_CACHED = Integer.getInteger("amazon.exists.maxCached", 10000);
+
+   private final Amazon _esql;
+   private final Set<String> _found = ConcurrentHashMap.newKeySet();
+   private volatile long _storeVersion = TableVersions.UNKNOWN;
+   private volatile long _warehouseVersion = TableVersions.UNKNOWN;
+
+   private final AtomicLong _hits = new AtomicLong();
+   private final AtomicLong _queries = new AtomicLong();
+
+   public Existence(Amazon esql) {
+      this._esql = esql;
+   }//end Existence
+
+   /**
+    * @return true when a row matches the check
+    * @throws java.sql.SQLException when the lookup fails
+    */
+   public boolean exists(Check check) throws SQLException {
+      return existsAll(check)[0];
+   }//end exists
+
+   /**
+    * Answers several checks with at most one query
+    *
+    * @param checks the rows to look for
+    * @return for each check, in order, whether a row matches it
+    * @throws java.sql.SQLException when the lookup fails
+    */
+   public boolean[] existsAll(Check... checks) throws SQLException {
+      boolean[] found = new boolean[checks.length];
+      boolean remember = fresh();
+      StringBuilder sql = new StringBuilder("SELECT ");
+      List<Object> params = new ArrayList<Object>();
+      int[] asked = new int[checks.length];
+      int n = 0;
+      for (int i = 0; i < checks.length; ++i) {
+         if (remember && checks[i].cacheable() && this._found.contains(checks[i].key())) {
+            this._hits.incrementAndGet();
+            found[i] = true;
+            continue;
+         }//end if
+         if (n > 0) { sql.append(", "); }
+         sql.append(checks[i].sql());
+         params.addAll(Arrays.asList(checks[i].params()));
+         asked[n++] = i;
+      }//end for
+      if (n == 0) { return found; }
+
+      int columns = n;
+      this._queries.incrementAndGet();
+      boolean[] answers = this._esql.queryFirst(sql.toString(), rs -> {
+         boolean[] row = new boolean[columns];
+         for (int j = 0; j < columns; ++j) { row[j] = rs.getBoolean(j + 1); }
+         return row;
+      }, params.toArray());
+
+      for (int j = 0; j < n; ++j) {
+         Check check = checks[asked[j]];
+         found[asked[j]] = answers[j];
+         if (remember && answers[j] && check.cacheable()) {
+            if (this._found.size() >= MAX_CACHED) { this._found.clear(); }
+            this._found.add(check.key());
+         }//end if
+      }//end for
+      return found;
+   }//end existsAll
+
+   // drops the remembered answers when Store or Warehouse changed; false when changes cannot be seen
+   private boolean fresh() {
+      long store = this._esql.versions().current("store");
+      long warehouse = this._esql.versions().current("warehouse");
+      if (store == TableVersions.UNKNOWN || warehouse == TableVersions.UNKNOWN) { return false; }
+      if (store != this._storeVersion || warehouse != this._warehouseVersion) {
+         this._found.clear();
+         this._storeVersion = store;
+         this._warehouseVersion = warehouse;
+      }//end if
+      return true;
+   }//end fresh
+
+   public int size() { return this._found.size(); }
+   public long hits() { return this._hits.get(); }
+   public long queries() { return this._queries.get(); }
+
+}//end Existence
@@ -0,0 +1,178 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * This class shows a listing one page at a time where every page is its
+ * own query that seeks past the key of the previous page's last row
+ * (keyset pagination), so page N costs the same as page 1 and nothing is
+ * held open while the user reads. Going back re-reads an earlier page from
+ * its kept start key; only the last few start keys are kept.
+ *
+ * The page size can be changed at the page prompt by typing a number.
+ *
+ */
+public class KeysetPager {
+
+   /**
+    * One page of a keyset-paged listing: its rows and the key to pass for
+    * the page after it, or null when this is the last page.
+    */
+   public record Page<T, K>(List<T> rows, K next) {
+      /**
+       * Builds a page from rows read with a limit of pageSize + 1; the extra
+       * row only tells that another page follows and is dropped
+       */
+      static <T, K> Page<T, K> of(List<T> rows, int pageSize, Function<T, K> keyOf) {
+         if (rows.size() <= pageSize) { return new Page<T, K>(rows, null); }
+         List<T> page = rows.subList(0, pageSize);
+         return new Page<T, K>(page, keyOf.apply(page.get(pageSize - 1)));
+      }
+   }
+
+   /**
+    * Reads the page that follows a key; a null key asks for the first page.
+    */
+   public interface Source<T, K> {
+      Page<T, K> fetch(K after, int pageSize) throws SQLException;
+   }
+
+   // the page size asked for with paging turned off, only to bound each round trip
+   static final int UNPAGED_CHUNK = 500;
+
+   private final BufferedReader _in;
+   private final PrintWriter _out;
+   private int _pageSize;
+   private final int _history;
+
+   /**
+    * Creates a pager
+    *
+    * @param in where the user's page commands are read from
+    * @param out where pages are written
+    * @param pageSize rows per page, 0 or less prints the whole listing in one go
+    * @param history start keys kept for going back
+    */
+   public KeysetPager(BufferedReader in, PrintWriter out, int pageSize, int history) {
+      this._in = in;
+      this._out = out;
+      this._pageSize = pageSize;
+      this._history = Math.max(1, history);
+   }//end KeysetPager
+
+   /**
+    * Shows a listing page by page until the user quits or it ends
+    *
+    * @param header column header line, repeated at the top of every page
+    * @param source reads one page
+    * @param format turns a row into its line
+    * @return the number of rows shown, counting pages shown again
+    * @throws java.sql.SQLException when a page cannot be read
+    */
+   public <T, K> int browse(String header, Source<T, K> source, Function<T, String> format) throws SQLException {
+      if (this._pageSize <= 0) { return printAll(header, source, format); }
+
+      // start keys of the kept earlier pages, oldest first; null starts the listing
+      List<K> starts = new ArrayList<K>();
+      K start = null;
+      int pageNumber = 1, firstKept = 1, shown = 0;
+      while (true) {
+         Page<T, K> page = source.fetch(start, this._pageSize);
+         shown += page.rows().size();
+         show(pageNumber, header, page.rows(), format);
+         if (page.rows().isEmpty() && pageNumber == 1) { return 0; }
+
+         String command = prompt(page.next() != null, pageNumber > firstKept);
+         if (command.equals("n")) {
+            starts.add(start);
+            if (starts.size() > this._history) { starts.remove(0); ++firstKept; }
+            start = page.next();
+            ++pageNumber;
+         }
+         else if (command.equals("p")) {
+            start = starts.remove(starts.size() - 1);
+            --pageNumber;
+         }
+         else if (command.equals("q")) {
+            return shown;
+         }//end if
+         // a new page size re-reads the page on screen from the same start key
+      }//end while
+   }//end browse
+
+   // paging turned off: every page in one go, read UNPAGED_CHUNK rows at a time
+   private <T, K> int printAll(String header, Source<T, K> source, Function<T, String> format) throws SQLException {
+      this._out.println();
+      K start = null;
+      int shown = 0;
+      do {
+         Page<T, K> page = source.fetch(start, UNPAGED_CHUNK);
+         if (shown == 0 && !page.rows().isEmpty()) { this._out.println(header); }
+         for (T row : page.rows()) { this._out.println(format.apply(row)); }
+         shown += page.rows().size();
+         start = page.next();
+      } while (start != null);
+      this._out.println();
+      this._out.flush();
+      return shown;
+   }//end printAll
+
+   private <T> void show(int pageNumber, String header, List<T> rows, Function<T, String> format) {
+      this._out.println();
+      if (rows.isEmpty()) {
+         this._out.println(pageNumber == 1 ? "Nothing to show." : "No more rows.");
+      }
+      else {
+         this._out.println("Page " + pageNumber);
+         this._out.println(header);
+         for (T row : rows) { this._out.println(format.apply(row)); }
+      }//end if
+      this._out.println();
+      this._out.flush();
+   }//end show
+
+   // reads page commands until one applies: n, p, q, or s after a new page size was set
+   private String prompt(boolean more, boolean back) throws SQLException {
+      while (true) {
+         this._out.print("\t" + (more ? "[n]ext page, " : "") + (back ? "[p]rev page, " : "") + "[q]uit, or a new page size: ");
+         this._out.flush();
+         String input;
+         try {
+            input = this._in.readLine();
+         }catch (IOException e) {
+            throw new SQLException("Could not read a page command", e);
+         }//end try
+         input = input == null ? "q" : input.trim().toLowerCase();
+
+         if (input.isEmpty()) { input = more ? "n" : "q"; }
+         if (input.equals("n")) {
+            if (more) { return "n"; }
+            this._out.println("\tThis is the last page.");
+         }
+         else if (input.equals("p")) {
+            if (back) { return "p"; }
+            this._out.println("\tNo earlier page is kept.");
+         }
+         else if (input.equals("q")) {
+            return "q";
+         }
+         else {
+            int size;
+            try {
+               size = Integer.parseInt(input);
+            }catch (NumberFormatException e) {
+               size = 0;
+            }//end try
+            if (size > 0) { this._pageSize = size; return "s"; }
+            this._out.println("\tEnter n, p, q or a page size above 0.");
+         }//end if
+      }//end while
+   }//end prompt
+
+   public int pageSize() { return this._pageSize; }
+
+}//end KeysetPager
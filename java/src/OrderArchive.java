@@ -0,0 +1,772 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This class moves old orders out of Postgres into compressed columnar
+ * files under -Damazon.archive.dir, and reads them back for the popularity
+ * screens. Archived orders leave the popularity rollups, so the live
+ * counts and the archived ones add up without overlap.
+ *
+ * A file holds orders sorted by orderTime in blocks of BLOCK_ROWS rows.
+ * Each column of a block is encoded on its own and deflated separately:
+ * orderNumber and orderTime as deltas from the previous row, productName
+ * as an index into the file's dictionary, the rest as plain numbers, all
+ * written as zigzag varints. The footer lists the dictionary and where
+ * each block's columns are; the file ends with the footer's offset and
+ * MAGIC.
+ *
+ *    MAGIC VERSION | block 0: col 0 .. col 5 | block 1 ... | footer | footer offset, MAGIC
+ *
+ * Files are memory-mapped to be read, and a scan inflates only the columns
+ * it needs: the storeID column of every block, and the product or customer
+ * column only of blocks holding one of the stores asked about. Answers are
+ * kept until the set of files changes.
+ *
+ */
+public class OrderArchive {
+
+   // where archive files are written and read; empty turns archiving off (-Damazon.archive.dir)
+   static final String DIR = System.getProperty("amazon.archive.dir", "");
+
+   // whether the popularity screens add the archived orders to the live counts (-Damazon.archive.merge)
+   static final boolean MERGE = Boolean.parseBoolean(System.getProperty("amazon.archive.merge", "true"));
+
+   // rows per block (-Damazon.archive.blockRows) and the size at which a file
+   // is closed and the export goes on in the next one (-Damazon.archive.maxFileMB)
+   static final int BLOCK_ROWS = Integer.getInteger("amazon.archive.blockRows", 65536);
+   static final long MAX_FILE_BYTES = Long.getLong("amazon.archive.maxFileMB", 1024L) << 20;
+
+   // remembered scan answers before they are all dropped (-Damazon.archive.maxCached)
+   static final int MAX_CACHED = Integer.getInteger("amazon.archive.maxCached", 256);
+
+   static final String SUFFIX = ".orders";
+   static final int MAGIC = 0x4d414f41;   // "MAOA"
+   static final int VERSION = 1;
+
+   // columns of a block, in file order
+   static final int ORDER_NUMBER = 0, CUSTOMER = 1, STORE = 2, PRODUCT = 3, UNITS = 4, TIME = 5, COLUMNS = 6;
+
+   // the orders an export reads, in the order of the columns above
+   static final String SELECT = "SELECT orderNumber, customerID, storeID, productName, unitsOrdered, orderTime FROM ";
+
+   private final Amazon _esql;
+
+   // mapped files, reopened when the directory listing changes
+   private volatile List<Segment> _segments = new ArrayList<Segment>();
+   private volatile String _listing = null;
+   private final Map<String, Map<?, long[]>> _answers = new ConcurrentHashMap<String, Map<?, long[]>>();
+
+   private final AtomicLong _archived = new AtomicLong();
+   private final AtomicLong _scans = new AtomicLong();
+   private final AtomicLong _hits = new AtomicLong();
+   private final AtomicLong _blocksRead = new AtomicLong();
+   private final AtomicLong _blocksSkipped = new AtomicLong();
+
+   public OrderArchive(Amazon esql) {
+      this._esql = esql;
+   }//end OrderArchive
+
+   /**
+    * @return true when an archive directory is configured
+    */
+   public boolean enabled() { return !DIR.isEmpty(); }
+
+   /**
+    * @return true when the popularity screens should count archived orders
+    */
+   public boolean merging() throws SQLException {
+      return enabled() && MERGE && !segments().isEmpty();
+   }//end merging
+
+   // ---------------------------------------------------------------- writing
+
+   /**
+    * Archives the orders older than the months kept. With Orders
+    * partitioned the old months are detached and every detached month is
+    * archived and dropped; otherwise the old rows are archived and deleted
+    * in one transaction.
+    *
+    * @param retainMonths whole months kept before the current one
+    * @return the number of orders archived
+    * @throws java.sql.SQLException when the orders cannot be read, written or removed
+    */
+   public long archiveOlderThan(int retainMonths) throws SQLException {
+      if (!enabled()) { throw new SQLException("No archive directory; set -Damazon.archive.dir"); }
+      if (retainMonths < 1) { throw new SQLException("At least the last month must be kept"); }
+      if (!this._esql.partitions().partitioned()) {
+         return archiveBefore(LocalDate.now().withDayOfMonth(1).minusMonths(retainMonths));
+      }//end if
+      this._esql.partitions().detach("Orders", retainMonths);
+      return archiveDetached();
+   }//end archiveOlderThan
+
+   /**
+    * Archives and drops every month partition detached from Orders and not
+    * archived yet
+    *
+    * @return the number of orders archived
+    * @throws java.sql.SQLException when a month cannot be archived
+    */
+   public long archiveDetached() throws SQLException {
+      List<String> tables = this._esql.query("SELECT relname FROM pg_class WHERE relkind = 'r' AND NOT relispartition "
+                                             + "AND relname ~ '^orders_[0-9]{6}$' ORDER BY relname", rs -> rs.getString(1));
+      long rows = 0;
+      for (String table : tables) { rows += archiveTable(table); }
+      return rows;
+   }//end archiveDetached
+
+   /**
+    * Archives the orders of a detached month partition, then drops the
+    * table once its files are in place
+    *
+    * @param table the detached partition, orders_YYYYMM
+    * @return the number of orders archived
+    * @throws java.sql.SQLException when the orders cannot be read or written
+    */
+   public long archiveTable(String table) throws SQLException {
+      if (!table.matches("orders_[0-9]{6}")) { throw new SQLException(table + " is not a month of Orders"); }
+      Export export = new Export(table);
+      long rows;
+      try {
+         rows = this._esql.executeQueryAndStream(SELECT + table + " ORDER BY orderTime, orderNumber", export::add);
+         export.finish();
+      }catch (SQLException e) {
+         export.discard();
+         throw e;
+      }//end try
+      export.publish();
+      this._esql.executeUpdate("DROP TABLE " + table);
+      this._archived.addAndGet(rows);
+      return rows;
+   }//end archiveTable
+
+   /**
+    * Archives and deletes the orders placed before a day. The rows are read
+    * and deleted in one transaction and the files only take their names
+    * once it committed; the delete takes the orders out of the rollups.
+    *
+    * @param cutoff the first day kept
+    * @return the number of orders archived
+    * @throws java.sql.SQLException when the orders cannot be read, written or deleted
+    */
+   public long archiveBefore(LocalDate cutoff) throws SQLException {
+      if (!enabled()) { throw new SQLException("No archive directory; set -Damazon.archive.dir"); }
+      Export export = new Export("orders_before_" + cutoff.toString().replace("-", "") + "_" + System.currentTimeMillis());
+      Timestamp before = Timestamp.valueOf(cutoff.atStartOfDay());
+      long rows;
+      try {
+         rows = this._esql.inTransaction(c -> {
+            // a retried transaction starts the files over
+            export.discard();
+            long n = this._esql.executeQueryAndStream(SELECT + "Orders WHERE orderTime < ? ORDER BY orderTime, orderNumber", export::add, before);
+            export.finish();
+            int deleted = this._esql.executeUpdate("DELETE FROM Orders WHERE orderTime < ?", before);
+            if (deleted != n) { throw new SQLException("Archived " + n + " orders but deleted " + deleted); }
+            return n;
+         });
+      }catch (SQLException e) {
+         export.discard();
+         throw e;
+      }//end try
+      export.publish();
+      this._archived.addAndGet(rows);
+      return rows;
+   }//end archiveBefore
+
+   /**
+    * The files of one export: written under temporary names, closed at
+    * MAX_FILE_BYTES and renamed into the archive by publish().
+    */
+   private final class Export {
+      private final String _name;
+      private final List<Path> _written = new ArrayList<Path>();
+      private Writer _writer;
+
+      Export(String name) { this._name = name; }
+
+      boolean add(ResultSet rs) throws SQLException {
+         try {
+            if (this._writer == null) { this._writer = new Writer(temporary(this._written.size())); }
+            this._writer.add(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getString(4).stripTrailing(), rs.getInt(5),
+                             micros(rs.getTimestamp(6)));
+            if (this._writer.size() >= MAX_FILE_BYTES) { close(); }
+         }catch (IOException e) {
+            throw new SQLException("Could not write the archive of " + this._name, e);
+         }//end try
+         return true;
+      }
+
+      private Path temporary(int part) {
+         return Paths.get(DIR, this._name + "." + part + SUFFIX + ".tmp");
+      }
+
+      private void close() throws IOException {
+         this._writer.finish();
+         this._written.add(this._writer.path());
+         this._writer = null;
+      }
+
+      void finish() throws SQLException {
+         try {
+            if (this._writer != null) { close(); }
+         }catch (IOException e) {
+            throw new SQLException("Could not write the archive of " + this._name, e);
+         }//end try
+      }
+
+      void discard() {
+         if (this._writer != null) { this._writer.abandon(); this._writer = null; }
+         for (Path p : this._written) {
+            try { Files.deleteIfExists(p); } catch (IOException e) { /* left for the next listing to ignore */ }
+         }//end for
+         this._written.clear();
+      }
+
+      void publish() throws SQLException {
+         try {
+            for (Path p : this._written) {
+               String name = p.getFileName().toString();
+               Files.move(p, p.resolveSibling(name.substring(0, name.length() - ".tmp".length())), StandardCopyOption.ATOMIC_MOVE);
+            }//end for
+         }catch (IOException e) {
+            throw new SQLException("Archived orders are left in " + DIR + " under .tmp names: " + e.getMessage(), e);
+         }//end try
+      }
+   }//end Export
+
+   // orderTime as microseconds, the column's own precision
+   static long micros(Timestamp t) {
+      return t.toLocalDateTime().toEpochSecond(ZoneOffset.UTC) * 1000000L + t.getNanos() / 1000;
+   }
+
+   /**
+    * Writes one archive file.
+    */
+   private static final class Writer {
+      private final Path _path;
+      private final OutputStream _out;
+      private long _size = 0;
+
+      private final Column[] _columns = new Column[COLUMNS];
+      private final Map<String, Integer> _dictionary = new HashMap<String, Integer>();
+      private final List<String> _names = new ArrayList<String>();
+      // per block: rows, then offset, compressed and raw length of every column
+      private final List<long[]> _blocks = new ArrayList<long[]>();
+      private final Deflater _deflater = new Deflater();
+      private final byte[] _chunk = new byte[64 * 1024];
+
+      private int _rows = 0;
+      private long _total = 0;
+      private long _lastNumber = 0, _lastTime = 0;
+      private long _minTime = Long.MAX_VALUE, _maxTime = Long.MIN_VALUE;
+
+      Writer(Path path) throws IOException {
+         this._path = path;
+         Files.createDirectories(path.getParent());
+         this._out = new BufferedOutputStream(new FileOutputStream(path.toFile()), 1 << 16);
+         for (int i = 0; i < COLUMNS; ++i) { this._columns[i] = new Column(); }
+         DataOutputStream header = new DataOutputStream(this._out);
+         header.writeInt(MAGIC);
+         header.writeInt(VERSION);
+         this._size = 8;
+      }
+
+      Path path() { return this._path; }
+
+      long size() { return this._size; }
+
+      void add(int orderNumber, int customerID, int storeID, String productName, int units, long time) throws IOException {
+         Integer word = this._dictionary.get(productName);
+         if (word == null) {
+            word = this._names.size();
+            this._dictionary.put(productName, word);
+            this._names.add(productName);
+         }//end if
+         this._columns[ORDER_NUMBER].write(orderNumber - this._lastNumber);
+         this._columns[CUSTOMER].write(customerID);
+         this._columns[STORE].write(storeID);
+         this._columns[PRODUCT].write(word);
+         this._columns[UNITS].write(units);
+         this._columns[TIME].write(time - this._lastTime);
+         this._lastNumber = orderNumber;
+         this._lastTime = time;
+         this._minTime = Math.min(this._minTime, time);
+         this._maxTime = Math.max(this._maxTime, time);
+         if (++this._rows == BLOCK_ROWS) { block(); }
+      }
+
+      // deflates the columns of the filled block; each block decodes on its own
+      private void block() throws IOException {
+         if (this._rows == 0) { return; }
+         long[] entry = new long[1 + 3 * COLUMNS];
+         entry[0] = this._rows;
+         for (int i = 0; i < COLUMNS; ++i) {
+            Column column = this._columns[i];
+            long offset = this._size;
+            this._deflater.reset();
+            this._deflater.setInput(column.bytes, 0, column.length);
+            this._deflater.finish();
+            while (!this._deflater.finished()) {
+               int n = this._deflater.deflate(this._chunk);
+               this._out.write(this._chunk, 0, n);
+               this._size += n;
+            }//end while
+            entry[1 + 3 * i] = offset;
+            entry[2 + 3 * i] = this._size - offset;
+            entry[3 + 3 * i] = column.length;
+            column.length = 0;
+         }//end for
+         this._blocks.add(entry);
+         this._total += this._rows;
+         this._rows = 0;
+         this._lastNumber = 0;
+         this._lastTime = 0;
+      }
+
+      void finish() throws IOException {
+         block();
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         DataOutputStream footer = new DataOutputStream(bytes);
+         footer.writeLong(this._total);
+         footer.writeLong(this._minTime);
+         footer.writeLong(this._maxTime);
+         footer.writeInt(this._names.size());
+         for (String name : this._names) {
+            byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+            footer.writeShort(utf8.length);
+            footer.write(utf8);
+         }//end for
+         footer.writeInt(this._blocks.size());
+         for (long[] entry : this._blocks) {
+            footer.writeInt((int) entry[0]);
+            for (int i = 0; i < COLUMNS; ++i) {
+               footer.writeLong(entry[1 + 3 * i]);
+               footer.writeInt((int) entry[2 + 3 * i]);
+               footer.writeInt((int) entry[3 + 3 * i]);
+            }//end for
+         }//end for
+         footer.writeLong(this._size);
+         footer.writeInt(MAGIC);
+         bytes.writeTo(this._out);
+         this._size += bytes.size();
+         this._out.close();
+         this._deflater.end();
+         // on disk before the rows it holds are removed from the database
+         try (FileChannel channel = FileChannel.open(this._path, StandardOpenOption.WRITE)) { channel.force(true); }
+      }
+
+      void abandon() {
+         try { this._out.close(); } catch (IOException e) { /* removed below anyway */ }
+         this._deflater.end();
+         try { Files.deleteIfExists(this._path); } catch (IOException e) { /* left for the next listing to ignore */ }
+      }
+   }//end Writer
+
+   /**
+    * The encoded values of one column of the block being filled.
+    */
+   private static final class Column {
+      byte[] bytes = new byte[BLOCK_ROWS * 2];
+      int length = 0;
+
+      // zigzag varint: small magnitudes of either sign take few bytes
+      void write(long value) {
+         long v = (value << 1) ^ (value >> 63);
+         if (this.length + 10 > this.bytes.length) { this.bytes = Arrays.copyOf(this.bytes, Math.max(this.bytes.length * 2, this.length + 10)); }
+         while ((v & ~0x7fL) != 0) {
+            this.bytes[this.length++] = (byte) ((v & 0x7f) | 0x80);
+            v >>>= 7;
+         }//end while
+         this.bytes[this.length++] = (byte) v;
+      }
+   }//end Column
+
+   // ---------------------------------------------------------------- reading
+
+   /**
+    * One mapped archive file.
+    */
+   private static final class Segment {
+      final Path path;
+      final MappedByteBuffer map;
+      final long rows, minTime, maxTime;
+      final String[] names;
+      final int[] blockRows;
+      final long[][] offsets;     // [block][column]
+      final int[][] compressed;
+      final int[][] raw;
+
+      Segment(Path path) throws IOException {
+         this.path = path;
+         try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) { throw new IOException(path + " is too large to map"); }
+            this.map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+         }//end try
+         ByteBuffer b = this.map.duplicate();
+         if (b.limit() < 20 || b.getInt(0) != MAGIC || b.getInt(b.limit() - 4) != MAGIC) { throw new IOException(path + " is not an order archive"); }
+         if (b.getInt(4) != VERSION) { throw new IOException(path + " has archive version " + b.getInt(4)); }
+         // a damaged footer must fail as an IOException, not as whatever the buffer throws first
+         long footer = b.getLong(b.limit() - 12);
+         if (footer < 8 || footer > b.limit() - 12) { throw new IOException(path + " has a damaged footer"); }
+         b.limit(b.limit() - 12);
+         b.position((int) footer);
+         try {
+            this.rows = b.getLong();
+            this.minTime = b.getLong();
+            this.maxTime = b.getLong();
+            int count = b.getInt();
+            if (count < 0 || count > b.remaining() / 2) { throw new IOException(path + " has a damaged footer"); }
+            this.names = new String[count];
+            for (int i = 0; i < this.names.length; ++i) {
+               byte[] utf8 = new byte[b.getShort() & 0xffff];
+               b.get(utf8);
+               this.names[i] = new String(utf8, StandardCharsets.UTF_8);
+            }//end for
+            int blocks = b.getInt();
+            if (blocks < 0 || blocks > b.remaining() / (4 + COLUMNS * 16)) { throw new IOException(path + " has a damaged footer"); }
+            this.blockRows = new int[blocks];
+            this.offsets = new long[blocks][COLUMNS];
+            this.compressed = new int[blocks][COLUMNS];
+            this.raw = new int[blocks][COLUMNS];
+            for (int k = 0; k < blocks; ++k) {
+               this.blockRows[k] = b.getInt();
+               if (this.blockRows[k] < 0 || this.blockRows[k] > BLOCK_ROWS) {
+                  throw new IOException(path + " block " + k + " holds " + this.blockRows[k] + " orders, more than " + BLOCK_ROWS);
+               }//end if
+               for (int i = 0; i < COLUMNS; ++i) {
+                  this.offsets[k][i] = b.getLong();
+                  this.compressed[k][i] = b.getInt();
+                  this.raw[k][i] = b.getInt();
+                  // every value takes 1 to 10 bytes, and the compressed bytes sit before the footer
+                  if (this.raw[k][i] < this.blockRows[k] || this.raw[k][i] > this.blockRows[k] * 10
+                      || this.compressed[k][i] < 0 || this.offsets[k][i] < 8 || this.offsets[k][i] + this.compressed[k][i] > footer) {
+                     throw new IOException(path + " block " + k + " is damaged");
+                  }//end if
+               }//end for
+            }//end for
+         }catch (BufferUnderflowException e) {
+            throw new IOException(path + " has a damaged footer", e);
+         }//end try
+      }
+
+      // inflates one column of a block and decodes its values into values[0 .. rows)
+      void column(int block, int column, Inflater inflater, byte[] scratch, long[] values) throws IOException {
+         ByteBuffer input = this.map.duplicate();
+         input.limit((int) this.offsets[block][column] + this.compressed[block][column]);
+         input.position((int) this.offsets[block][column]);
+         int length = this.raw[block][column];
+         inflater.reset();
+         inflater.setInput(input);
+         int n = 0;
+         try {
+            while (n < length && !inflater.finished()) {
+               int inflated = inflater.inflate(scratch, n, length - n);
+               // out of input or wanting a dictionary, it would return 0 forever
+               if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) { break; }
+               n += inflated;
+            }//end while
+         }catch (DataFormatException e) {
+            throw new IOException(this.path + " block " + block + " is damaged", e);
+         }//end try
+         if (n != length) { throw new IOException(this.path + " block " + block + " inflates to " + n + " bytes, not " + length); }
+         int p = 0;
+         for (int r = 0; r < this.blockRows[block]; ++r) {
+            long v = 0;
+            int shift = 0;
+            byte x;
+            do {
+               if (p == length || shift > 63) { throw new IOException(this.path + " block " + block + " is damaged"); }
+               x = scratch[p++];
+               v |= (long) (x & 0x7f) << shift;
+               shift += 7;
+            } while (x < 0);
+            values[r] = (v >>> 1) ^ -(v & 1);
+            if (column == PRODUCT && (values[r] < 0 || values[r] >= this.names.length)) {
+               throw new IOException(this.path + " block " + block + " names product " + values[r] + " of " + this.names.length);
+            }//end if
+         }//end for
+      }
+   }//end Segment
+
+   // the mapped files, reopened when a file was added or removed
+   private List<Segment> segments() throws SQLException {
+      if (!enabled()) { return this._segments; }
+      File[] files = new File(DIR).listFiles((d, name) -> name.endsWith(SUFFIX));
+      if (files == null) { files = new File[0]; }
+      Arrays.sort(files);
+      StringBuilder listing = new StringBuilder();
+      for (File f : files) { listing.append(f.getName()).append('/').append(f.length()).append(';'); }
+      if (listing.toString().equals(this._listing)) { return this._segments; }
+
+      synchronized (this) {
+         if (listing.toString().equals(this._listing)) { return this._segments; }
+         List<Segment> segments = new ArrayList<Segment>();
+         for (File f : files) {
+            try {
+               segments.add(new Segment(f.toPath()));
+            }catch (IOException e) {
+               throw new SQLException("Cannot read the order archive " + f + ": " + e.getMessage(), e);
+            }//end try
+         }//end for
+         this._segments = segments;
+         this._answers.clear();
+         this._listing = listing.toString();
+         return segments;
+      }//end synchronized
+   }//end segments
+
+   /**
+    * Counts the archived orders of each product over some stores
+    *
+    * @param storeIDs the stores
+    * @return order counts by product name, as {count, 0}
+    * @throws java.sql.SQLException when an archive file cannot be read
+    */
+   @SuppressWarnings("unchecked")
+   public Map<String, long[]> productCounts(int[] storeIDs) throws SQLException {
+      return (Map<String, long[]>) counts(storeIDs, PRODUCT);
+   }//end productCounts
+
+   /**
+    * Counts the archived orders of each customer over some stores
+    *
+    * @param storeIDs the stores
+    * @return order counts by customerID, as {count, 0}
+    * @throws java.sql.SQLException when an archive file cannot be read
+    */
+   @SuppressWarnings("unchecked")
+   public Map<Integer, long[]> customerCounts(int[] storeIDs) throws SQLException {
+      return (Map<Integer, long[]>) counts(storeIDs, CUSTOMER);
+   }//end customerCounts
+
+   // scans every file for the orders of the stores, counting the values of one column
+   private Map<?, long[]> counts(int[] storeIDs, int column) throws SQLException {
+      List<Segment> segments = segments();
+      int[] stores = storeIDs.clone();
+      Arrays.sort(stores);
+      String key = column + "|" + Arrays.toString(stores);
+      Map<?, long[]> known = this._answers.get(key);
+      if (known != null) { this._hits.incrementAndGet(); return known; }
+
+      this._scans.incrementAndGet();
+      Map<Object, long[]> counts;
+      try {
+         counts = scan(segments, stores, column, this._blocksRead, this._blocksSkipped);
+      }catch (IOException e) {
+         throw new SQLException("Cannot read the order archive: " + e.getMessage(), e);
+      }//end try
+
+      if (this._answers.size() >= MAX_CACHED) { this._answers.clear(); }
+      this._answers.put(key, counts);
+      return counts;
+   }//end counts
+
+   // counts the values of one column over the orders of the stores, which are sorted
+   private static Map<Object, long[]> scan(List<Segment> segments, int[] stores, int column, AtomicLong blocksRead, AtomicLong blocksSkipped) throws IOException {
+      Map<Object, long[]> counts = new HashMap<Object, long[]>();
+      if (stores.length > 0) {
+         Inflater inflater = new Inflater();
+         try {
+            byte[] scratch = new byte[BLOCK_ROWS * 10];
+            long[] storeOf = new long[BLOCK_ROWS];
+            long[] values = new long[BLOCK_ROWS];
+            for (Segment segment : segments) {
+               long[] byWord = column == PRODUCT ? new long[segment.names.length] : null;
+               for (int k = 0; k < segment.blockRows.length; ++k) {
+                  int rows = segment.blockRows[k];
+                  segment.column(k, STORE, inflater, scratch, storeOf);
+                  boolean any = false;
+                  for (int r = 0; r < rows && !any; ++r) { any = Arrays.binarySearch(stores, (int) storeOf[r]) >= 0; }
+                  if (!any) { blocksSkipped.incrementAndGet(); continue; }
+                  blocksRead.incrementAndGet();
+                  segment.column(k, column, inflater, scratch, values);
+                  for (int r = 0; r < rows; ++r) {
+                     if (Arrays.binarySearch(stores, (int) storeOf[r]) < 0) { continue; }
+                     if (byWord != null) { ++byWord[(int) values[r]]; }
+                     else { ++counts.computeIfAbsent((int) values[r], c -> new long[2])[0]; }
+                  }//end for
+               }//end for
+               if (byWord != null) {
+                  for (int w = 0; w < byWord.length; ++w) {
+                     if (byWord[w] > 0) { counts.computeIfAbsent(segment.names[w], c -> new long[2])[0] += byWord[w]; }
+                  }//end for
+               }//end if
+            }//end for
+         }finally {
+            inflater.end();
+         }//end try
+      }//end if
+      return counts;
+   }//end scan
+
+   /**
+    * Returns the products ordered most often across a manager's stores,
+    * counting the live rollups and the archived orders
+    *
+    * @param managerID the manager
+    * @param k how many to return
+    * @return up to k products, most ordered first
+    * @throws java.sql.SQLException when the rollups or the archive cannot be read
+    */
+   public List<PopularityTracker.Popular<String>> topProducts(int managerID, int k) throws SQLException {
+      Map<String, long[]> totals = copy(productCounts(this._esql.popularity().storesOf(managerID)));
+      this._esql.query("SELECT p.productName, SUM(p.orderCount) FROM StoreProductPopularity p JOIN Store s ON s.storeID = p.storeID "
+                       + "WHERE s.managerID = ? GROUP BY p.productName",
+                       rs -> totals.computeIfAbsent(rs.getString(1).stripTrailing(), c -> new long[2])[0] += rs.getLong(2), managerID);
+      return PopularityTracker.popular(totals, k);
+   }//end topProducts
+
+   /**
+    * Returns the customers with the most orders across a manager's stores,
+    * counting the live rollups and the archived orders
+    *
+    * @param managerID the manager
+    * @param k how many to return
+    * @return up to k customers, most orders first
+    * @throws java.sql.SQLException when the rollups or the archive cannot be read
+    */
+   public List<PopularityTracker.Popular<Integer>> topCustomers(int managerID, int k) throws SQLException {
+      Map<Integer, long[]> totals = copy(customerCounts(this._esql.popularity().storesOf(managerID)));
+      this._esql.query("SELECT p.customerID, SUM(p.orderCount) FROM StoreCustomerPopularity p JOIN Store s ON s.storeID = p.storeID "
+                       + "WHERE s.managerID = ? GROUP BY p.customerID",
+                       rs -> totals.computeIfAbsent(rs.getInt(1), c -> new long[2])[0] += rs.getLong(2), managerID);
+      return PopularityTracker.popular(totals, k);
+   }//end topCustomers
+
+   // the remembered answers are shared, so merging works on a copy
+   private static <K> Map<K, long[]> copy(Map<K, long[]> counts) {
+      Map<K, long[]> copy = new HashMap<K, long[]>(counts.size() * 2);
+      for (Map.Entry<K, long[]> e : counts.entrySet()) { copy.put(e.getKey(), e.getValue().clone()); }
+      return copy;
+   }//end copy
+
+   // ---------------------------------------------------------------- checking
+
+   /**
+    * One archived order, as written to and read back from a file.
+    */
+   record Row(int orderNumber, int customerID, int storeID, String productName, int units, long time) {}
+
+   /**
+    * Writes orders, sorted by time, to one archive file as an export would
+    *
+    * @param path the file to write
+    * @param rows the orders
+    * @throws java.io.IOException when the file cannot be written
+    */
+   static void write(Path path, Iterable<Row> rows) throws IOException {
+      Writer writer = new Writer(path);
+      try {
+         for (Row r : rows) { writer.add(r.orderNumber(), r.customerID(), r.storeID(), r.productName(), r.units(), r.time()); }
+         writer.finish();
+      }catch (IOException | RuntimeException e) {
+         writer.abandon();
+         throw e;
+      }//end try
+   }//end write
+
+   /**
+    * Decodes every column of an archive file, undoing the deltas of each block
+    *
+    * @param path the file to read
+    * @return the orders in file order
+    * @throws java.io.IOException when the file cannot be read or is damaged
+    */
+   static List<Row> read(Path path) throws IOException {
+      Segment segment = new Segment(path);
+      List<Row> rows = new ArrayList<Row>();
+      Inflater inflater = new Inflater();
+      try {
+         byte[] scratch = new byte[BLOCK_ROWS * 10];
+         long[][] values = new long[COLUMNS][BLOCK_ROWS];
+         for (int k = 0; k < segment.blockRows.length; ++k) {
+            for (int i = 0; i < COLUMNS; ++i) { segment.column(k, i, inflater, scratch, values[i]); }
+            long number = 0, time = 0;
+            for (int r = 0; r < segment.blockRows[k]; ++r) {
+               number += values[ORDER_NUMBER][r];
+               time += values[TIME][r];
+               rows.add(new Row((int) number, (int) values[CUSTOMER][r], (int) values[STORE][r],
+                                segment.names[(int) values[PRODUCT][r]], (int) values[UNITS][r], time));
+            }//end for
+         }//end for
+      }finally {
+         inflater.end();
+      }//end try
+      if (rows.size() != segment.rows) { throw new IOException(path + " lists " + segment.rows + " orders but holds " + rows.size()); }
+      return rows;
+   }//end read
+
+   /**
+    * Counts the orders of each product or customer over some stores in one
+    * archive file, the way the popularity screens scan the archive
+    *
+    * @param path the file to read
+    * @param storeIDs the stores
+    * @param column PRODUCT or CUSTOMER
+    * @return order counts by product name or customerID, as {count, 0}
+    * @throws java.io.IOException when the file cannot be read or is damaged
+    */
+   static Map<Object, long[]> counts(Path path, int[] storeIDs, int column) throws IOException {
+      int[] stores = storeIDs.clone();
+      Arrays.sort(stores);
+      return scan(List.of(new Segment(path)), stores, column, new AtomicLong(), new AtomicLong());
+   }//end counts
+
+   /**
+    * @return the archive counters as one line of text
+    */
+   public String archiveStats() throws SQLException {
+      if (!enabled()) { return "archive: off"; }
+      List<Segment> segments = segments();
+      long rows = 0, bytes = 0, blocks = 0;
+      long from = Long.MAX_VALUE, to = Long.MIN_VALUE;
+      for (Segment s : segments) {
+         rows += s.rows;
+         bytes += s.map.capacity();
+         blocks += s.blockRows.length;
+         if (s.rows > 0) { from = Math.min(from, s.minTime); to = Math.max(to, s.maxTime); }
+      }//end for
+      return String.format("archive: %s, %d files, %d orders in %d blocks, %.1f MB (%.1f bytes/order)%s; archived here: %d; "
+                           + "scans: %d, answers reused: %d, blocks read: %d, skipped: %d",
+         DIR, segments.size(), rows, blocks, bytes / 1048576.0, rows == 0 ? 0.0 : (double) bytes / rows,
+         rows == 0 ? "" : ", " + time(from).toLocalDate() + " to " + time(to).toLocalDate(),
+         this._archived.get(), this._scans.get(), this._hits.get(), this._blocksRead.get(), this._blocksSkipped.get());
+   }//end archiveStats
+
+   // microseconds back to the orderTime they were taken from
+   static LocalDateTime time(long micros) {
+      return LocalDateTime.ofEpochSecond(Math.floorDiv(micros, 1000000L), (int) Math.floorMod(micros, 1000000L) * 1000, ZoneOffset.UTC);
+   }
+
+}//end OrderArchive
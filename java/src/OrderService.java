@@ -0,0 +1,310 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class places and lists customer orders without any console input.
+ * Every call is safe to make from many sessions at once; each order runs
+ * as its own transaction on a pooled connection.
+ *
+ */
+public class OrderService {
+
+   /**
+    * A customer ordering some units of one product from one store.
+    */
+   public record OrderRequest(int customerID, int storeID, String productName, int units) {}
+
+   public enum OrderStatus { PLACED, INVALID_UNITS, STORE_OUT_OF_RANGE, UNKNOWN_PRODUCT, INSUFFICIENT_UNITS }
+
+   /**
+    * Outcome of an order. orderNumber is -1 unless the order was placed;
+    * unitsAvailable is the stock seen when the order was checked.
+    */
+   public record OrderResult(OrderStatus status, int orderNumber, int unitsAvailable) {}
+
+   /**
+    * Units of one product in a cart.
+    */
+   public record CartLine(String productName, int units) {}
+
+   /**
+    * A customer ordering several products from one store at once.
+    */
+   public record CartRequest(int customerID, int storeID, List<CartLine> lines) {}
+
+   /**
+    * Outcome of a cart. When status is INSUFFICIENT_UNITS or UNKNOWN_PRODUCT
+    * nothing was ordered and shortLines lists the lines that could not be
+    * filled, with the units the store has (0 when it does not carry them).
+    */
+   public record CartResult(OrderStatus status, int linesPlaced, List<CartLine> shortLines) {}
+
+   /**
+    * One past order.
+    */
+   public record OrderLine(int orderNumber, int customerID, int storeID, String productName, int unitsOrdered, Timestamp orderTime) {
+      // columns map() reads, in order
+      static final String COLUMNS = "orderNumber, customerID, storeID, productName, unitsOrdered, orderTime";
+
+      static OrderLine map(ResultSet rs) throws SQLException {
+         return new OrderLine(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getString(4).trim(), rs.getInt(5), rs.getTimestamp(6));
+      }
+   }
+
+   /**
+    * Where a page of orders ends: the listings run newest first, and the
+    * next page starts after this order time and, among orders placed at the
+    * same time, after this order number.
+    */
+   public record OrderKey(Timestamp orderTime, int orderNumber) {
+      static OrderKey of(OrderLine line) { return new OrderKey(line.orderTime(), line.orderNumber()); }
+   }
+
+   // isolation level orders are placed at (-Damazon.order.isolation=read_committed|repeatable_read|serializable)
+   static final int ORDER_ISOLATION = isolationLevel(System.getProperty("amazon.order.isolation", "read_committed"));
+
+   private final Amazon _esql;
+   private final StoreLocatorService _locator;
+   private final CatalogService _catalog;
+   private final PopularityTracker _popularity;
+
+   private final AtomicLong _stockConflicts = new AtomicLong();
+
+   public OrderService(Amazon esql, StoreLocatorService locator, CatalogService catalog, PopularityTracker popularity) {
+      this._esql = esql;
+      this._locator = locator;
+      this._catalog = catalog;
+      this._popularity = popularity;
+   }
+
+   /**
+    * Places an order after checking the store is in range of the customer.
+    * The stock decrement and the order insert are one statement in one
+    * transaction: the decrement only matches while enough units are left,
+    * so concurrent orders for the same product can never oversell it.
+    *
+    * @param req the order to place
+    * @return the outcome; only PLACED changes the database
+    * @throws java.sql.SQLException when a statement fails or the transaction keeps conflicting
+    */
+   public OrderResult placeOrder(OrderRequest req) throws SQLException {
+      if (req.units() <= 0) { return new OrderResult(OrderStatus.INVALID_UNITS, -1, -1); }
+
+      OrderResult result = this._esql.inTransaction(ORDER_ISOLATION, c -> {
+         if (!this._locator.isWithin(req.customerID(), req.storeID(), StoreLocatorService.DEFAULT_RADIUS)) {
+            return new OrderResult(OrderStatus.STORE_OUT_OF_RANGE, -1, -1);
+         }//end if
+
+         OrderResult placed = this._esql.queryFirst(
+            "WITH taken AS (UPDATE Product SET numberOfUnits = numberOfUnits - ? WHERE storeID = ? AND productName = ? AND numberOfUnits >= ? RETURNING storeID, productName, numberOfUnits) "
+            + "INSERT INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime) SELECT ?, storeID, productName, ?, localtimestamp FROM taken "
+            + "RETURNING orderNumber, (SELECT numberOfUnits FROM taken)",
+            rs -> new OrderResult(OrderStatus.PLACED, rs.getInt(1), rs.getInt(2) + req.units()),
+            req.units(), req.storeID(), req.productName(), req.units(), req.customerID(), req.units());
+         if (placed != null) { return placed; }
+
+         // nothing was decremented: either the store does not carry the product or it ran short,
+         // which the cached catalog did not know
+         this._catalog.cache().invalidate(req.storeID());
+         CatalogService.ProductInfo product = this._catalog.product(req.storeID(), req.productName());
+         if (product == null) { return new OrderResult(OrderStatus.UNKNOWN_PRODUCT, -1, -1); }
+         this._stockConflicts.incrementAndGet();
+         return new OrderResult(OrderStatus.INSUFFICIENT_UNITS, -1, product.numberOfUnits());
+      });
+      // counted once committed, so retried attempts are not counted twice
+      if (result.status() == OrderStatus.PLACED) {
+         this._catalog.cache().take(req.storeID(), req.productName(), req.units());
+         this._popularity.record(req.storeID(), req.customerID(), req.productName());
+      }//end if
+      return result;
+   }//end placeOrder
+
+   /**
+    * Places every line of a cart as one transaction: a single multi-row
+    * stock decrement for all products, then one JDBC batch of Orders
+    * inserts. If any line cannot be filled, nothing is ordered.
+    *
+    * @param req the cart to place; repeated products are merged
+    * @return the outcome; only PLACED changes the database
+    * @throws java.sql.SQLException when a statement fails or the transaction keeps conflicting
+    */
+   public CartResult placeCart(CartRequest req) throws SQLException {
+      // merge repeated products
+      Map<String, Integer> merged = new TreeMap<String, Integer>();
+      for (CartLine line : req.lines()) {
+         if (line.units() <= 0) { return new CartResult(OrderStatus.INVALID_UNITS, 0, List.of(line)); }
+         merged.merge(line.productName().stripTrailing(), line.units(), Integer::sum);
+      }//end for
+      if (merged.isEmpty()) { return new CartResult(OrderStatus.INVALID_UNITS, 0, List.of()); }
+      String[] names = merged.keySet().toArray(new String[0]);
+      Integer[] units = merged.values().toArray(new Integer[0]);
+
+      CartResult result = this._esql.inTransaction(ORDER_ISOLATION, c -> {
+         if (!this._locator.isWithin(req.customerID(), req.storeID(), StoreLocatorService.DEFAULT_RADIUS)) {
+            return new CartResult(OrderStatus.STORE_OUT_OF_RANGE, 0, List.of());
+         }//end if
+
+         // lock the cart's rows in productName order first: the join below may visit Product in any
+         // order, so two carts sharing products could otherwise deadlock
+         this._esql.executeQuery("SELECT 1 FROM Product WHERE storeID = ? AND productName = ANY(?::bpchar[]) ORDER BY productName FOR UPDATE",
+                                 req.storeID(), c.createArrayOf("bpchar", names));
+
+         // decrement every line that has enough stock, in one statement; the savepoint undoes just
+         // that when a line falls short, leaving the work of any enclosing transaction in place
+         Savepoint decrement = c.setSavepoint();
+         Set<String> taken = new HashSet<String>(this._esql.query(
+            "UPDATE Product p SET numberOfUnits = p.numberOfUnits - c.units FROM unnest(?::bpchar[], ?::integer[]) AS c(productName, units) "
+            + "WHERE p.storeID = ? AND p.productName = c.productName AND p.numberOfUnits >= c.units RETURNING p.productName",
+            rs -> rs.getString(1).stripTrailing(), c.createArrayOf("bpchar", names), c.createArrayOf("int4", units), req.storeID()));
+
+         if (taken.size() < names.length) {
+            // undo the lines that were taken and report the ones that were not
+            c.rollback(decrement);
+            this._catalog.cache().invalidate(req.storeID());
+            Map<String, Integer> stock = new HashMap<String, Integer>();
+            for (CatalogService.ProductInfo product : this._catalog.productsAt(req.storeID())) {
+               stock.put(product.productName(), product.numberOfUnits());
+            }//end for
+            List<CartLine> shortLines = new ArrayList<CartLine>();
+            boolean unknown = false;
+            for (String name : names) {
+               if (taken.contains(name)) { continue; }
+               unknown |= !stock.containsKey(name);
+               shortLines.add(new CartLine(name, stock.getOrDefault(name, 0)));
+            }//end for
+            this._stockConflicts.incrementAndGet();
+            return new CartResult(unknown ? OrderStatus.UNKNOWN_PRODUCT : OrderStatus.INSUFFICIENT_UNITS, 0, shortLines);
+         }//end if
+
+         List<Object[]> lines = new ArrayList<Object[]>(names.length);
+         for (int i = 0; i < names.length; ++i) {
+            lines.add(new Object[] { req.customerID(), req.storeID(), names[i], units[i] });
+         }//end for
+         this._esql.executeBatch(
+            "INSERT INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime) VALUES (?, ?, ?, ?, localtimestamp)", lines);
+         return new CartResult(OrderStatus.PLACED, names.length, List.of());
+      });
+      if (result.status() == OrderStatus.PLACED) {
+         for (int i = 0; i < names.length; ++i) {
+            this._catalog.cache().take(req.storeID(), names[i], units[i]);
+            this._popularity.record(req.storeID(), req.customerID(), names[i]);
+         }//end for
+      }//end if
+      return result;
+   }//end placeCart
+
+   /**
+    * Places a cart on a session thread
+    *
+    * @param req the cart to place
+    * @return a future completed with the outcome, or exceptionally with the SQLException
+    */
+   public CompletableFuture<CartResult> placeCartAsync(CartRequest req) {
+      return this._esql.submit(() -> placeCart(req));
+   }//end placeCartAsync
+
+   /**
+    * @return orders refused because stock ran out between the customer seeing it and ordering
+    */
+   public long stockConflicts() { return this._stockConflicts.get(); }
+
+   /**
+    * Places an order on a session thread
+    *
+    * @param req the order to place
+    * @return a future completed with the outcome, or exceptionally with the SQLException
+    */
+   public CompletableFuture<OrderResult> placeOrderAsync(OrderRequest req) {
+      return this._esql.submit(() -> placeOrder(req));
+   }//end placeOrderAsync
+
+   /**
+    * Lists the most recent orders of a customer, newest first
+    *
+    * @param customerID the customer
+    * @param limit how many orders to return
+    * @return up to limit orders
+    * @throws java.sql.SQLException when the lookup fails
+    */
+   public List<OrderLine> recentOrders(int customerID, int limit) throws SQLException {
+      return customerOrders(customerID, null, limit).rows();
+   }//end recentOrders
+
+   /**
+    * Reads one page of a customer's orders, newest first
+    *
+    * @param customerID the customer
+    * @param after where the previous page ended, null for the newest orders
+    * @param pageSize orders per page
+    * @return the page, whose next key is null when no older orders follow
+    * @throws java.sql.SQLException when the lookup fails
+    */
+   public KeysetPager.Page<OrderLine, OrderKey> customerOrders(int customerID, OrderKey after, int pageSize) throws SQLException {
+      return ordersPage("customerID", customerID, after, pageSize);
+   }//end customerOrders
+
+   /**
+    * Reads one page of a store's orders, newest first
+    *
+    * @param storeID the store
+    * @param after where the previous page ended, null for the newest orders
+    * @param pageSize orders per page
+    * @return the page, whose next key is null when no older orders follow
+    * @throws java.sql.SQLException when the lookup fails
+    */
+   public KeysetPager.Page<OrderLine, OrderKey> storeOrders(int storeID, OrderKey after, int pageSize) throws SQLException {
+      return ordersPage("storeID", storeID, after, pageSize);
+   }//end storeOrders
+
+   // seeks past the key on the (column, orderTime DESC, orderNumber DESC) index, so
+   // every page reads only its own rows however far back it is. With Orders partitioned
+   // the plain bounds on orderTime let Postgres skip the months outside the window, and
+   // a wider window is only searched when a narrower one does not fill the page.
+   private KeysetPager.Page<OrderLine, OrderKey> ordersPage(String column, int id, OrderKey after, int pageSize) throws SQLException {
+      int limit = Math.max(1, pageSize);
+      List<OrderLine> rows = null;
+      for (Timestamp floor : this._esql.partitions().windows(after == null ? null : after.orderTime())) {
+         StringBuilder sql = new StringBuilder("SELECT " + OrderLine.COLUMNS + " FROM Orders WHERE " + column + " = ?");
+         List<Object> params = new ArrayList<Object>();
+         params.add(id);
+         if (after != null) {
+            sql.append(" AND orderTime <= ? AND (orderTime, orderNumber) < (?, ?)");
+            params.add(after.orderTime());
+            params.add(after.orderTime());
+            params.add(after.orderNumber());
+         }//end if
+         if (floor != null) {
+            sql.append(" AND orderTime >= ?");
+            params.add(floor);
+         }//end if
+         sql.append(" ORDER BY orderTime DESC, orderNumber DESC LIMIT ?");
+         params.add(limit + 1);
+         rows = this._esql.query(sql.toString(), OrderLine::map, params.toArray());
+         if (rows.size() > limit) { break; }
+      }//end for
+      return KeysetPager.Page.of(rows, limit, OrderKey::of);
+   }//end ordersPage
+
+   // maps a level name to its java.sql.Connection constant
+   static int isolationLevel(String name) {
+      switch (name.trim().toLowerCase()) {
+         case "serializable": return Connection.TRANSACTION_SERIALIZABLE;
+         case "repeatable_read": return Connection.TRANSACTION_REPEATABLE_READ;
+         case "read_committed": return Connection.TRANSACTION_READ_COMMITTED;
+         default: throw new IllegalArgumentException("Unknown isolation level: " + name);
+      }//end switch
+   }//end isolationLevel
+
+}//end OrderService
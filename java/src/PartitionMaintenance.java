@@ -0,0 +1,173 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class looks after the month partitions of Orders and ProductUpdates
+ * when the database was created in the partitioned mode of
+ * create_tables.sql (psql -v partitioned=1). At start-up and then every
+ * CHECK_HOURS it has the partitions up to MONTHS_AHEAD months ahead created,
+ * and with RETAIN_MONTHS set it detaches the months older than that. The
+ * detached months of Orders are moved to the OrderArchive when one is
+ * configured; other detached tables are left for the administrator.
+ *
+ * It also hands out the time windows the order and update listings search,
+ * newest first: a listing with a lower bound on the partition column only
+ * reads the months it covers, so the first windows are small and a wider
+ * one is only searched when they do not fill the page. Without partitions
+ * there is a single unbounded window.
+ *
+ * Orders detached from the table leave the popularity rollups with them.
+ * The in-memory popularity counts (amazon.popularity.source=memory) keep
+ * them until the next start.
+ *
+ */
+public class PartitionMaintenance {
+
+   // future months given partitions ahead of time (-Damazon.partitions.monthsAhead)
+   static final int MONTHS_AHEAD = Integer.getInteger("amazon.partitions.monthsAhead", 3);
+
+   // whole months kept before the current one, 0 keeps everything (-Damazon.partitions.retainMonths)
+   static final int RETAIN_MONTHS = Integer.getInteger("amazon.partitions.retainMonths", 0);
+
+   // hours between maintenance runs (-Damazon.partitions.checkHours)
+   static final long CHECK_HOURS = Long.getLong("amazon.partitions.checkHours", 24L);
+
+   // months searched by the successive windows of a listing before the unbounded one
+   static final int[] WINDOW_MONTHS = { 1, 12 };
+
+   // tables partitioned by month, and the name maintenance runs are timed under
+   static final String[] TABLES = { "Orders", "ProductUpdates" };
+   static final String MAINTAIN = "(maintain) month partitions";
+
+   private final Amazon _esql;
+   private volatile boolean _partitioned = false;
+   private ScheduledExecutorService _scheduler;
+
+   private final AtomicLong _runs = new AtomicLong();
+   private final AtomicLong _created = new AtomicLong();
+   private final AtomicLong _detached = new AtomicLong();
+   private volatile String _lastDetached = "";
+
+   public PartitionMaintenance(Amazon esql) {
+      this._esql = esql;
+   }//end PartitionMaintenance
+
+   /**
+    * Checks whether Orders is partitioned and, when it is, runs maintenance
+    * now and schedules it every CHECK_HOURS
+    *
+    * @throws java.sql.SQLException when the catalog cannot be read
+    */
+   void start() throws SQLException {
+      this._partitioned = this._esql.executeQuery("SELECT 1 FROM pg_partitioned_table WHERE partrelid = to_regclass('orders')") > 0;
+      if (!this._partitioned) { return; }
+      this._scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "partition-maintenance");
+         t.setDaemon(true);
+         return t;
+      });
+      this._scheduler.scheduleWithFixedDelay(() -> {
+         try {
+            maintain();
+         }catch (SQLException e) {
+            System.err.println("Partition maintenance failed: " + e.getMessage());
+         }//end try
+      }, 0, CHECK_HOURS, TimeUnit.HOURS);
+   }//end start
+
+   /**
+    * @return true when Orders and ProductUpdates are partitioned by month
+    */
+   public boolean partitioned() { return this._partitioned; }
+
+   /**
+    * Creates the coming months' partitions and, with a retention set,
+    * detaches the months that fell out of it
+    *
+    * @return the names of the partitions detached by this run
+    * @throws java.sql.SQLException when a partition cannot be created or detached
+    */
+   public List<String> maintain() throws SQLException {
+      List<String> detached = new ArrayList<String>();
+      if (!this._partitioned) { return detached; }
+      QueryMetrics.Template metrics = this._esql.metrics().template(MAINTAIN);
+      long start = System.nanoTime();
+      try {
+         for (String table : TABLES) {
+            Integer created = this._esql.queryFirst("SELECT ensure_month_partitions(?::regclass, ?)", rs -> rs.getInt(1), table, MONTHS_AHEAD);
+            this._created.addAndGet(created == null ? 0 : created);
+            if (RETAIN_MONTHS > 0) { detached.addAll(detach(table, RETAIN_MONTHS)); }
+         }//end for
+         // detached months of Orders go to the archive when there is one
+         if (this._esql.archive().enabled()) { this._esql.archive().archiveDetached(); }
+         metrics.record(System.nanoTime() - start, detached.size());
+      }catch (SQLException e) {
+         metrics.error(System.nanoTime() - start);
+         throw e;
+      }//end try
+      this._runs.incrementAndGet();
+      return detached;
+   }//end maintain
+
+   /**
+    * Detaches the month partitions of a table older than the months kept
+    *
+    * @param table Orders or ProductUpdates
+    * @param retainMonths whole months kept before the current one
+    * @return the names of the detached partitions
+    * @throws java.sql.SQLException when a partition cannot be detached
+    */
+   public List<String> detach(String table, int retainMonths) throws SQLException {
+      if (!this._partitioned || retainMonths <= 0) { return new ArrayList<String>(); }
+      LocalDate cutoff = LocalDate.now().withDayOfMonth(1).minusMonths(retainMonths);
+      List<String> detached = this._esql.inTransaction(c ->
+         this._esql.query("SELECT detach_month_partitions(?::regclass, ?)", rs -> rs.getString(1), table, cutoff));
+      this._detached.addAndGet(detached.size());
+      if (!detached.isEmpty()) { this._lastDetached = String.join(", ", detached); }
+      return detached;
+   }//end detach
+
+   /**
+    * Returns the successive lower bounds a newest-first listing searches
+    * below an upper bound, ending with null for no bound. Bounds fall on
+    * month starts so each window covers whole partitions.
+    *
+    * @param upper the newest time wanted, null for now
+    * @return the lower bounds, widest last
+    */
+   public List<Timestamp> windows(Timestamp upper) {
+      List<Timestamp> floors = new ArrayList<Timestamp>();
+      if (this._partitioned) {
+         LocalDateTime month = (upper == null ? LocalDateTime.now() : upper.toLocalDateTime()).toLocalDate().withDayOfMonth(1).atStartOfDay();
+         for (int months : WINDOW_MONTHS) { floors.add(Timestamp.valueOf(month.minusMonths(months - 1))); }
+      }//end if
+      floors.add(null);
+      return floors;
+   }//end windows
+
+   /**
+    * Stops the scheduled runs
+    */
+   void close() {
+      if (this._scheduler != null) { this._scheduler.shutdownNow(); }
+   }//end close
+
+   /**
+    * @return the maintenance counters as one line of text
+    */
+   public String partitionStats() {
+      if (!this._partitioned) { return "partitions: off, Orders and ProductUpdates are single tables"; }
+      return String.format("partitions: monthly, %d months ahead, retain %s; runs: %d, created: %d, detached: %d%s",
+         MONTHS_AHEAD, RETAIN_MONTHS > 0 ? RETAIN_MONTHS + " months" : "all", this._runs.get(), this._created.get(),
+         this._detached.get(), this._lastDetached.isEmpty() ? "" : " (last: " + this._lastDetached + ")");
+   }//end partitionStats
+
+}//end PartitionMaintenance
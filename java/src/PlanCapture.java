@@ -0,0 +1,106 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.time.LocalDateTime;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class logs the EXPLAIN (ANALYZE, BUFFERS) output of every distinct
+ * statement the application prepares, the first time it is prepared, so
+ * plan and timing changes show up when two logs are compared. It is off
+ * unless -Damazon.explain names a log file.
+ *
+ * The explained statement really runs, so it runs inside a savepoint (or
+ * a transaction of its own in autocommit mode) that is rolled back
+ * afterwards. Sequence values taken by an explained INSERT are not given
+ * back. Parameter values are never logged, only their types: statements
+ * such as the login check bind passwords.
+ *
+ */
+class PlanCapture {
+
+   private final PrintWriter _log;
+
+   // SQL texts already explained
+   private final Set<String> _seen = ConcurrentHashMap.newKeySet();
+
+   private PlanCapture(PrintWriter log) {
+      this._log = log;
+   }//end PlanCapture
+
+   /**
+    * Opens the capture log named by -Damazon.explain
+    *
+    * @return the capture, or null when the property is not set
+    */
+   static PlanCapture fromProperties() {
+      String path = System.getProperty("amazon.explain");
+      if (path == null || path.isEmpty()) { return null; }
+      try {
+         return new PlanCapture(new PrintWriter(new FileWriter(path, true), true));
+      }catch (IOException e) {
+         System.err.println("Cannot open the plan log " + path + ": " + e.getMessage());
+         return null;
+      }//end try
+   }//end fromProperties
+
+   /**
+    * Explains a statement with its parameters unless it was explained before
+    *
+    * @param c the connection the statement is about to run on
+    * @param sql the statement text
+    * @param params its parameter values
+    */
+   void capture(Connection c, String sql, Object[] params) {
+      if (!this._seen.add(sql)) { return; }
+      StringBuilder entry = new StringBuilder();
+      entry.append("-- ").append(LocalDateTime.now()).append('\n').append(sql).append('\n');
+      if (params.length > 0) { entry.append("-- parameter types: ").append(types(params)).append('\n'); }
+      try {
+         boolean autoCommit = c.getAutoCommit();
+         Savepoint savepoint = null;
+         if (autoCommit) { c.setAutoCommit(false); }
+         else { savepoint = c.setSavepoint(); }
+         try (PreparedStatement explain = c.prepareStatement("EXPLAIN (ANALYZE, BUFFERS) " + sql)) {
+            for (int i = 0; i < params.length; ++i) { explain.setObject(i + 1, params[i]); }
+            try (ResultSet rs = explain.executeQuery()) {
+               while (rs.next()) { entry.append(rs.getString(1)).append('\n'); }
+            }//end try
+         }catch (SQLException e) {
+            entry.append("-- not explained: ").append(e.getMessage()).append('\n');
+         }finally {
+            if (autoCommit) {
+               c.rollback();
+               c.setAutoCommit(true);
+            }
+            else { c.rollback(savepoint); }
+         }//end try
+      }catch (SQLException e) {
+         entry.append("-- not explained: ").append(e.getMessage()).append('\n');
+      }//end try
+      synchronized (this._log) {
+         this._log.println(entry);
+      }//end synchronized
+   }//end capture
+
+   // the class of each value, so the log shows how the statement was bound without the values
+   private static String types(Object[] params) {
+      StringBuilder types = new StringBuilder("[");
+      for (int i = 0; i < params.length; ++i) {
+         if (i > 0) { types.append(", "); }
+         types.append(params[i] == null ? "null" : params[i].getClass().getSimpleName());
+      }//end for
+      return types.append(']').toString();
+   }//end types
+
+   void close() {
+      this._log.close();
+   }//end close
+
+}//end PlanCapture
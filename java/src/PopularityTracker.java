@@ -0,0 +1,224 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps the most ordered products and the most active customers
+ * of every store in memory, so the manager's popularity screens need no
+ * query. Each store has a Space-Saving summary per kind, fed by every order
+ * this process places and warmed at startup from the rollup tables.
+ *
+ * Counts are upper bounds: a key that displaced another inherits its
+ * count, and a key one store's full summary has dropped is charged that
+ * summary's smallest count when the stores are merged. Orders placed by
+ * other processes after the warm-up are not seen. Run with -Damazon.popularity.source=sql to always read the rollups
+ * instead.
+ *
+ */
+public class PopularityTracker {
+
+   /**
+    * A popular key and how often it was ordered; count - error is a lower
+    * bound of the true count.
+    */
+   public record Popular<K>(K key, long count, long error) {}
+
+   // counters per store and kind (-Damazon.topk.capacity)
+   static final int CAPACITY = Integer.getInteger("amazon.topk.capacity", 64);
+
+   // where the popularity screens read from: memory or sql (-Damazon.popularity.source)
+   static final boolean FROM_MEMORY = !"sql".equalsIgnoreCase(System.getProperty("amazon.popularity.source", "memory"));
+
+   // stores share a lock by storeID, a power of two
+   private static final int STRIPES = 64;
+
+   private static final class StoreSummary {
+      final SpaceSaving<String> products = new SpaceSaving<String>(CAPACITY);
+      final SpaceSaving<Integer> customers = new SpaceSaving<Integer>(CAPACITY);
+   }
+
+   private final Amazon _esql;
+   private final ConcurrentHashMap<Integer, StoreSummary> _stores = new ConcurrentHashMap<Integer, StoreSummary>();
+   private final Object[] _locks = new Object[STRIPES];
+
+   // stores of each manager, valid for _managedVersion of Store
+   private final ConcurrentHashMap<Integer, int[]> _managed = new ConcurrentHashMap<Integer, int[]>();
+   private volatile long _managedVersion = TableVersions.UNKNOWN;
+
+   /**
+    * An order line counted before the warm-up finished.
+    */
+   private record Early(int storeID, int customerID, String productName) {}
+
+   // order lines counted while warm() runs, replayed once it has read the rollups;
+   // null once warm or when the screens read the rollups; guarded by _earlyLock
+   private volatile List<Early> _early = FROM_MEMORY ? new ArrayList<Early>() : null;
+   private final Object _earlyLock = new Object();
+
+   private volatile boolean _warm = false;
+   private final AtomicLong _recorded = new AtomicLong();
+
+   public PopularityTracker(Amazon esql) {
+      this._esql = esql;
+      for (int i = 0; i < STRIPES; ++i) { this._locks[i] = new Object(); }
+   }//end PopularityTracker
+
+   private Object lock(int storeID) {
+      return this._locks[storeID & (STRIPES - 1)];
+   }//end lock
+
+   /**
+    * Counts one placed order line
+    *
+    * @param storeID the store ordered from
+    * @param customerID the customer who ordered
+    * @param productName the product ordered
+    */
+   public void record(int storeID, int customerID, String productName) {
+      this._recorded.incrementAndGet();
+      if (this._early != null) {
+         synchronized (this._earlyLock) {
+            if (this._early != null) {
+               this._early.add(new Early(storeID, customerID, productName));
+               return;
+            }//end if
+         }//end synchronized
+      }//end if
+      offer(storeID, customerID, productName);
+   }//end record
+
+   private void offer(int storeID, int customerID, String productName) {
+      StoreSummary summary = this._stores.computeIfAbsent(storeID, id -> new StoreSummary());
+      synchronized (lock(storeID)) {
+         summary.products.offer(productName.stripTrailing(), 1);
+         summary.customers.offer(customerID, 1);
+      }//end synchronized
+   }//end offer
+
+   /**
+    * Loads the summaries from the order rollups. Until it finishes, ready()
+    * is false and the screens read the rollups themselves.
+    *
+    * Orders recorded meanwhile are held back. Both rollups are read from
+    * one snapshot, and only the orders recorded after the snapshot was
+    * requested are replayed; earlier ones had committed and are in the
+    * rollups already. An order that commits just before the snapshot but
+    * is recorded after the cut is counted twice, which keeps the counts
+    * upper bounds.
+    *
+    * @throws java.sql.SQLException when the rollups cannot be read
+    */
+   public void warm() throws SQLException {
+      int[] cut = { 0 };
+      try {
+         this._esql.inTransaction(Connection.TRANSACTION_REPEATABLE_READ, c -> {
+            // a retried attempt starts over; nothing else writes the summaries yet
+            this._stores.clear();
+            synchronized (this._earlyLock) { cut[0] = this._early.size(); }
+            loadRollups();
+            return null;
+         });
+      }catch (SQLException | RuntimeException e) {
+         // the screens keep reading the rollups, so nothing needs replaying
+         synchronized (this._earlyLock) { this._early = null; }
+         throw e;
+      }//end try
+      synchronized (this._earlyLock) {
+         List<Early> early = this._early;
+         for (int i = cut[0]; i < early.size(); ++i) {
+            Early e = early.get(i);
+            offer(e.storeID(), e.customerID(), e.productName());
+         }//end for
+         this._early = null;
+         this._warm = true;
+      }//end synchronized
+   }//end warm
+
+   // feeds the rollup rows into the summaries; the first read takes the transaction's snapshot
+   private void loadRollups() throws SQLException {
+      this._esql.executeQueryAndStream("SELECT storeID, productName, orderCount FROM StoreProductPopularity", row -> {
+         int storeID = row.getInt(1);
+         StoreSummary summary = this._stores.computeIfAbsent(storeID, id -> new StoreSummary());
+         synchronized (lock(storeID)) { summary.products.offer(row.getString(2).stripTrailing(), row.getLong(3)); }
+         return true;
+      });
+      this._esql.executeQueryAndStream("SELECT storeID, customerID, orderCount FROM StoreCustomerPopularity", row -> {
+         int storeID = row.getInt(1);
+         StoreSummary summary = this._stores.computeIfAbsent(storeID, id -> new StoreSummary());
+         synchronized (lock(storeID)) { summary.customers.offer(row.getInt(2), row.getLong(3)); }
+         return true;
+      });
+   }//end loadRollups
+
+   /**
+    * @return true when the screens may be answered from memory
+    */
+   public boolean ready() { return FROM_MEMORY && this._warm; }
+
+   /**
+    * Returns the products ordered most often across a manager's stores
+    *
+    * @param managerID the manager
+    * @param k how many to return
+    * @return up to k products, most ordered first
+    * @throws java.sql.SQLException when the manager's stores cannot be read
+    */
+   public List<Popular<String>> topProducts(int managerID, int k) throws SQLException {
+      SpaceSaving.Merged<String> merged = new SpaceSaving.Merged<String>();
+      for (int storeID : storesOf(managerID)) {
+         StoreSummary summary = this._stores.get(storeID);
+         if (summary == null) { continue; }
+         synchronized (lock(storeID)) { summary.products.addTo(merged); }
+      }//end for
+      return popular(merged.totals(), k);
+   }//end topProducts
+
+   /**
+    * Returns the customers who ordered most often across a manager's stores
+    *
+    * @param managerID the manager
+    * @param k how many to return
+    * @return up to k customer IDs, most orders first
+    * @throws java.sql.SQLException when the manager's stores cannot be read
+    */
+   public List<Popular<Integer>> topCustomers(int managerID, int k) throws SQLException {
+      SpaceSaving.Merged<Integer> merged = new SpaceSaving.Merged<Integer>();
+      for (int storeID : storesOf(managerID)) {
+         StoreSummary summary = this._stores.get(storeID);
+         if (summary == null) { continue; }
+         synchronized (lock(storeID)) { summary.customers.addTo(merged); }
+      }//end for
+      return popular(merged.totals(), k);
+   }//end topCustomers
+
+   static <K> List<Popular<K>> popular(Map<K, long[]> totals, int k) {
+      List<Popular<K>> top = new ArrayList<Popular<K>>();
+      for (Map.Entry<K, long[]> e : SpaceSaving.top(totals, k)) {
+         top.add(new Popular<K>(e.getKey(), e.getValue()[0], e.getValue()[1]));
+      }//end for
+      return top;
+   }//end popular
+
+   // the stores a manager runs, cached until Store changes
+   int[] storesOf(int managerID) throws SQLException {
+      long version = this._esql.versions().current("store");
+      if (version == TableVersions.UNKNOWN || version != this._managedVersion) {
+         this._managed.clear();
+         this._managedVersion = version;
+      }//end if
+      int[] stores = this._managed.get(managerID);
+      if (stores != null) { return stores; }
+      List<Integer> ids = this._esql.query("SELECT storeID FROM Store WHERE managerID = ?", rs -> rs.getInt(1), managerID);
+      stores = ids.stream().mapToInt(Integer::intValue).toArray();
+      if (version != TableVersions.UNKNOWN) { this._managed.put(managerID, stores); }
+      return stores;
+   }//end storesOf
+
+   public int stores() { return this._stores.size(); }
+   public long recorded() { return this._recorded.get(); }
+
+}//end PopularityTracker
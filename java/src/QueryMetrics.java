@@ -0,0 +1,252 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * This class records how long every statement template takes, how many
+ * rows it returns or changes, how many bytes of text it fetches and how
+ * often it fails. A template is the SQL text with its '?' placeholders, so
+ * every call of a menu query lands on the same template.
+ *
+ * Latencies go into a log-linear histogram: eight buckets per power of two,
+ * so percentiles are within 12.5% of the true value from nanoseconds up to
+ * over an hour. Recording a call is a map lookup and a few atomic adds; it
+ * allocates nothing once the template has been seen.
+ *
+ * The counters are published as the MBean MockAmazon:type=QueryMetrics and,
+ * with -Damazon.metrics.dumpSeconds, written as a text report to stderr or
+ * the file named by -Damazon.metrics.file.
+ *
+ */
+public class QueryMetrics implements QueryMetricsMBean {
+
+   // buckets per power of two, and powers of two covered (up to 2^43 ns, about two hours)
+   private static final int SUB_BUCKETS = 8;
+   private static final int SUB_BITS = 3;
+   static final int BUCKETS = (43 - SUB_BITS + 1) * SUB_BUCKETS;
+
+   // templates tracked on their own; later ones share one entry (-Damazon.metrics.maxTemplates)
+   static final int MAX_TEMPLATES = Integer.getInteger("amazon.metrics.maxTemplates", 1000);
+   static final String OTHER = "(other statements)";
+
+   // seconds between text reports, 0 for none (-Damazon.metrics.dumpSeconds)
+   static final long DUMP_SECONDS = Long.getLong("amazon.metrics.dumpSeconds", 0L);
+
+   static final String OBJECT_NAME = "MockAmazon:type=QueryMetrics";
+
+   /**
+    * Counters of one statement template.
+    */
+   public static final class Template {
+      final String sql;
+      final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+      final AtomicLong calls = new AtomicLong();
+      final AtomicLong errors = new AtomicLong();
+      final AtomicLong rows = new AtomicLong();
+      final AtomicLong bytes = new AtomicLong();
+      final AtomicLong totalNanos = new AtomicLong();
+      final AtomicLong maxNanos = new AtomicLong();
+
+      Template(String sql) {
+         this.sql = sql;
+      }
+
+      /**
+       * Records one finished call
+       *
+       * @param nanos how long it ran
+       * @param rowCount rows returned or changed
+       */
+      public void record(long nanos, long rowCount) {
+         this.buckets.incrementAndGet(bucket(nanos));
+         this.calls.incrementAndGet();
+         this.rows.addAndGet(rowCount);
+         this.totalNanos.addAndGet(nanos);
+         this.maxNanos.accumulateAndGet(nanos, Math::max);
+      }//end record
+
+      /**
+       * Records one failed call
+       */
+      public void error(long nanos) {
+         this.errors.incrementAndGet();
+         record(nanos, 0);
+      }//end error
+
+      public void addBytes(long n) { this.bytes.addAndGet(n); }
+
+      /**
+       * @return the latency in nanoseconds below which the given fraction of calls finished
+       */
+      public long percentile(double fraction) {
+         long[] counts = new long[BUCKETS];
+         long total = 0;
+         for (int i = 0; i < BUCKETS; ++i) { total += counts[i] = this.buckets.get(i); }
+         if (total == 0) { return 0; }
+         long rank = (long) Math.ceil(fraction * total), seen = 0;
+         for (int i = 0; i < BUCKETS; ++i) {
+            seen += counts[i];
+            if (seen >= rank) { return Math.min(upperBound(i), this.maxNanos.get()); }
+         }//end for
+         return this.maxNanos.get();
+      }//end percentile
+
+      void reset() {
+         for (int i = 0; i < BUCKETS; ++i) { this.buckets.set(i, 0); }
+         this.calls.set(0);
+         this.errors.set(0);
+         this.rows.set(0);
+         this.bytes.set(0);
+         this.totalNanos.set(0);
+         this.maxNanos.set(0);
+      }//end reset
+   }//end Template
+
+   // bucket of a latency: exact below 8 ns, then 8 buckets per power of two
+   static int bucket(long nanos) {
+      if (nanos < SUB_BUCKETS) { return (int) Math.max(0, nanos); }
+      int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+      int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+      return Math.min(BUCKETS - 1, (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub);
+   }//end bucket
+
+   // largest latency that falls in a bucket
+   static long upperBound(int bucket) {
+      if (bucket < SUB_BUCKETS) { return bucket; }
+      int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+      long sub = bucket % SUB_BUCKETS;
+      return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+   }//end upperBound
+
+   private final ConcurrentHashMap<String, Template> _templates = new ConcurrentHashMap<String, Template>();
+   private final ScheduledExecutorService _dumper;
+   private final PrintWriter _dumpTo;
+   private ObjectName _name;
+
+   public QueryMetrics() {
+      this._dumpTo = DUMP_SECONDS > 0 ? openDump() : null;
+      if (this._dumpTo == null) { this._dumper = null; }
+      else {
+         this._dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "query-metrics");
+            t.setDaemon(true);
+            return t;
+         });
+         this._dumper.scheduleAtFixedRate(() -> this._dumpTo.println(report()), DUMP_SECONDS, DUMP_SECONDS, TimeUnit.SECONDS);
+      }//end if
+      register();
+   }//end QueryMetrics
+
+   private static PrintWriter openDump() {
+      String path = System.getProperty("amazon.metrics.file");
+      if (path == null || path.isEmpty()) { return new PrintWriter(System.err, true); }
+      try {
+         return new PrintWriter(new FileWriter(path, true), true);
+      }catch (IOException e) {
+         System.err.println("Cannot open the metrics file " + path + ": " + e.getMessage());
+         return null;
+      }//end try
+   }//end openDump
+
+   private void register() {
+      try {
+         MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+         ObjectName name = new ObjectName(OBJECT_NAME);
+         // a second Amazon in the same JVM (the benchmarks) gets a numbered name
+         for (int n = 2; server.isRegistered(name); ++n) { name = new ObjectName(OBJECT_NAME + ",instance=" + n); }
+         server.registerMBean(this, name);
+         this._name = name;
+      }catch (JMException e) {
+         System.err.println("Query metrics are not published over JMX: " + e.getMessage());
+      }//end try
+   }//end register
+
+   /**
+    * Returns the counters of a statement template, creating them the first
+    * time; callers on hot paths may keep the result
+    *
+    * @param sql the statement text
+    * @return its counters
+    */
+   public Template template(String sql) {
+      Template t = this._templates.get(sql);
+      if (t != null) { return t; }
+      if (this._templates.size() >= MAX_TEMPLATES) { sql = OTHER; }
+      return this._templates.computeIfAbsent(sql, Template::new);
+   }//end template
+
+   /**
+    * @return one line per template, the most total time first
+    */
+   public String report() {
+      List<Template> templates = new ArrayList<Template>(this._templates.values());
+      templates.sort((a, b) -> Long.compare(b.totalNanos.get(), a.totalNanos.get()));
+      StringBuilder out = new StringBuilder();
+      out.append(String.format("%10s %8s %12s %14s %10s %10s %10s %10s %10s  %s%n",
+                               "calls", "errors", "rows", "bytes", "mean ms", "p50 ms", "p99 ms", "p999 ms", "max ms", "statement"));
+      for (Template t : templates) {
+         long calls = t.calls.get();
+         if (calls == 0) { continue; }
+         out.append(String.format("%10d %8d %12d %14d %10.3f %10.3f %10.3f %10.3f %10.3f  %s%n",
+                                  calls, t.errors.get(), t.rows.get(), t.bytes.get(), t.totalNanos.get() / 1e6 / calls,
+                                  t.percentile(0.5) / 1e6, t.percentile(0.99) / 1e6, t.percentile(0.999) / 1e6,
+                                  t.maxNanos.get() / 1e6, t.sql));
+      }//end for
+      return out.toString();
+   }//end report
+
+   @Override
+   public String[] getTemplates() {
+      return report().split("\n");
+   }//end getTemplates
+
+   @Override
+   public int getTemplateCount() { return this._templates.size(); }
+
+   @Override
+   public long getCalls() {
+      long calls = 0;
+      for (Template t : this._templates.values()) { calls += t.calls.get(); }
+      return calls;
+   }//end getCalls
+
+   @Override
+   public long getErrors() {
+      long errors = 0;
+      for (Template t : this._templates.values()) { errors += t.errors.get(); }
+      return errors;
+   }//end getErrors
+
+   @Override
+   public void reset() {
+      for (Template t : this._templates.values()) { t.reset(); }
+   }//end reset
+
+   void close() {
+      if (this._dumper != null) {
+         this._dumper.shutdown();
+         this._dumpTo.println(report());
+      }//end if
+      if (this._name != null) {
+         try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(this._name);
+         }catch (JMException e) {
+            // already gone
+         }//end try
+      }//end if
+   }//end close
+
+}//end QueryMetrics
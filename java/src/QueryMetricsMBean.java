@@ -0,0 +1,19 @@
+/**
+ * The JMX view of QueryMetrics.
+ *
+ */
+public interface QueryMetricsMBean {
+
+   // the text report, one line per statement template
+   String[] getTemplates();
+
+   int getTemplateCount();
+
+   long getCalls();
+
+   long getErrors();
+
+   // zeroes every counter
+   void reset();
+
+}//end QueryMetricsMBean
@@ -0,0 +1,101 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps the role and location of logged-in users so the menus
+ * do not read Users on every screen. Entries are reloaded after a time to
+ * live, and dropped at once when the admin screens change the user.
+ *
+ */
+public class SessionCache {
+
+   /**
+    * What the menus need to know about an authenticated user.
+    */
+   public record Session(int userID, String role, double latitude, double longitude) {
+      // columns map() reads, in order
+      static final String COLUMNS = "userID, type, latitude, longitude";
+
+      static Session map(ResultSet rs) throws SQLException {
+         return new Session(rs.getInt(1), rs.getString(2).trim(), rs.getDouble(3), rs.getDouble(4));
+      }
+   }
+
+   // how long a cached session is trusted before Users is read again (-Damazon.session.ttlSeconds)
+   static final long TTL_SECONDS = Long.getLong("amazon.session.ttlSeconds", 30L);
+
+   private record Entry(Session session, long loadedAt) {}
+
+   private final Amazon _esql;
+   private final long _ttlNanos;
+   private final ConcurrentHashMap<Integer, Entry> _sessions = new ConcurrentHashMap<Integer, Entry>();
+
+   private final AtomicLong _hits = new AtomicLong();
+   private final AtomicLong _loads = new AtomicLong();
+   private final AtomicLong _invalidations = new AtomicLong();
+
+   public SessionCache(Amazon esql) {
+      this._esql = esql;
+      this._ttlNanos = TimeUnit.SECONDS.toNanos(TTL_SECONDS);
+   }//end SessionCache
+
+   /**
+    * Returns the session of a user, reading Users when it is not cached or
+    * has outlived the TTL
+    *
+    * @param userID the user
+    * @return the session, or null when the user does not exist
+    * @throws java.sql.SQLException when the lookup fails
+    */
+   public Session get(int userID) throws SQLException {
+      Entry entry = this._sessions.get(userID);
+      if (entry != null && System.nanoTime() - entry.loadedAt() < this._ttlNanos) {
+         this._hits.incrementAndGet();
+         return entry.session();
+      }//end if
+      this._loads.incrementAndGet();
+      Session session = this._esql.queryFirst("SELECT " + Session.COLUMNS + " FROM Users WHERE userID = ?", Session::map, userID);
+      if (session == null) { this._sessions.remove(userID); }
+      else { remember(session); }
+      return session;
+   }//end get
+
+   /**
+    * Checks a user's credentials and caches their session
+    *
+    * @param name the user name
+    * @param password the user's password
+    * @return the session, or null when no user has that name and password
+    * @throws java.sql.SQLException when the lookup fails
+    */
+   public Session authenticate(String name, String password) throws SQLException {
+      Session session = this._esql.queryFirst("SELECT " + Session.COLUMNS + " FROM Users WHERE name = ? AND password = ?",
+                                              Session::map, name, password);
+      if (session != null) { remember(session); }
+      return session;
+   }//end authenticate
+
+   /**
+    * Caches a session read elsewhere.
+    */
+   public void remember(Session session) {
+      this._sessions.put(session.userID(), new Entry(session, System.nanoTime()));
+   }//end remember
+
+   /**
+    * Drops a user's cached session so the next get() reads Users. Called
+    * whenever the user's type or location changes.
+    */
+   public void invalidate(int userID) {
+      if (this._sessions.remove(userID) != null) { this._invalidations.incrementAndGet(); }
+   }//end invalidate
+
+   public int size() { return this._sessions.size(); }
+   public long hits() { return this._hits.get(); }
+   public long loads() { return this._loads.get(); }
+   public long invalidations() { return this._invalidations.get(); }
+
+}//end SessionCache
@@ -0,0 +1,49 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class creates the executor that service calls run on when they are
+ * submitted asynchronously. On a JVM with virtual threads every session
+ * gets its own virtual thread; older JVMs fall back to a cached pool of
+ * daemon platform threads.
+ *
+ */
+final class SessionExecutor {
+
+   private SessionExecutor() {}
+
+   /**
+    * Creates a thread-per-task executor for simulated or remote sessions
+    *
+    * @return virtual-thread executor when available, otherwise a cached thread pool
+    */
+   static ExecutorService create() {
+      try {
+         // looked up reflectively so the code still compiles and runs on JDKs before 21
+         Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+         return (ExecutorService) factory.invoke(null);
+      }catch (ReflectiveOperationException e) {
+         AtomicInteger count = new AtomicInteger();
+         return Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "session-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+         });
+      }//end try
+   }//end create
+
+   /**
+    * @return true when create() hands out virtual threads on this JVM
+    */
+   static boolean virtualThreadsAvailable() {
+      try {
+         Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+         return true;
+      }catch (NoSuchMethodException e) {
+         return false;
+      }//end try
+   }//end virtualThreadsAvailable
+
+}//end SessionExecutor
@@ -0,0 +1,111 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class is a Space-Saving summary: it follows the most frequent keys
+ * of a stream with a fixed number of counters. A key that arrives while
+ * every counter is taken replaces the smallest counter and inherits its
+ * count as possible error, so any key more frequent than total / capacity
+ * is always kept and no count is ever under-reported.
+ *
+ * Not thread-safe; PopularityTracker guards each summary with a lock.
+ *
+ */
+final class SpaceSaving<K> {
+
+   private final int _capacity;
+
+   // key -> {count, error}
+   private final HashMap<K, long[]> _counters;
+
+   SpaceSaving(int capacity) {
+      this._capacity = Math.max(1, capacity);
+      this._counters = new HashMap<K, long[]>(this._capacity * 2);
+   }//end SpaceSaving
+
+   /**
+    * Counts n more occurrences of a key
+    */
+   void offer(K key, long n) {
+      long[] counter = this._counters.get(key);
+      if (counter != null) { counter[0] += n; return; }
+      if (this._counters.size() < this._capacity) {
+         this._counters.put(key, new long[] { n, 0 });
+         return;
+      }//end if
+
+      // replace the smallest counter
+      K smallest = null;
+      long[] min = null;
+      for (Map.Entry<K, long[]> e : this._counters.entrySet()) {
+         if (min == null || e.getValue()[0] < min[0]) { smallest = e.getKey(); min = e.getValue(); }
+      }//end for
+      this._counters.remove(smallest);
+      min[1] = min[0];
+      min[0] += n;
+      this._counters.put(key, min);
+   }//end offer
+
+   /**
+    * Running merge of the summaries of several stores. A key a full summary
+    * does not hold may still have occurred there up to that summary's
+    * smallest count, so it is charged that much as count and as error;
+    * totals therefore stay upper bounds and count - error lower bounds.
+    *
+    * Entries are kept relative to the sum of the floors charged so far, so
+    * adding a summary only touches the keys it holds.
+    */
+   static final class Merged<K> {
+      // key -> {count - floors, error - floors}
+      private final HashMap<K, long[]> _relative = new HashMap<K, long[]>();
+      private long _floors = 0;
+
+      /**
+       * @return key -> {count, error} over every summary added
+       */
+      Map<K, long[]> totals() {
+         Map<K, long[]> totals = new HashMap<K, long[]>(this._relative.size() * 2);
+         for (Map.Entry<K, long[]> e : this._relative.entrySet()) {
+            totals.put(e.getKey(), new long[] { e.getValue()[0] + this._floors, e.getValue()[1] + this._floors });
+         }//end for
+         return totals;
+      }//end totals
+   }//end Merged
+
+   /**
+    * Adds this summary's counts and errors into a merge, for merging the
+    * summaries of several stores.
+    */
+   void addTo(Merged<K> merged) {
+      long floor = floor();
+      for (Map.Entry<K, long[]> e : this._counters.entrySet()) {
+         // a key new to the merge was charged every earlier floor, which its relative entry of 0 stands for
+         long[] total = merged._relative.computeIfAbsent(e.getKey(), k -> new long[2]);
+         total[0] += e.getValue()[0] - floor;
+         total[1] += e.getValue()[1] - floor;
+      }//end for
+      merged._floors += floor;
+   }//end addTo
+
+   // largest count a key missing from this summary can have had: none were evicted until it filled up
+   private long floor() {
+      if (this._counters.size() < this._capacity) { return 0; }
+      long min = Long.MAX_VALUE;
+      for (long[] counter : this._counters.values()) { min = Math.min(min, counter[0]); }
+      return min;
+   }//end floor
+
+   /**
+    * @return the keys with the k largest counts, largest first, as {count, error}
+    */
+   static <K> List<Map.Entry<K, long[]>> top(Map<K, long[]> totals, int k) {
+      List<Map.Entry<K, long[]>> entries = new ArrayList<Map.Entry<K, long[]>>(totals.entrySet());
+      entries.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+      return entries.subList(0, Math.min(k, entries.size()));
+   }//end top
+
+   int size() { return this._counters.size(); }
+
+}//end SpaceSaving
@@ -0,0 +1,100 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps the prepared statements of one physical connection,
+ * keyed by their SQL text, so that a statement is parsed once and then
+ * reused. The least recently used statement is closed once the cache
+ * grows past its capacity.
+ *
+ */
+public class StatementCache {
+
+   // connection the cached statements belong to
+   private final Connection _connection;
+
+   // maximum number of open statements kept for the connection
+   private final int _capacity;
+
+   // statements in access order, eldest first
+   private final LinkedHashMap<String, PreparedStatement> _statements;
+
+   private final AtomicLong _hits = new AtomicLong();
+   private final AtomicLong _misses = new AtomicLong();
+   private final AtomicLong _evictions = new AtomicLong();
+
+   /**
+    * Creates an empty cache for the given connection
+    *
+    * @param connection the connection statements are prepared on
+    * @param capacity the maximum number of statements kept open
+    */
+   public StatementCache(Connection connection, int capacity) {
+      this._connection = connection;
+      this._capacity = Math.max(1, capacity);
+      this._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+   }//end StatementCache
+
+   /**
+    * Returns the cached statement for the SQL text, preparing it on a miss.
+    * Parameters left over from a previous use are cleared.
+    *
+    * @param sql the SQL text with '?' placeholders
+    * @return an open prepared statement
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   public synchronized PreparedStatement prepare(String sql) throws SQLException {
+      PreparedStatement stmt = this._statements.get(sql);
+      if (stmt != null && !stmt.isClosed()) {
+         this._hits.incrementAndGet();
+         stmt.clearParameters();
+         return stmt;
+      }//end if
+
+      this._misses.incrementAndGet();
+      stmt = this._connection.prepareStatement(sql);
+      this._statements.put(sql, stmt);
+      evict();
+      return stmt;
+   }//end prepare
+
+   // closes least recently used statements until the cache fits its capacity
+   private void evict() {
+      Iterator<Map.Entry<String, PreparedStatement>> it = this._statements.entrySet().iterator();
+      while (this._statements.size() > this._capacity && it.hasNext()) {
+         PreparedStatement eldest = it.next().getValue();
+         it.remove();
+         this._evictions.incrementAndGet();
+         try {
+            eldest.close();
+         }catch (SQLException e) {
+            // ignored.
+         }//end try
+      }//end while
+   }//end evict
+
+   /**
+    * Closes every cached statement.
+    */
+   public synchronized void close() {
+      for (PreparedStatement stmt : this._statements.values()) {
+         try {
+            stmt.close();
+         }catch (SQLException e) {
+            // ignored.
+         }//end try
+      }//end for
+      this._statements.clear();
+   }//end close
+
+   public synchronized int size() { return this._statements.size(); }
+   public long hits() { return this._hits.get(); }
+   public long misses() { return this._misses.get(); }
+   public long evictions() { return this._evictions.get(); }
+
+}//end StatementCache
@@ -0,0 +1,213 @@
+import java.util.Arrays;
+
+/**
+ * This class is an immutable grid index over store locations. Stores are
+ * bucketed into square cells and kept in primitive arrays sorted by cell,
+ * so a radius query only looks at the cells that overlap the search
+ * circle instead of every store. Distances use the same euclidean model
+ * as Amazon.calculateDistance.
+ *
+ */
+public final class StoreIndex {
+
+   private final double _cellSize;
+
+   // one entry per non-empty cell, sorted by key; stores of cell i are
+   // at positions _cellStart[i] .. _cellStart[i + 1] - 1 of the arrays below
+   private final long[] _cellKeys;
+   private final int[] _cellStart;
+
+   private final int[] _ids;
+   private final double[] _lat;
+   private final double[] _lon;
+
+   // bounding box of all stores, used to stop widening nearest-neighbour searches
+   private final double _minLat, _maxLat, _minLon, _maxLon;
+
+   private StoreIndex(double cellSize, long[] cellKeys, int[] cellStart, int[] ids, double[] lat, double[] lon) {
+      this._cellSize = cellSize;
+      this._cellKeys = cellKeys;
+      this._cellStart = cellStart;
+      this._ids = ids;
+      this._lat = lat;
+      this._lon = lon;
+      double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+      double minLon = Double.POSITIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+      for (int i = 0; i < ids.length; ++i) {
+         minLat = Math.min(minLat, lat[i]); maxLat = Math.max(maxLat, lat[i]);
+         minLon = Math.min(minLon, lon[i]); maxLon = Math.max(maxLon, lon[i]);
+      }//end for
+      this._minLat = minLat; this._maxLat = maxLat;
+      this._minLon = minLon; this._maxLon = maxLon;
+   }
+
+   /**
+    * Builds an index over the given stores
+    *
+    * @param ids store IDs
+    * @param lat store latitudes, parallel to ids
+    * @param lon store longitudes, parallel to ids
+    * @param cellSize side of a grid cell; the usual search radius is a good choice
+    * @return the index
+    */
+   public static StoreIndex build(int[] ids, double[] lat, double[] lon, double cellSize) {
+      int n = ids.length;
+      long[] keys = new long[n];
+      Integer[] order = new Integer[n];
+      for (int i = 0; i < n; ++i) {
+         keys[i] = key(cell(lat[i], cellSize), cell(lon[i], cellSize));
+         order[i] = i;
+      }//end for
+      Arrays.sort(order, (a, b) -> Long.compare(keys[a], keys[b]));
+
+      int[] sortedIds = new int[n];
+      double[] sortedLat = new double[n];
+      double[] sortedLon = new double[n];
+      long[] cellKeys = new long[n];
+      int[] cellStart = new int[n + 1];
+      int cells = 0;
+      for (int i = 0; i < n; ++i) {
+         int src = order[i];
+         sortedIds[i] = ids[src];
+         sortedLat[i] = lat[src];
+         sortedLon[i] = lon[src];
+         if (cells == 0 || cellKeys[cells - 1] != keys[src]) {
+            cellKeys[cells] = keys[src];
+            cellStart[cells] = i;
+            ++cells;
+         }//end if
+      }//end for
+      cellStart[cells] = n;
+
+      return new StoreIndex(cellSize, Arrays.copyOf(cellKeys, cells), Arrays.copyOf(cellStart, cells + 1),
+                            sortedIds, sortedLat, sortedLon);
+   }//end build
+
+   private static int cell(double coordinate, double cellSize) {
+      return (int) Math.floor(coordinate / cellSize);
+   }
+
+   private static long key(int latCell, int lonCell) {
+      return ((long) latCell << 32) | (lonCell & 0xffffffffL);
+   }
+
+   public int size() { return this._ids.length; }
+
+   /**
+    * Stores found by a query, as parallel primitive arrays that grow as needed.
+    */
+   public static final class Hits {
+      public int[] ids = new int[16];
+      public double[] dist = new double[16];
+      public int size = 0;
+
+      void add(int id, double d) {
+         if (this.size == this.ids.length) {
+            this.ids = Arrays.copyOf(this.ids, this.size * 2);
+            this.dist = Arrays.copyOf(this.dist, this.size * 2);
+         }//end if
+         this.ids[this.size] = id;
+         this.dist[this.size] = d;
+         ++this.size;
+      }
+
+      public void clear() { this.size = 0; }
+   }//end Hits
+
+   /**
+    * Finds the stores within a radius of a point
+    *
+    * @param lat latitude of the point
+    * @param lon longitude of the point
+    * @param radius the largest distance included
+    * @param out cleared, then receives the matching stores in no particular order
+    * @return the number of stores found
+    */
+   public int withinRadius(double lat, double lon, double radius, Hits out) {
+      out.clear();
+      int latLo = cell(lat - radius, this._cellSize), latHi = cell(lat + radius, this._cellSize);
+      int lonLo = cell(lon - radius, this._cellSize), lonHi = cell(lon + radius, this._cellSize);
+      double r2 = radius * radius;
+      if ((latHi - latLo + 1L) * (lonHi - lonLo + 1L) > this._cellKeys.length) {
+         // the circle spans more cells than are occupied, walk the occupied ones instead
+         for (int c = 0; c < this._cellKeys.length; ++c) {
+            int cy = (int) (this._cellKeys[c] >> 32), cx = (int) this._cellKeys[c];
+            if (cy >= latLo && cy <= latHi && cx >= lonLo && cx <= lonHi) {
+               scanCell(c, lat, lon, r2, out);
+            }//end if
+         }//end for
+         return out.size;
+      }//end if
+      for (int cy = latLo; cy <= latHi; ++cy) {
+         for (int cx = lonLo; cx <= lonHi; ++cx) {
+            int c = Arrays.binarySearch(this._cellKeys, key(cy, cx));
+            if (c >= 0) { scanCell(c, lat, lon, r2, out); }
+         }//end for
+      }//end for
+      return out.size;
+   }//end withinRadius
+
+   // appends the stores of cell c within sqrt(r2) of the point
+   private void scanCell(int c, double lat, double lon, double r2, Hits out) {
+      for (int i = this._cellStart[c]; i < this._cellStart[c + 1]; ++i) {
+         double dLat = this._lat[i] - lat, dLon = this._lon[i] - lon;
+         double d2 = dLat * dLat + dLon * dLon;
+         if (d2 <= r2) { out.add(this._ids[i], Math.sqrt(d2)); }
+      }//end for
+   }//end scanCell
+
+   /**
+    * Finds the k stores closest to a point by searching a growing radius
+    * until it holds k stores or covers every store.
+    *
+    * @param lat latitude of the point
+    * @param lon longitude of the point
+    * @param k how many stores to return
+    * @param out cleared, then receives the stores nearest first; it may hold
+    *            more than k candidates, only the first k are the answer
+    * @return the number of stores returned, min(k, size())
+    */
+   public int nearest(double lat, double lon, int k, Hits out) {
+      out.clear();
+      k = Math.min(k, size());
+      if (k <= 0) { return 0; }
+      // distance from the point to the far corner of the bounding box covers every store
+      double maxReach = Math.hypot(Math.max(Math.abs(lat - this._minLat), Math.abs(lat - this._maxLat)),
+                                   Math.max(Math.abs(lon - this._minLon), Math.abs(lon - this._maxLon)));
+      double radius = this._cellSize;
+      int found;
+      while ((found = withinRadius(lat, lon, radius, out)) < k && radius < maxReach) {
+         radius *= 2;
+      }//end while
+      if (found < k) { found = withinRadius(lat, lon, maxReach, out); }
+      sortByDistance(out.ids, out.dist, found);
+      return Math.min(k, found);
+   }//end nearest
+
+   // sorts the first n entries by distance, then store ID
+   private static void sortByDistance(int[] ids, double[] dist, int n) {
+      if (n > 32) {
+         Integer[] order = new Integer[n];
+         for (int i = 0; i < n; ++i) { order[i] = i; }
+         Arrays.sort(order, (a, b) -> dist[a] != dist[b] ? Double.compare(dist[a], dist[b]) : Integer.compare(ids[a], ids[b]));
+         int[] idsCopy = Arrays.copyOf(ids, n);
+         double[] distCopy = Arrays.copyOf(dist, n);
+         for (int i = 0; i < n; ++i) { ids[i] = idsCopy[order[i]]; dist[i] = distCopy[order[i]]; }
+         return;
+      }//end if
+      // insertion sort for the usual short candidate list
+      for (int i = 1; i < n; ++i) {
+         int id = ids[i];
+         double d = dist[i];
+         int j = i - 1;
+         while (j >= 0 && (dist[j] > d || (dist[j] == d && ids[j] > id))) {
+            ids[j + 1] = ids[j];
+            dist[j + 1] = dist[j];
+            --j;
+         }//end while
+         ids[j + 1] = id;
+         dist[j + 1] = d;
+      }//end for
+   }//end sortByDistance
+
+}//end StoreIndex
@@ -0,0 +1,244 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class answers "which stores are near this user" without any console
+ * input, so the menus, a server or a load test can all call it. When the
+ * database has the optional geometry columns the searches run there on
+ * the GiST index; otherwise store locations are served from an in-memory
+ * StoreIndex that is rebuilt when the Store table's change counter moves.
+ * Index builds and in-memory searches are recorded in the query metrics
+ * under INDEX_BUILD, RADIUS and NEAREST.
+ *
+ */
+public class StoreLocatorService {
+
+   // radius the customer menus search within, in the same units as calculateDistance
+   public static final double DEFAULT_RADIUS = 30;
+
+   /**
+    * A store and its distance from the point that was searched around.
+    */
+   public record NearbyStore(int storeID, double distance) {
+      // reads (storeID, distance) rows of the database search paths
+      static NearbyStore map(ResultSet rs) throws SQLException {
+         return new NearbyStore(rs.getInt(1), rs.getDouble(2));
+      }
+   }
+
+   // rebuild interval when the schema has no change counters (-Damazon.storeIndex.ttlSeconds)
+   static final long INDEX_TTL_SECONDS = Long.getLong("amazon.storeIndex.ttlSeconds", 60L);
+
+   // names the index timings are recorded under in QueryMetrics
+   static final String INDEX_BUILD = "(build) store index";
+   static final String LOAD = "SELECT storeID, latitude, longitude FROM Store";
+   static final String RADIUS = "(radius) stores in the store index";
+   static final String NEAREST = "(nearest) stores in the store index";
+
+   private final Amazon _esql;
+
+   // current index and the Store version it was built from
+   private volatile StoreIndex _index = null;
+   private volatile long _indexVersion = TableVersions.UNKNOWN;
+   private volatile long _indexBuiltAt = 0;
+   private final Object _rebuildLock = new Object();
+
+   private final AtomicLong _builds = new AtomicLong();
+   private final AtomicLong _lastBuildNanos = new AtomicLong();
+
+   public StoreLocatorService(Amazon esql) {
+      this._esql = esql;
+   }
+
+   /**
+    * Returns an index that reflects the Store table, rebuilding it when the
+    * table changed since the last build
+    *
+    * @return the current index
+    * @throws java.sql.SQLException when the stores cannot be loaded
+    */
+   public StoreIndex index() throws SQLException {
+      long version = this._esql.versions().current("store");
+      StoreIndex index = this._index;
+      if (index != null && !stale(version)) { return index; }
+
+      synchronized (this._rebuildLock) {
+         if (this._index != null && !stale(version)) { return this._index; }
+         long start = System.nanoTime();
+         index = load();
+         this._index = index;
+         this._indexVersion = version;
+         this._indexBuiltAt = System.nanoTime();
+         this._builds.incrementAndGet();
+         this._lastBuildNanos.set(this._indexBuiltAt - start);
+         this._esql.metrics().template(INDEX_BUILD).record(this._indexBuiltAt - start, index.size());
+         return index;
+      }//end synchronized
+   }//end index
+
+   // reads every store straight into the arrays the index is built from, recording the read
+   private StoreIndex load() throws SQLException {
+      QueryMetrics.Template metrics = this._esql.metrics().template(LOAD);
+      long start = System.nanoTime();
+      try {
+         return this._esql.withConnection(c -> {
+            int[] ids = new int[256];
+            double[] lat = new double[256];
+            double[] lon = new double[256];
+            int n = 0;
+            try (ResultSet rs = this._esql.prepare(LOAD).executeQuery()) {
+               while (rs.next()) {
+                  if (n == ids.length) {
+                     ids = Arrays.copyOf(ids, n * 2);
+                     lat = Arrays.copyOf(lat, n * 2);
+                     lon = Arrays.copyOf(lon, n * 2);
+                  }//end if
+                  ids[n] = rs.getInt(1);
+                  lat[n] = rs.getDouble(2);
+                  lon[n] = rs.getDouble(3);
+                  ++n;
+               }//end while
+            }//end try
+            metrics.record(System.nanoTime() - start, n);
+            return StoreIndex.build(Arrays.copyOf(ids, n), Arrays.copyOf(lat, n), Arrays.copyOf(lon, n), DEFAULT_RADIUS);
+         });
+      }catch (SQLException e) {
+         metrics.error(System.nanoTime() - start);
+         throw e;
+      }//end try
+   }//end load
+
+   // an index is stale when the counter moved, or when untracked and older than the TTL
+   private boolean stale(long version) {
+      if (version == TableVersions.UNKNOWN) {
+         return System.nanoTime() - this._indexBuiltAt > TimeUnit.SECONDS.toNanos(INDEX_TTL_SECONDS);
+      }//end if
+      return version != this._indexVersion;
+   }//end stale
+
+   /**
+    * Drops the index so the next query rebuilds it, e.g. after this process changed Store.
+    */
+   public void invalidate() {
+      this._index = null;
+      this._esql.versions().expire("store");
+   }//end invalidate
+
+   /**
+    * Reports the size of the index and its builds. Build and query
+    * latencies appear in the query metrics.
+    *
+    * @return the counters as one line of text
+    */
+   public String indexStats() {
+      StoreIndex index = this._index;
+      return String.format("stores indexed: %d, builds: %d, last build: %.3f ms",
+         index == null ? 0 : index.size(), this._builds.get(), this._lastBuildNanos.get() / 1e6);
+   }//end indexStats
+
+   /**
+    * Finds the location of a user through the session cache
+    *
+    * @param userID the user to look up
+    * @return {latitude, longitude}, or null when the user does not exist
+    * @throws java.sql.SQLException when the lookup fails
+    */
+   public double[] userLocation(int userID) throws SQLException {
+      SessionCache.Session session = this._esql.sessions().get(userID);
+      return session == null ? null : new double[] { session.latitude(), session.longitude() };
+   }//end userLocation
+
+   /**
+    * Lists the stores within a radius of a user's location
+    *
+    * @param userID the user searching
+    * @param radius the largest distance included
+    * @return the stores in range ordered by storeID, empty when the user does not exist
+    * @throws java.sql.SQLException when the lookup fails
+    */
+   public List<NearbyStore> storesWithin(int userID, double radius) throws SQLException {
+      if (this._esql.hasGeometry()) {
+         return this._esql.query(
+            "SELECT s.storeID, s.location <-> u.location FROM Users u JOIN Store s ON s.location <@ circle(u.location, ?) WHERE u.userID = ? ORDER BY s.storeID",
+            NearbyStore::map, radius, userID);
+      }//end if
+      double[] location = userLocation(userID);
+      if (location == null) { return new ArrayList<NearbyStore>(); }
+      return storesWithin(location[0], location[1], radius);
+   }//end storesWithin
+
+   /**
+    * Lists the stores within a radius of a point
+    *
+    * @param latitude latitude of the point
+    * @param longitude longitude of the point
+    * @param radius the largest distance included
+    * @return the stores in range ordered by storeID
+    * @throws java.sql.SQLException when the lookup fails
+    */
+   public List<NearbyStore> storesWithin(double latitude, double longitude, double radius) throws SQLException {
+      if (this._esql.hasGeometry()) {
+         return this._esql.query(
+            "SELECT storeID, location <-> point(?, ?) FROM Store WHERE location <@ circle(point(?, ?), ?) ORDER BY storeID",
+            NearbyStore::map, longitude, latitude, longitude, latitude, radius);
+      }//end if
+      StoreIndex index = index();
+      long start = System.nanoTime();
+      StoreIndex.Hits hits = new StoreIndex.Hits();
+      int n = index.withinRadius(latitude, longitude, radius, hits);
+      List<NearbyStore> found = new ArrayList<NearbyStore>(n);
+      for (int i = 0; i < n; ++i) { found.add(new NearbyStore(hits.ids[i], hits.dist[i])); }
+      found.sort((a, b) -> Integer.compare(a.storeID(), b.storeID()));
+      this._esql.metrics().template(RADIUS).record(System.nanoTime() - start, n);
+      return found;
+   }//end storesWithin
+
+   /**
+    * Lists the stores closest to a point
+    *
+    * @param latitude latitude of the point
+    * @param longitude longitude of the point
+    * @param k how many stores to return
+    * @return up to k stores, nearest first
+    * @throws java.sql.SQLException when the index cannot be loaded
+    */
+   public List<NearbyStore> nearest(double latitude, double longitude, int k) throws SQLException {
+      if (this._esql.hasGeometry()) {
+         return this._esql.query(
+            "SELECT storeID, location <-> point(?, ?) AS distance FROM Store ORDER BY location <-> point(?, ?) LIMIT ?",
+            NearbyStore::map, longitude, latitude, longitude, latitude, k);
+      }//end if
+      StoreIndex index = index();
+      long start = System.nanoTime();
+      StoreIndex.Hits hits = new StoreIndex.Hits();
+      int n = index.nearest(latitude, longitude, k, hits);
+      List<NearbyStore> found = new ArrayList<NearbyStore>(n);
+      for (int i = 0; i < n; ++i) { found.add(new NearbyStore(hits.ids[i], hits.dist[i])); }
+      this._esql.metrics().template(NEAREST).record(System.nanoTime() - start, n);
+      return found;
+   }//end nearest
+
+   /**
+    * Checks whether a store is within a radius of a user
+    *
+    * @return true when both exist and the store is in range
+    * @throws java.sql.SQLException when the lookup fails
+    */
+   public boolean isWithin(int userID, int storeID, double radius) throws SQLException {
+      if (this._esql.hasGeometry()) {
+         return this._esql.executeQuery("SELECT 1 FROM Users u, Store s WHERE u.userID = ? AND s.storeID = ? AND s.location <-> u.location <= ?",
+                                        userID, storeID, radius) > 0;
+      }//end if
+      Boolean within = this._esql.queryFirst(
+         "SELECT u.latitude, u.longitude, s.latitude, s.longitude FROM Users u, Store s WHERE u.userID = ? AND s.storeID = ?",
+         rs -> this._esql.calculateDistance(rs.getDouble(1), rs.getDouble(2), rs.getDouble(3), rs.getDouble(4)) <= radius,
+         userID, storeID);
+      return within != null && within;
+   }//end isWithin
+
+}//end StoreLocatorService
@@ -0,0 +1,326 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class sends supply requests to the warehouse nearest to the store,
+ * measured like calculateDistance. The distances from every store to every
+ * warehouse are computed once into a matrix of primitive arrays and
+ * rebuilt when the Store or Warehouse change counter moves.
+ *
+ * Routed requests can also be held per warehouse and dispatched together,
+ * one transaction per warehouse covering all the stores it supplies.
+ * Routing and dispatch times are recorded in the query metrics under
+ * ROUTE and DISPATCH.
+ *
+ */
+public class SupplyRouter {
+
+   /**
+    * Where a request was routed and how far the warehouse is from the store.
+    */
+   public record Route(int warehouseID, double distance) {}
+
+   /**
+    * Outcome of a dispatch. problems describes each rejected request;
+    * held requests wait for the next dispatch.
+    */
+   public record DispatchResult(int placed, int rejected, int held, List<String> problems) {}
+
+   // how long a matrix is trusted when the schema has no change counters (-Damazon.router.ttlSeconds)
+   static final long MATRIX_TTL_SECONDS = Long.getLong("amazon.router.ttlSeconds", 60L);
+
+   // names the routing timings are recorded under in QueryMetrics
+   static final String ROUTE = "(route) nearest warehouse";
+   static final String DISPATCH = "(dispatch) supply requests of one warehouse";
+
+   /**
+    * Distances from every store to every warehouse, store-major.
+    */
+   private static final class Matrix {
+      final int[] storeIDs;       // sorted
+      final int[] warehouseIDs;
+      final float[] distances;    // [store * warehouses + warehouse]
+      final int[] nearest;        // per store, index into warehouseIDs, -1 without warehouses
+      final AtomicLongArray routed;
+      final long storeVersion;
+      final long warehouseVersion;
+      final long builtAt;
+
+      Matrix(int[] storeIDs, int[] warehouseIDs, float[] distances, int[] nearest, long storeVersion, long warehouseVersion) {
+         this.storeIDs = storeIDs;
+         this.warehouseIDs = warehouseIDs;
+         this.distances = distances;
+         this.nearest = nearest;
+         this.routed = new AtomicLongArray(warehouseIDs.length);
+         this.storeVersion = storeVersion;
+         this.warehouseVersion = warehouseVersion;
+         this.builtAt = System.nanoTime();
+      }
+   }//end Matrix
+
+   // ids and coordinates read from one table
+   private record Points(int[] ids, double[] lat, double[] lon) {}
+
+   private final Amazon _esql;
+   private volatile Matrix _matrix;
+   private final Object _rebuildLock = new Object();
+
+   // routed requests waiting for dispatch, per warehouse; guarded by itself
+   private final Map<Integer, List<SupplyService.SupplyRequest>> _pending = new HashMap<Integer, List<SupplyService.SupplyRequest>>();
+
+   private final AtomicLong _builds = new AtomicLong();
+   private final AtomicLong _lastBuildNanos = new AtomicLong();
+   private final AtomicLong _dispatched = new AtomicLong();
+   private final AtomicLong _rejected = new AtomicLong();
+
+   public SupplyRouter(Amazon esql) {
+      this._esql = esql;
+   }//end SupplyRouter
+
+   /**
+    * Returns the distance matrix, rebuilding it when Store or Warehouse
+    * changed since it was built
+    */
+   private Matrix matrix() throws SQLException {
+      long storeVersion = this._esql.versions().current("store");
+      long warehouseVersion = this._esql.versions().current("warehouse");
+      Matrix matrix = this._matrix;
+      if (matrix != null && !stale(matrix, storeVersion, warehouseVersion)) { return matrix; }
+
+      synchronized (this._rebuildLock) {
+         if (this._matrix != null && !stale(this._matrix, storeVersion, warehouseVersion)) { return this._matrix; }
+         long start = System.nanoTime();
+         Points stores = points("SELECT storeID, latitude, longitude FROM Store ORDER BY storeID");
+         Points warehouses = points("SELECT warehouseID, latitude, longitude FROM Warehouse ORDER BY warehouseID");
+         int s = stores.ids().length, w = warehouses.ids().length;
+         if ((long) s * w > Integer.MAX_VALUE) {
+            throw new SQLException(s + " stores by " + w + " warehouses do not fit in a distance matrix");
+         }//end if
+         float[] distances = new float[s * w];
+         int[] nearest = new int[s];
+         for (int i = 0; i < s; ++i) {
+            nearest[i] = -1;
+            for (int j = 0; j < w; ++j) {
+               float d = (float) Amazon.distance(stores.lat()[i], stores.lon()[i], warehouses.lat()[j], warehouses.lon()[j]);
+               distances[i * w + j] = d;
+               if (nearest[i] < 0 || d < distances[i * w + nearest[i]]) { nearest[i] = j; }
+            }//end for
+         }//end for
+         matrix = new Matrix(stores.ids(), warehouses.ids(), distances, nearest, storeVersion, warehouseVersion);
+         this._matrix = matrix;
+         this._builds.incrementAndGet();
+         this._lastBuildNanos.set(System.nanoTime() - start);
+         return matrix;
+      }//end synchronized
+   }//end matrix
+
+   // a matrix is stale when either counter moved, or when untracked and older than the TTL
+   private static boolean stale(Matrix matrix, long storeVersion, long warehouseVersion) {
+      if (storeVersion == TableVersions.UNKNOWN || warehouseVersion == TableVersions.UNKNOWN) {
+         return System.nanoTime() - matrix.builtAt > TimeUnit.SECONDS.toNanos(MATRIX_TTL_SECONDS);
+      }//end if
+      return storeVersion != matrix.storeVersion || warehouseVersion != matrix.warehouseVersion;
+   }//end stale
+
+   private Points points(String sql) throws SQLException {
+      QueryMetrics.Template metrics = this._esql.metrics().template(sql);
+      long start = System.nanoTime();
+      try {
+         return this._esql.withConnection(c -> {
+            int[] ids = new int[256];
+            double[] lat = new double[256];
+            double[] lon = new double[256];
+            int n = 0;
+            try (ResultSet rs = this._esql.prepare(sql).executeQuery()) {
+               while (rs.next()) {
+                  if (n == ids.length) {
+                     ids = Arrays.copyOf(ids, n * 2);
+                     lat = Arrays.copyOf(lat, n * 2);
+                     lon = Arrays.copyOf(lon, n * 2);
+                  }//end if
+                  ids[n] = rs.getInt(1);
+                  lat[n] = rs.getDouble(2);
+                  lon[n] = rs.getDouble(3);
+                  ++n;
+               }//end while
+            }//end try
+            metrics.record(System.nanoTime() - start, n);
+            return new Points(Arrays.copyOf(ids, n), Arrays.copyOf(lat, n), Arrays.copyOf(lon, n));
+         });
+      }catch (SQLException e) {
+         metrics.error(System.nanoTime() - start);
+         throw e;
+      }//end try
+   }//end points
+
+   /**
+    * Picks the warehouse nearest to a store
+    *
+    * @param storeID the store to supply
+    * @return the route, or null when the store or any warehouse is missing
+    * @throws java.sql.SQLException when the matrix cannot be built
+    */
+   public Route route(int storeID) throws SQLException {
+      Matrix matrix = matrix();
+      QueryMetrics.Template metrics = this._esql.metrics().template(ROUTE);
+      long start = System.nanoTime();
+      int i = Arrays.binarySearch(matrix.storeIDs, storeID);
+      if (i < 0 || matrix.nearest[i] < 0) {
+         metrics.record(System.nanoTime() - start, 0);
+         return null;
+      }//end if
+      int j = matrix.nearest[i];
+      matrix.routed.incrementAndGet(j);
+      Route route = new Route(matrix.warehouseIDs[j], matrix.distances[i * matrix.warehouseIDs.length + j]);
+      metrics.record(System.nanoTime() - start, 1);
+      return route;
+   }//end route
+
+   /**
+    * Routes a request and holds it until the next dispatch
+    *
+    * @return the route, or null when the request could not be routed and was not held
+    * @throws java.sql.SQLException when the matrix cannot be built
+    */
+   public Route enqueue(int managerID, int storeID, String productName, int units) throws SQLException {
+      Route route = route(storeID);
+      if (route == null) { return null; }
+      synchronized (this._pending) {
+         this._pending.computeIfAbsent(route.warehouseID(), w -> new ArrayList<SupplyService.SupplyRequest>())
+                      .add(new SupplyService.SupplyRequest(managerID, storeID, productName, route.warehouseID(), units));
+      }//end synchronized
+      return route;
+   }//end enqueue
+
+   /**
+    * Places every held request, one transaction per warehouse. When a
+    * warehouse's transaction keeps hitting serialization failures or
+    * deadlocks, its requests stay held for the next dispatch. Any other
+    * failure means some request can never be placed, e.g. its store was
+    * deleted, so the warehouse's requests are then placed one at a time
+    * and the ones that fail are dropped and reported. The stores restocked
+    * are invalidated once their transaction committed.
+    *
+    * @return how many requests were placed, rejected and held again
+    */
+   public DispatchResult dispatch() {
+      Map<Integer, List<SupplyService.SupplyRequest>> batches;
+      synchronized (this._pending) {
+         batches = new HashMap<Integer, List<SupplyService.SupplyRequest>>(this._pending);
+         this._pending.clear();
+      }//end synchronized
+
+      SupplyService supply = this._esql.supply();
+      Dispatch outcome = new Dispatch();
+      QueryMetrics.Template metrics = this._esql.metrics().template(DISPATCH);
+      for (Map.Entry<Integer, List<SupplyService.SupplyRequest>> batch : batches.entrySet()) {
+         List<SupplyService.SupplyRequest> requests = batch.getValue();
+         long start = System.nanoTime();
+         try {
+            List<SupplyService.SupplyResult> results = this._esql.inTransaction(c -> {
+               List<SupplyService.SupplyResult> placed = new ArrayList<SupplyService.SupplyResult>();
+               for (SupplyService.SupplyRequest req : requests) { placed.add(supply.apply(req)); }
+               return placed;
+            });
+            metrics.record(System.nanoTime() - start, requests.size());
+            for (int i = 0; i < requests.size(); ++i) { outcome.add(requests.get(i), results.get(i)); }
+         }catch (SQLException e) {
+            metrics.error(System.nanoTime() - start);
+            if (retryable(e)) { outcome.hold(requests); continue; }
+            // one request spoilt the batch: place them one by one to find it
+            for (SupplyService.SupplyRequest req : requests) {
+               try {
+                  outcome.add(req, this._esql.inTransaction(c -> supply.apply(req)));
+               }catch (SQLException one) {
+                  if (retryable(one)) { outcome.hold(List.of(req)); }
+                  else { outcome.reject(req, one.getMessage()); }
+               }//end try
+            }//end for
+         }//end try
+      }//end for
+
+      supply.invalidate(outcome.stores, outcome.newProducts);
+      if (!outcome.held.isEmpty()) {
+         synchronized (this._pending) {
+            for (SupplyService.SupplyRequest req : outcome.held) {
+               this._pending.computeIfAbsent(req.warehouseID(), w -> new ArrayList<SupplyService.SupplyRequest>()).add(req);
+            }//end for
+         }//end synchronized
+      }//end if
+      this._dispatched.addAndGet(outcome.placed);
+      this._rejected.addAndGet(outcome.problems.size());
+      return new DispatchResult(outcome.placed, outcome.problems.size(), outcome.held.size(), outcome.problems);
+   }//end dispatch
+
+   // conflicts that inTransaction retried and gave up on; they may pass on the next dispatch
+   private static boolean retryable(SQLException e) {
+      return "40001".equals(e.getSQLState()) || "40P01".equals(e.getSQLState());
+   }//end retryable
+
+   /**
+    * What one dispatch did with the requests it took.
+    */
+   private static final class Dispatch {
+      int placed = 0;
+      boolean newProducts = false;
+      final Set<Integer> stores = new HashSet<Integer>();
+      final List<SupplyService.SupplyRequest> held = new ArrayList<SupplyService.SupplyRequest>();
+      final List<String> problems = new ArrayList<String>();
+
+      void add(SupplyService.SupplyRequest req, SupplyService.SupplyResult result) {
+         if (result.status() != SupplyService.SupplyStatus.PLACED) { reject(req, result.status().toString()); return; }
+         ++this.placed;
+         this.stores.add(req.storeID());
+         this.newProducts |= result.newProduct();
+      }
+
+      void hold(List<SupplyService.SupplyRequest> requests) { this.held.addAll(requests); }
+
+      void reject(SupplyService.SupplyRequest req, String problem) {
+         this.problems.add(req.units() + " unit(s) of " + req.productName() + " for store " + req.storeID()
+                           + " from warehouse " + req.warehouseID() + ": " + problem);
+      }
+   }//end Dispatch
+
+   /**
+    * @return requests waiting for dispatch
+    */
+   public int pending() {
+      synchronized (this._pending) {
+         int n = 0;
+         for (List<SupplyService.SupplyRequest> batch : this._pending.values()) { n += batch.size(); }
+         return n;
+      }//end synchronized
+   }//end pending
+
+   /**
+    * Reports matrix builds, requests dispatched and how many requests each
+    * warehouse was given since the last build
+    *
+    * @return the counters as one line of text
+    */
+   public String routingStats() {
+      Matrix matrix = this._matrix;
+      StringBuilder routed = new StringBuilder();
+      if (matrix != null) {
+         for (int j = 0; j < matrix.warehouseIDs.length; ++j) {
+            long n = matrix.routed.get(j);
+            if (n > 0) { routed.append(routed.length() == 0 ? "" : ", ").append(matrix.warehouseIDs[j]).append('=').append(n); }
+         }//end for
+      }//end if
+      return String.format("matrix: %d stores x %d warehouses, builds: %d, last build: %.3f ms; pending: %d, dispatched: %d, rejected: %d; routed per warehouse: {%s}",
+         matrix == null ? 0 : matrix.storeIDs.length, matrix == null ? 0 : matrix.warehouseIDs.length, this._builds.get(),
+         this._lastBuildNanos.get() / 1e6, pending(), this._dispatched.get(), this._rejected.get(), routed);
+   }//end routingStats
+
+}//end SupplyRouter
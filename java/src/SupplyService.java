@@ -0,0 +1,313 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.postgresql.PGConnection;
+
+/**
+ * This class records manager supply requests to warehouses and restocks
+ * the store's product line, without any console input.
+ *
+ */
+public class SupplyService {
+
+   /**
+    * A manager asking a warehouse to send units of a product to a store.
+    */
+   public record SupplyRequest(int managerID, int storeID, String productName, int warehouseID, int units) {}
+
+   public enum SupplyStatus { PLACED, INVALID_UNITS, NAME_TOO_LONG }
+
+   /**
+    * Outcome of a supply request. When the store did not carry the product
+    * yet, newProduct is true and price is the price it was listed at.
+    */
+   public record SupplyResult(SupplyStatus status, boolean newProduct, float price) {}
+
+   /**
+    * Outcome of a bulk supply load. problems names the first rejected lines
+    * by their line in the file, header included.
+    */
+   public record BulkResult(long lines, long applied, long rejected, long newProducts, List<String> problems, double seconds) {
+      public double linesPerSecond() { return this.seconds == 0 ? 0 : this.lines / this.seconds; }
+   }
+
+   // rejected lines listed in a BulkResult
+   static final int MAX_PROBLEMS = 20;
+
+   // nearest prices kept per (storeID, productName) (-Damazon.priceCache.size)
+   static final int PRICE_CACHE_SIZE = Integer.getInteger("amazon.priceCache.size", 10000);
+
+   private final Amazon _esql;
+
+   // "storeID:productName" -> nearest price, least recently used first
+   private final LinkedHashMap<String, Float> _priceCache = new LinkedHashMap<String, Float>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Float> eldest) {
+         return size() > PRICE_CACHE_SIZE;
+      }
+   };
+
+   // Store and Product change counters the cached prices were read under
+   private long _priceStoreVersion = TableVersions.UNKNOWN;
+   private long _priceProductVersion = TableVersions.UNKNOWN;
+
+   // bumped on every invalidation so lookups in flight do not cache stale prices
+   private long _priceGeneration = 0;
+
+   private final AtomicLong _priceHits = new AtomicLong();
+   private final AtomicLong _priceMisses = new AtomicLong();
+
+   public SupplyService(Amazon esql) {
+      this._esql = esql;
+   }
+
+   /**
+    * Records a supply request and adds the units to the store, listing the
+    * product at the price of the nearest other store when it is new there.
+    * Unknown store or warehouse IDs surface as foreign key violations.
+    *
+    * @param req the request to place
+    * @return the outcome
+    * @throws java.sql.SQLException when a statement fails
+    */
+   public SupplyResult placeSupplyRequest(SupplyRequest req) throws SQLException {
+      SupplyResult result = apply(req);
+      if (result.status() == SupplyStatus.PLACED) { invalidate(Set.of(req.storeID()), result.newProduct()); }
+      return result;
+   }//end placeSupplyRequest
+
+   /**
+    * Runs the statements of a supply request without touching the caches,
+    * so it can join a larger transaction; the caller invalidates the store
+    * once that transaction committed, or a concurrent read could cache
+    * stock that is not committed yet
+    *
+    * @param req the request to place
+    * @return the outcome
+    * @throws java.sql.SQLException when a statement fails
+    */
+   SupplyResult apply(SupplyRequest req) throws SQLException {
+      if (req.units() <= 0) { return new SupplyResult(SupplyStatus.INVALID_UNITS, false, -1); }
+      if (req.productName().length() > 30) { return new SupplyResult(SupplyStatus.NAME_TOO_LONG, false, -1); }
+
+      boolean newProduct = false;
+      float price = -1;
+      // the product row goes first: the supply request references it
+      if (this._esql.executeUpdate("UPDATE Product SET numberOfUnits = numberOfUnits + ? WHERE storeID = ? AND productName = ?",
+                                   req.units(), req.storeID(), req.productName()) == 0) {
+         price = nearestPrice(req.storeID(), req.productName());
+         this._esql.executeUpdate("INSERT INTO Product (storeID, productName, numberOfUnits, pricePerUnit) VALUES (?, ?, ?, ?)",
+                                  req.storeID(), req.productName(), req.units(), Amazon.priceText(price));
+         newProduct = true;
+      }//end if
+
+      this._esql.executeUpdate("INSERT INTO ProductSupplyRequests (managerID, warehouseID, storeID, productName, unitsRequested) VALUES (?, ?, ?, ?, ?)",
+                               req.managerID(), req.warehouseID(), req.storeID(), req.productName(), req.units());
+      return new SupplyResult(SupplyStatus.PLACED, newProduct, price);
+   }//end apply
+
+   /**
+    * Drops what committed supply requests made stale: the catalogs of the
+    * stores restocked and, when a store started carrying a product, every
+    * nearest price, as the new listing may now be the nearest one for its
+    * neighbours
+    *
+    * @param storeIDs the stores restocked
+    * @param newProducts whether any store listed a product for the first time
+    */
+   void invalidate(Set<Integer> storeIDs, boolean newProducts) {
+      for (int storeID : storeIDs) { this._esql.catalog().cache().invalidate(storeID); }
+      if (newProducts) { invalidatePrices(); }
+   }//end invalidate
+
+   /**
+    * Places a supply request on a session thread
+    *
+    * @param req the request to place
+    * @return a future completed with the outcome, or exceptionally with the SQLException
+    */
+   public CompletableFuture<SupplyResult> placeSupplyRequestAsync(SupplyRequest req) {
+      return this._esql.submit(() -> placeSupplyRequest(req));
+   }//end placeSupplyRequestAsync
+
+   /**
+    * Places many supply requests from CSV lines of storeID, productName,
+    * warehouseID, unitsRequested after a header line. The lines are copied
+    * into a temporary table, checked against Store, Warehouse and Product
+    * together, and applied with one upsert on Product and one insert into
+    * ProductSupplyRequests. Lines that fail a check are skipped and
+    * reported; the rest are applied as one transaction.
+    *
+    * @param managerID the manager placing the requests
+    * @param csv the lines, read to the end
+    * @return counts, the first rejected lines and the time taken
+    * @throws java.sql.SQLException when a statement fails or the lines cannot be read
+    */
+   public BulkResult placeSupplyRequests(int managerID, Reader csv) throws SQLException {
+      long start = System.nanoTime();
+      // read up front so a transaction that hits a deadlock can be run again
+      StringBuilder text = new StringBuilder();
+      try {
+         char[] buffer = new char[1 << 16];
+         for (int n; (n = csv.read(buffer)) != -1; ) { text.append(buffer, 0, n); }
+      }catch (IOException e) {
+         throw new SQLException("Cannot read the supply lines", e);
+      }//end try
+
+      Set<Integer> stores = new HashSet<Integer>();
+      BulkResult result = this._esql.inTransaction(c -> {
+         stores.clear();
+         try (Statement stmt = c.createStatement()) {
+            stmt.execute("CREATE TEMP TABLE supply_staging (lineNumber bigint GENERATED ALWAYS AS IDENTITY, storeID integer, productName text, "
+                         + "warehouseID integer, units integer, problem text) ON COMMIT DROP");
+         }//end try
+         long lines;
+         try {
+            lines = c.unwrap(PGConnection.class).getCopyAPI().copyIn(
+               "COPY supply_staging (storeID, productName, warehouseID, units) FROM STDIN WITH (FORMAT csv, HEADER true)",
+               new StringReader(text.toString()));
+         }catch (IOException e) {
+            throw new SQLException("COPY into supply_staging failed", e);
+         }//end try
+         try (Statement stmt = c.createStatement()) { stmt.execute("ANALYZE supply_staging"); }
+
+         // every check at once; the name lookup is a hashed anti-join, as Product has no index on names alone
+         this._esql.executeUpdate(
+            "UPDATE supply_staging s SET productName = rtrim(s.productName), problem = CASE "
+            + "WHEN s.storeID IS NULL OR s.productName IS NULL OR s.warehouseID IS NULL OR s.units IS NULL THEN 'missing value' "
+            + "WHEN s.units <= 0 THEN 'units must be positive' "
+            + "WHEN length(rtrim(s.productName)) > 30 THEN 'product name longer than 30 characters' "
+            + "WHEN NOT EXISTS (SELECT 1 FROM Store t WHERE t.storeID = s.storeID) THEN 'unknown store' "
+            + "WHEN NOT EXISTS (SELECT 1 FROM Warehouse w WHERE w.warehouseID = s.warehouseID) THEN 'unknown warehouse' "
+            + "WHEN rtrim(s.productName) NOT IN (SELECT p.productName::text FROM Product p) THEN 'unknown product' END");
+
+         // one upsert per (store, product), in key order so concurrent orders lock rows the same way;
+         // products new to a store are listed at the price of the nearest other store
+         long newProducts = 0;
+         List<int[]> upserted = this._esql.query(
+                 "INSERT INTO Product AS p (storeID, productName, numberOfUnits, pricePerUnit) "
+                 + "SELECT a.storeID, a.productName, a.units, CASE WHEN EXISTS (SELECT 1 FROM Product x WHERE x.storeID = a.storeID AND x.productName = a.productName) THEN 0 "
+                 + "ELSE COALESCE((SELECT n.pricePerUnit FROM Store g, Store s JOIN Product n ON s.storeID = n.storeID "
+                 + "WHERE g.storeID = a.storeID AND s.storeID != a.storeID AND n.productName = a.productName ORDER BY " + distanceOrder() + ", s.storeID LIMIT 1), 0) END "
+                 + "FROM (SELECT storeID, productName, SUM(units) AS units FROM supply_staging WHERE problem IS NULL GROUP BY storeID, productName) a "
+                 + "ORDER BY a.storeID, a.productName "
+                 + "ON CONFLICT (storeID, productName) DO UPDATE SET numberOfUnits = p.numberOfUnits + EXCLUDED.numberOfUnits "
+                 + "RETURNING p.storeID, (p.xmax = 0) AS inserted",
+                 rs -> new int[] { rs.getInt(1), rs.getBoolean(2) ? 1 : 0 });
+         for (int[] row : upserted) {
+            stores.add(row[0]);
+            newProducts += row[1];
+         }//end for
+
+         long applied = this._esql.executeUpdate(
+            "INSERT INTO ProductSupplyRequests (managerID, warehouseID, storeID, productName, unitsRequested) "
+            + "SELECT ?, warehouseID, storeID, productName, units FROM supply_staging WHERE problem IS NULL ORDER BY lineNumber", managerID);
+
+         List<String> problems = this._esql.query(
+            "SELECT lineNumber + 1, problem FROM supply_staging WHERE problem IS NOT NULL ORDER BY lineNumber LIMIT ?",
+            rs -> "line " + rs.getLong(1) + ": " + rs.getString(2), MAX_PROBLEMS);
+         return new BulkResult(lines, applied, lines - applied, newProducts, problems, 0);
+      });
+
+      invalidate(stores, result.newProducts() > 0);
+      return new BulkResult(result.lines(), result.applied(), result.rejected(), result.newProducts(), result.problems(),
+                            (System.nanoTime() - start) / 1e9);
+   }//end placeSupplyRequests
+
+   /**
+    * Finds the price of a product at the store closest to the given one,
+    * answering repeated lookups from a cache that is dropped whenever a
+    * price, a product listing or a store location changes
+    *
+    * @param storeID the store to search around
+    * @param productName the product to price
+    * @return the price at the nearest other store, 0 when no other store carries it
+    * @throws java.sql.SQLException when the lookup fails
+    */
+   public float nearestPrice(int storeID, String productName) throws SQLException {
+      long storeVersion = this._esql.versions().current("store");
+      long productVersion = this._esql.versions().current("product");
+      if (storeVersion == TableVersions.UNKNOWN || productVersion == TableVersions.UNKNOWN) {
+         // without change counters another process could reprice unseen
+         return lookupNearestPrice(storeID, productName);
+      }//end if
+
+      String key = storeID + ":" + productName.stripTrailing();
+      long generation;
+      synchronized (this._priceCache) {
+         if (storeVersion != this._priceStoreVersion || productVersion != this._priceProductVersion) {
+            clearPrices();
+            this._priceStoreVersion = storeVersion;
+            this._priceProductVersion = productVersion;
+         }//end if
+         Float cached = this._priceCache.get(key);
+         if (cached != null) {
+            this._priceHits.incrementAndGet();
+            return cached;
+         }//end if
+         generation = this._priceGeneration;
+      }//end synchronized
+
+      this._priceMisses.incrementAndGet();
+      float price = lookupNearestPrice(storeID, productName);
+      synchronized (this._priceCache) {
+         // a lookup that raced with an invalidation may have read the old price
+         if (generation == this._priceGeneration) { this._priceCache.put(key, price); }
+      }//end synchronized
+      return price;
+   }//end nearestPrice
+
+   /**
+    * Finds the price of a product at the store closest to the given one in
+    * a single query, without the cache
+    *
+    * @param storeID the store to search around
+    * @param productName the product to price
+    * @return the price at the nearest other store, 0 when no other store carries it
+    * @throws java.sql.SQLException when the lookup fails
+    */
+   public float lookupNearestPrice(int storeID, String productName) throws SQLException {
+      Float price = this._esql.queryFirst(
+         "SELECT p.pricePerUnit FROM Store g, Store s JOIN Product p ON s.storeID = p.storeID WHERE g.storeID = ? AND s.storeID != ? AND p.productName = ? ORDER BY "
+         + distanceOrder() + ", s.storeID LIMIT 1",
+         rs -> rs.getFloat(1), storeID, storeID, productName);
+      return price == null ? 0 : price;
+   }//end lookupNearestPrice
+
+   // how far store s is from store g: nearest-neighbour ordering on the GiST-indexed
+   // location column when the schema has it, otherwise the squared euclidean distance
+   // used by calculateDistance
+   private String distanceOrder() {
+      return this._esql.hasGeometry()
+         ? "s.location <-> g.location"
+         : "(s.latitude - g.latitude) * (s.latitude - g.latitude) + (s.longitude - g.longitude) * (s.longitude - g.longitude)";
+   }//end distanceOrder
+
+   /**
+    * Drops every cached nearest price, e.g. after this process changed a price.
+    */
+   public void invalidatePrices() {
+      synchronized (this._priceCache) {
+         clearPrices();
+      }//end synchronized
+   }//end invalidatePrices
+
+   private void clearPrices() {
+      this._priceCache.clear();
+      ++this._priceGeneration;
+   }//end clearPrices
+
+   public long priceCacheHits() { return this._priceHits.get(); }
+   public long priceCacheMisses() { return this._priceMisses.get(); }
+
+}//end SupplyService
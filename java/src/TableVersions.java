@@ -0,0 +1,80 @@
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class reads the change counters that the triggers in
+ * create_tables.sql keep in the TableVersions table, so in-memory copies
+ * of a table can tell when they went stale. A counter is re-read at most
+ * once per check interval; in between the last value is returned.
+ *
+ * Counters are read inside callers' transactions, so a failing read would
+ * abort them. Whether the schema has the table is therefore checked once,
+ * with a lookup that cannot fail, and without it no counter is read.
+ *
+ */
+final class TableVersions {
+
+   // returned when the schema has no TableVersions table or no row for the table
+   static final long UNKNOWN = -1;
+
+   private final Amazon _esql;
+   private final long _checkNanos;
+
+   // table name -> {version, nanoTime it was read}
+   private final ConcurrentHashMap<String, long[]> _seen = new ConcurrentHashMap<String, long[]>();
+
+   // whether the schema has the TableVersions table, null until checked
+   private volatile Boolean _tracked = null;
+
+   TableVersions(Amazon esql, long checkMillis) {
+      this._esql = esql;
+      this._checkNanos = TimeUnit.MILLISECONDS.toNanos(checkMillis);
+   }
+
+   /**
+    * Returns the change counter of a table
+    *
+    * @param table the table name in lower case, as the trigger records it
+    * @return the counter, or UNKNOWN when the schema does not track the table
+    */
+   long current(String table) {
+      long now = System.nanoTime();
+      long[] seen = this._seen.get(table);
+      if (seen != null && now - seen[1] < this._checkNanos) { return seen[0]; }
+
+      if (!tracked()) { return UNKNOWN; }
+      long version;
+      try {
+         Long stored = this._esql.queryFirst("SELECT version FROM TableVersions WHERE tableName = ?", rs -> rs.getLong(1), table);
+         version = stored == null ? 0 : stored;
+      }catch (SQLException e) {
+         version = UNKNOWN;
+      }//end try
+      this._seen.put(table, new long[] { version, now });
+      return version;
+   }//end current
+
+   // checks for the table once; to_regclass answers null instead of failing when it is missing
+   private boolean tracked() {
+      Boolean tracked = this._tracked;
+      if (tracked != null) { return tracked; }
+      try {
+         Boolean exists = this._esql.queryFirst("SELECT to_regclass('tableversions') IS NOT NULL", rs -> rs.getBoolean(1));
+         tracked = exists != null && exists;
+      }catch (SQLException e) {
+         // asked again on the next call
+         return false;
+      }//end try
+      this._tracked = tracked;
+      return tracked;
+   }//end tracked
+
+   /**
+    * Forgets the cached counter so the next call reads the database.
+    */
+   void expire(String table) {
+      this._seen.remove(table);
+   }//end expire
+
+}//end TableVersions
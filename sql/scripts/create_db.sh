@@ -1,5 +1,11 @@
 #!/bin/bash
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 #cs166_createdb $USER"_project_phase_3_DB"
-cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/create_tables.sql
+# GEO=1 adds the indexed location columns used for in-database store searches
+# PARTITIONED=1 partitions Orders and ProductUpdates by month
+cs166_psql -p $PGPORT $USER"_project_phase_3_DB" ${GEO:+-v geo=1} ${PARTITIONED:+-v partitioned=1} < $DIR/../src/create_tables.sql
 cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/load_data.sql
+# the loaded rows land in the DEFAULT partitions; give their months partitions of their own
+if [ -n "$PARTITIONED" ]; then
+   echo "SELECT ensure_month_partitions('Orders', 3), ensure_month_partitions('ProductUpdates', 3);" | cs166_psql -p $PGPORT $USER"_project_phase_3_DB"
+fi
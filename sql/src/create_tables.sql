@@ -5,6 +5,9 @@ DROP TABLE IF EXISTS Warehouse CASCADE;
 DROP TABLE IF EXISTS Orders CASCADE;
 DROP TABLE IF EXISTS ProductSupplyRequests CASCADE;
 DROP TABLE IF EXISTS ProductUpdates CASCADE;
+DROP TABLE IF EXISTS TableVersions CASCADE;
+DROP TABLE IF EXISTS StoreProductPopularity CASCADE;
+DROP TABLE IF EXISTS StoreCustomerPopularity CASCADE;
 
 CREATE TABLE Users ( userID serial,
                      name char(50) UNIQUE NOT NULL, 
@@ -41,6 +44,26 @@ CREATE TABLE Warehouse ( WarehouseID integer,
                          longitude decimal(9,6)  NOT NULL,
                          PRIMARY KEY(WarehouseID));
 
+-- Optional partitioned mode, enabled with  psql -v partitioned=1  (create_db.sh
+-- passes it when PARTITIONED=1 is set). Orders and ProductUpdates are range
+-- partitioned by month on orderTime and updatedOn, so queries with a time
+-- predicate only read the months it covers and old months can be detached
+-- whole. A primary key of a partitioned table must contain the partition
+-- column; orderNumber and updateNumber stay unique through their sequences.
+-- The partition functions are at the end of this file.
+\if :{?partitioned}
+CREATE TABLE Orders ( 
+					 orderNumber serial NOT NULL,       
+					 customerID integer NOT NULL,
+                     storeID integer NOT NULL,
+                     productName char(30) NOT NULL, 
+                     unitsOrdered integer NOT NULL, 
+                     orderTime timestamp NOT NULL,
+                     PRIMARY KEY(orderNumber, orderTime),
+                     FOREIGN KEY(customerID) REFERENCES Users(userID),
+                     FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+) PARTITION BY RANGE (orderTime);
+\else
 CREATE TABLE Orders ( 
 					 orderNumber serial NOT NULL,       
 					 customerID integer NOT NULL,
@@ -52,6 +75,7 @@ CREATE TABLE Orders (
                      FOREIGN KEY(customerID) REFERENCES Users(userID),
                      FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
 );
+\endif
 
 CREATE TABLE ProductSupplyRequests (  
 							   requestNumber serial NOT NULL,
@@ -66,6 +90,18 @@ CREATE TABLE ProductSupplyRequests (
                                FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
 );
 
+\if :{?partitioned}
+CREATE TABLE ProductUpdates (
+	 						updateNumber serial,	
+							managerID integer NOT NULL,
+                        	storeID integer NOT NULL,
+                       		productName char(30) NOT NULL, 
+                            updatedOn timestamp NOT NULL,
+                        	PRIMARY KEY(updateNumber, updatedOn),
+                        	FOREIGN KEY(managerID) REFERENCES Users(userID),
+                        	FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+) PARTITION BY RANGE (updatedOn);
+\else
 CREATE TABLE ProductUpdates (
 	 						updateNumber serial,	
 							managerID integer NOT NULL,
@@ -76,3 +112,215 @@ CREATE TABLE ProductUpdates (
                         	FOREIGN KEY(managerID) REFERENCES Users(userID),
                         	FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
 );
+\endif
+
+-- Order counts per store and product, and per store and customer, kept in
+-- step with Orders by the orders_rollup triggers below. The popular products
+-- and customers screens read these instead of aggregating Orders.
+CREATE TABLE StoreProductPopularity ( storeID integer NOT NULL,
+                                      productName char(30) NOT NULL,
+                                      orderCount bigint NOT NULL,
+                                      PRIMARY KEY(storeID, productName)
+);
+CREATE TABLE StoreCustomerPopularity ( storeID integer NOT NULL,
+                                       customerID integer NOT NULL,
+                                       orderCount bigint NOT NULL,
+                                       PRIMARY KEY(storeID, customerID)
+);
+
+-- Secondary indexes for the application's lookups. Users(name) needs none:
+-- the UNIQUE constraint already indexes it for LogIn and nameUnique, and the
+-- admin listing pages through Users on its primary key.
+-- orders of a customer and of a store, newest first, one keyset page at a time
+-- (viewRecentOrders, viewStoreOrders): a page seeks to (orderTime, orderNumber)
+-- of the previous page's last row, so page N costs the same as page 1
+CREATE INDEX orders_customer_time_idx ON Orders (customerID, orderTime DESC, orderNumber DESC);
+CREATE INDEX orders_store_time_idx ON Orders (storeID, orderTime DESC, orderNumber DESC);
+-- per-product order counts of a store (viewPopularProducts);
+-- also serves the (storeID, productName) foreign key when a product is removed
+CREATE INDEX orders_store_product_idx ON Orders (storeID, productName);
+-- stores of a manager (verifyManager, the manager screens)
+CREATE INDEX store_manager_idx ON Store (managerID);
+-- latest updates of a store (viewRecentUpdates)
+CREATE INDEX productupdates_store_time_idx ON ProductUpdates (storeID, updatedOn DESC);
+
+-- Change counters read by the application to refresh its in-memory copies
+-- of slowly changing tables (the store location index, nearest prices, the
+-- store-to-warehouse distances).
+CREATE TABLE TableVersions ( tableName text NOT NULL,
+                             version bigint NOT NULL,
+                             PRIMARY KEY(tableName)
+);
+
+CREATE OR REPLACE FUNCTION bump_table_version() RETURNS trigger AS $$
+BEGIN
+    INSERT INTO TableVersions VALUES (TG_TABLE_NAME, 1)
+    ON CONFLICT (tableName) DO UPDATE SET version = TableVersions.version + 1;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER store_version AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Store
+    FOR EACH STATEMENT EXECUTE FUNCTION bump_table_version();
+
+CREATE TRIGGER warehouse_version AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Warehouse
+    FOR EACH STATEMENT EXECUTE FUNCTION bump_table_version();
+
+-- Only listing and price changes count for Product; stock updates from
+-- orders leave the counter alone so it does not become a hot row.
+CREATE TRIGGER product_version AFTER INSERT OR DELETE OR TRUNCATE OR UPDATE OF storeID, productName, pricePerUnit ON Product
+    FOR EACH STATEMENT EXECUTE FUNCTION bump_table_version();
+
+-- Adds the orders of a statement to the popularity rollups and takes away
+-- deleted ones, in the same transaction. Statement-level triggers with
+-- transition tables aggregate a whole batch (a cart, a COPY) first, so each
+-- affected counter row is written once per statement. An order's counter
+-- rows are the ones its Product row lock already serializes on.
+CREATE OR REPLACE FUNCTION maintain_order_rollups() RETURNS trigger AS $$
+BEGIN
+    IF TG_OP = 'TRUNCATE' THEN
+        TRUNCATE StoreProductPopularity, StoreCustomerPopularity;
+        RETURN NULL;
+    END IF;
+    IF TG_OP IN ('DELETE', 'UPDATE') THEN
+        UPDATE StoreProductPopularity r SET orderCount = r.orderCount - d.n
+            FROM (SELECT storeID, productName, count(*) AS n FROM old_orders GROUP BY storeID, productName) d
+            WHERE r.storeID = d.storeID AND r.productName = d.productName;
+        UPDATE StoreCustomerPopularity r SET orderCount = r.orderCount - d.n
+            FROM (SELECT storeID, customerID, count(*) AS n FROM old_orders GROUP BY storeID, customerID) d
+            WHERE r.storeID = d.storeID AND r.customerID = d.customerID;
+        DELETE FROM StoreProductPopularity r USING old_orders o
+            WHERE r.storeID = o.storeID AND r.productName = o.productName AND r.orderCount <= 0;
+        DELETE FROM StoreCustomerPopularity r USING old_orders o
+            WHERE r.storeID = o.storeID AND r.customerID = o.customerID AND r.orderCount <= 0;
+    END IF;
+    IF TG_OP IN ('INSERT', 'UPDATE') THEN
+        INSERT INTO StoreProductPopularity AS r
+            SELECT storeID, productName, count(*) FROM new_orders GROUP BY storeID, productName
+            ON CONFLICT (storeID, productName) DO UPDATE SET orderCount = r.orderCount + EXCLUDED.orderCount;
+        INSERT INTO StoreCustomerPopularity AS r
+            SELECT storeID, customerID, count(*) FROM new_orders GROUP BY storeID, customerID
+            ON CONFLICT (storeID, customerID) DO UPDATE SET orderCount = r.orderCount + EXCLUDED.orderCount;
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER orders_rollup_insert AFTER INSERT ON Orders REFERENCING NEW TABLE AS new_orders
+    FOR EACH STATEMENT EXECUTE FUNCTION maintain_order_rollups();
+CREATE TRIGGER orders_rollup_delete AFTER DELETE ON Orders REFERENCING OLD TABLE AS old_orders
+    FOR EACH STATEMENT EXECUTE FUNCTION maintain_order_rollups();
+CREATE TRIGGER orders_rollup_update AFTER UPDATE ON Orders REFERENCING OLD TABLE AS old_orders NEW TABLE AS new_orders
+    FOR EACH STATEMENT EXECUTE FUNCTION maintain_order_rollups();
+CREATE TRIGGER orders_rollup_truncate AFTER TRUNCATE ON Orders
+    FOR EACH STATEMENT EXECUTE FUNCTION maintain_order_rollups();
+
+-- Optional geometry mode, enabled with  psql -v geo=1  (create_db.sh passes it
+-- when GEO=1 is set). Adds a point(longitude, latitude) column to Users and
+-- Store so radius and nearest-store searches run in the database; the GiST
+-- index answers  location <@ circle(...)  and  ORDER BY location <-> point.
+-- Users rows are only ever read by userID, so their point is not indexed.
+\if :{?geo}
+ALTER TABLE Users ADD COLUMN location point
+    GENERATED ALWAYS AS (point(longitude::float8, latitude::float8)) STORED;
+ALTER TABLE Store ADD COLUMN location point
+    GENERATED ALWAYS AS (point(longitude::float8, latitude::float8)) STORED;
+CREATE INDEX store_location_idx ON Store USING gist (location);
+\endif
+
+-- Partition upkeep for the partitioned mode. Each table has one partition per
+-- month, named <table>_YYYYMM, and a DEFAULT partition that takes rows no
+-- month partition covers yet, so an insert never fails for want of one.
+-- PartitionMaintenance in the application calls ensure_month_partitions at
+-- start-up and daily, and detach_month_partitions when a retention is set.
+\if :{?partitioned}
+CREATE TABLE Orders_default PARTITION OF Orders DEFAULT;
+CREATE TABLE ProductUpdates_default PARTITION OF ProductUpdates DEFAULT;
+
+-- Creates the partition of the month holding month_start and moves into it
+-- the rows of that month that landed in the DEFAULT partition. The rows are
+-- moved on the partitions themselves, so the rollup triggers on Orders see
+-- nothing. Returns false when a table of that name already exists, which
+-- is also the case for a month detached and not yet archived.
+CREATE OR REPLACE FUNCTION create_month_partition(parent regclass, month_start date) RETURNS boolean AS $$
+DECLARE
+    lo date := date_trunc('month', month_start)::date;
+    hi date := (date_trunc('month', month_start) + interval '1 month')::date;
+    part text := lower(parent::text) || '_' || to_char(month_start, 'YYYYMM');
+    col name;
+BEGIN
+    -- one caller at a time, so two application instances do not race
+    PERFORM pg_advisory_xact_lock(parent::oid::bigint);
+    IF to_regclass(part) IS NOT NULL THEN
+        RETURN false;
+    END IF;
+    SELECT a.attname INTO col FROM pg_partitioned_table p
+        JOIN pg_attribute a ON a.attrelid = p.partrelid AND a.attnum = p.partattrs[0]
+        WHERE p.partrelid = parent;
+    EXECUTE format('CREATE TABLE %I (LIKE %s INCLUDING DEFAULTS)', part, parent);
+    EXECUTE format('WITH moved AS (DELETE FROM %I WHERE %I >= %L AND %I < %L RETURNING *) INSERT INTO %I SELECT * FROM moved',
+                   lower(parent::text) || '_default', col, lo, col, hi, part);
+    EXECUTE format('ALTER TABLE %s ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)', parent, part, lo, hi);
+    RETURN true;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Makes sure the months from the current one to months_ahead later have
+-- partitions, and gives every month found in the DEFAULT partition its own
+-- (after a load of old rows, say). Returns how many partitions were created.
+CREATE OR REPLACE FUNCTION ensure_month_partitions(parent regclass, months_ahead integer) RETURNS integer AS $$
+DECLARE
+    col name;
+    m date;
+    created integer := 0;
+BEGIN
+    PERFORM pg_advisory_xact_lock(parent::oid::bigint);
+    SELECT a.attname INTO col FROM pg_partitioned_table p
+        JOIN pg_attribute a ON a.attrelid = p.partrelid AND a.attnum = p.partattrs[0]
+        WHERE p.partrelid = parent;
+    FOR m IN EXECUTE format('SELECT date_trunc(''month'', %I)::date FROM %I
+                             UNION SELECT generate_series(date_trunc(''month'', localtimestamp),
+                                                          date_trunc(''month'', localtimestamp) + make_interval(months => %s),
+                                                          interval ''1 month'')::date
+                             ORDER BY 1', col, lower(parent::text) || '_default', months_ahead)
+    LOOP
+        IF create_month_partition(parent, m) THEN
+            created := created + 1;
+        END IF;
+    END LOOP;
+    RETURN created;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Detaches the month partitions that end on or before cutoff and returns
+-- their names; the detached tables stay behind for archiving. Orders taken
+-- out of the table are taken out of the popularity rollups too, in the same
+-- transaction, as if they had been deleted.
+CREATE OR REPLACE FUNCTION detach_month_partitions(parent regclass, cutoff date) RETURNS SETOF text AS $$
+DECLARE
+    part text;
+BEGIN
+    PERFORM pg_advisory_xact_lock(parent::oid::bigint);
+    FOR part IN SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid
+                WHERE i.inhparent = parent AND c.relname ~ '_[0-9]{6}$'
+                  AND to_date(right(c.relname, 6), 'YYYYMM') + interval '1 month' <= cutoff
+                ORDER BY c.relname
+    LOOP
+        IF parent = 'orders'::regclass THEN
+            EXECUTE format('UPDATE StoreProductPopularity r SET orderCount = r.orderCount - d.n
+                                FROM (SELECT storeID, productName, count(*) AS n FROM %I GROUP BY storeID, productName) d
+                                WHERE r.storeID = d.storeID AND r.productName = d.productName', part);
+            EXECUTE format('UPDATE StoreCustomerPopularity r SET orderCount = r.orderCount - d.n
+                                FROM (SELECT storeID, customerID, count(*) AS n FROM %I GROUP BY storeID, customerID) d
+                                WHERE r.storeID = d.storeID AND r.customerID = d.customerID', part);
+            DELETE FROM StoreProductPopularity WHERE orderCount <= 0;
+            DELETE FROM StoreCustomerPopularity WHERE orderCount <= 0;
+        END IF;
+        EXECUTE format('ALTER TABLE %s DETACH PARTITION %I', parent, part);
+        RETURN NEXT part;
+    END LOOP;
+END;
+$$ LANGUAGE plpgsql;
+
+SELECT ensure_month_partitions('Orders', 3), ensure_month_partitions('ProductUpdates', 3);
+\endif